@@ -50,6 +50,8 @@ import org.ensor.robots.roboclawdriver.RoboClaw;
 import org.ensor.threads.biote.Biote;
 import org.ensor.threads.biote.BioteManager;
 import org.ensor.threads.biote.Event;
+import org.ensor.threads.biote.EventType;
+import org.ensor.threads.biote.EventPriority;
 import org.ensor.threads.biote.IEventHandler;
 
 /**
@@ -99,6 +101,10 @@ public class DifferentialDriveBiote extends Biote {
     public static final String CONFIG_ANGLE_PID_I = "anglePID_I";
     public static final String CONFIG_ANGLE_PID_D = "anglePID_D";
     public static final String CONFIG_ANGLE_PID_I_RANGE = "anglePID_I_RANGE";
+
+    // Position updates and configuration changes are published to this
+    // topic.  Biotes sending "Mover-Subscribe" are subscribed to it.
+    public static final String TELEMETRY_TOPIC = "Mover-Telemetry";
     
     private final Configuration mConfiguration;
     private DictionaryAtom mConfigDict;
@@ -116,8 +122,6 @@ public class DifferentialDriveBiote extends Biote {
     private long mRightPosition;
     private long mLastUpdateTime;
     
-    private long mBioteId;
-
     private WheelSpeedSensor mLeftSpeedSensor;
     private WheelSpeedSensor mRightSpeedSensor;
     
@@ -129,6 +133,7 @@ public class DifferentialDriveBiote extends Biote {
     private double mRightWheelDirection;
     
     private static final Event TICK_EVENT = new Event("Mover-Tick");
+    private static final EventType NET_OUT_EVENT = EventType.get("Net-Out");
     private static final int TICK_DURATION_MILLISECONDS = 100;
     
     private RoboClaw mRoboClaw;
@@ -220,7 +225,7 @@ public class DifferentialDriveBiote extends Biote {
     public DifferentialDriveBiote(
             final BioteManager aBioteManager,
             final Configuration aConfiguration) {
-        super(aBioteManager, false);
+        super(aBioteManager, false, true);
         mConfiguration = aConfiguration;
         
         mLoggingRingBuffer = new RingBuffer<DictionaryAtom>(100);
@@ -300,12 +305,12 @@ public class DifferentialDriveBiote extends Biote {
             public void process(final Event msg) throws Exception {
                 onAllStop(msg);
             }
-        });
+        }, EventPriority.HIGH);
         subscribe("Mover-Tick", new IEventHandler() {
             public void process(Event msg) throws Exception {
                 onTick(msg);
             }
-        });
+        }, EventPriority.HIGH);
         subscribe("Mover-Subscribe", new IEventHandler() {
             public void process(Event msg) throws Exception {
                 onSubscribe(msg);
@@ -334,8 +339,6 @@ public class DifferentialDriveBiote extends Biote {
         mTimerId = startTimer(TICK_DURATION_MILLISECONDS, TICK_EVENT, true);
         
         readConfiguration(mConfigDict);
-
-        mBioteId = 0;
         
     }
 
@@ -519,17 +522,18 @@ public class DifferentialDriveBiote extends Biote {
         DictionaryAtom dict = DictionaryAtom.newAtom();
         dict.setString("eventName", "updateConfigurationDone");
         dict.setString("saveResult", saveResult);
-        Event positionUpdate = new Event("Net-Out", dict);
-        sendStimulus(mBioteId, positionUpdate);
+        Event positionUpdate = new Event(NET_OUT_EVENT, dict, "updateConfigurationDone");
+        publish(TELEMETRY_TOPIC, positionUpdate);
     }
     
     private void onSubscribe(Event msg) {
-        mBioteId = msg.getData().getInt("bioteId");
+        long bioteId = msg.getData().getInt("bioteId");
+        getBioteManager().subscribeTopic(TELEMETRY_TOPIC, bioteId);
         DictionaryAtom dict = DictionaryAtom.newAtom();
         dict.setString("eventName", "differential-drive-configuration");
         dict.setDictionary("configuration", mConfigDict.getImmutable());
-        Event positionUpdate = new Event("Net-Out", dict);
-        sendStimulus(mBioteId, positionUpdate);
+        Event positionUpdate = new Event(NET_OUT_EVENT, dict, "differential-drive-configuration");
+        sendStimulus(bioteId, positionUpdate);
     }
     
     private void onReset(Event msg) {
@@ -561,7 +565,7 @@ public class DifferentialDriveBiote extends Biote {
     
     private void onTick(Event msg) {
         
-        long now = System.currentTimeMillis();
+        long now = getBioteManager().currentTimeMillis();
         long dtms = (now - mLastUpdateTime);
         
         double dt = ((double) dtms) / (double)1000.0;
@@ -654,11 +658,11 @@ public class DifferentialDriveBiote extends Biote {
                     " x = " + p.getPosition().getX() +
                     " y = " + p.getPosition().getY() +
                     " theta = " + p.getAngle());
-            if (mBioteId != 0) {
+            if (getBioteManager().getSubscriberCount(TELEMETRY_TOPIC) != 0) {
                 
                 DictionaryAtom dict = DictionaryAtom.newAtom();
                 dict.setString("eventName", "position-update");
-                dict.setInt("time", System.currentTimeMillis());
+                dict.setInt("time", getBioteManager().currentTimeMillis());
                 dict.setReal("x", p.getPosition().getX());
                 dict.setReal("y", p.getPosition().getY());
                 dict.setReal("angle", p.getAngle());
@@ -671,8 +675,8 @@ public class DifferentialDriveBiote extends Biote {
                 dict.setReal("leftSpeedRPM", leftSpeedRPM);
                 dict.setReal("rightSpeedRPM", rightSpeedRPM);
                 dict.setReal("angleSetpoint", mAngleController.getSetpoint());
-                Event positionUpdate = new Event("Net-Out", dict);
-                sendStimulus(mBioteId, positionUpdate);
+                Event positionUpdate = new Event(NET_OUT_EVENT, dict, "position-update");
+                publish(TELEMETRY_TOPIC, positionUpdate);
                 
             }
 
@@ -29,7 +29,9 @@ import org.eclipse.jetty.websocket.WebSocket;
 import org.ensor.data.atom.json.JSONStringSerializer;
 import org.ensor.threads.biote.Biote;
 import org.ensor.threads.biote.BioteManager;
+import org.ensor.threads.biote.DeliveryStatus;
 import org.ensor.threads.biote.Event;
+import org.ensor.threads.biote.EventType;
 
 /**
  *
@@ -40,6 +42,7 @@ public class BioteSocket implements
     
     private static final Logger LOGGER =
             Logger.getLogger(BioteSocket.class.getName());
+    private static final EventType NET_IN_EVENT = EventType.get("Net-In");
     
     private Connection mConnection;
     private BioteManager mBioteManager;
@@ -59,7 +62,7 @@ public class BioteSocket implements
 
     public void sendMessage(final Event aEvent) throws Exception {
         String jsonData = JSONStringSerializer.instance().serializeTo(
-                aEvent.getData());
+                aEvent.getDictionary());
         mConnection.sendMessage(jsonData);
     }
 
@@ -68,9 +71,15 @@ public class BioteSocket implements
         try {
             LOGGER.log(Level.INFO, "Got some data");
             LOGGER.log(Level.INFO, data);
-            Event e = new Event("Net-In",
+            Event e = new Event(NET_IN_EVENT,
                     JSONStringSerializer.instance().serializeFrom(data));
-            mBiote.stimulate(e);
+            // Go through the mailbox so the biote handles the command on its
+            // own thread and a flooding client cannot grow it without bound.
+            DeliveryStatus status = mBioteManager.deliverStimulus(
+                    mBiote.getBioteId(), e, 0);
+            if (status != DeliveryStatus.DELIVERED) {
+                LOGGER.log(Level.WARNING, "Client message was not delivered: {0}", status);
+            }
         } catch (Exception ex) {
             Logger.getLogger(BioteSocket.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -29,7 +29,10 @@ import org.ensor.data.atom.ImmutableDict;
 import org.ensor.threads.biote.Biote;
 import org.ensor.threads.biote.BioteManager;
 import org.ensor.threads.biote.Event;
+import org.ensor.threads.biote.EventPriority;
+import org.ensor.threads.biote.EventType;
 import org.ensor.threads.biote.IEventHandler;
+import org.ensor.threads.biote.OverflowPolicy;
 
 /**
  *
@@ -38,6 +41,37 @@ import org.ensor.threads.biote.IEventHandler;
 public class NetworkBiote extends Biote {
 
     private final BioteSocket mBioteSocket;
+
+    // The types of the events this biote sends, looked up once.
+    private static final EventType ALL_STOP_EVENT        = EventType.get("Mover-AllStop");
+    private static final EventType MOVE_REQUEST_EVENT    = EventType.get("Mover-MoveRequest");
+    private static final EventType DRIVE_MOTOR_EVENT     = EventType.get("Mover-DriveMotor");
+    private static final EventType SET_SPEEDS_EVENT      = EventType.get("Mover-Set-Speeds");
+    private static final EventType MOVER_SUBSCRIBE_EVENT = EventType.get("Mover-Subscribe");
+    private static final EventType SET_DESTINATION_EVENT = EventType.get("Mover-SetDestinationPoint");
+    private static final EventType TIMER_EXPIRE_EVENT    = EventType.get("Timer-Expire");
+    private static final EventType RESET_EVENT           = EventType.get("Mover-Reset");
+    private static final EventType NET_STATS_EVENT       = EventType.get("Net-Stats");
+    private static final EventType UPDATE_CONFIG_EVENT   = EventType.get("Mover-UpdateConfig");
+    private static final EventType NET_OUT_EVENT         = EventType.get("Net-Out");
+
+    // Events queue up here if the websocket stalls or the client floods us.
+    // Every event bound for the client carries a conflation key, so only
+    // the latest of each kind ever waits and a burst of telemetry cannot
+    // fill the mailbox.  The room left is for client commands, and only a
+    // client which floods us has its own commands refused.  Anything
+    // beyond the capacity is refused rather than evicting a waiting
+    // command.
+    private static final int MAILBOX_CAPACITY = 256;
+
+    // Conflation keys of the events this biote queues for itself.
+    private static final String STATS_KEY        = "net-stats";
+    private static final String MOVE_TIMEOUT_KEY = "move-timeout";
+
+    // How often the scheduling statistics are sent to a client which
+    // asked for them.
+    private static final int STATS_INTERVAL_MILLISECONDS = 1000;
+    private int mStatsTimerId;
     
     public NetworkBiote(BioteManager
             aBioteManager,
@@ -45,6 +79,7 @@ public class NetworkBiote extends Biote {
     ) {
         super(aBioteManager, false);
         mBioteSocket = aBioteSocket;
+        setMailboxCapacity(MAILBOX_CAPACITY, OverflowPolicy.REJECT);
     }
     
     @Override
@@ -59,16 +94,24 @@ public class NetworkBiote extends Biote {
                 onNetOut(msg);
             }
         });
+        // The move timeout stops the robot, so it must not wait behind, or
+        // be refused because of, a full mailbox.
         this.subscribe("Timer-Expire", new IEventHandler() {
             public void process(Event msg) throws Exception {
                 onTimerExpire(msg);
             }
+        }, EventPriority.HIGH);
+        this.subscribe("Net-Stats", new IEventHandler() {
+            public void process(Event msg) throws Exception {
+                onStats(msg);
+            }
         });
         
     }
 
     @Override
     protected void onFinalize(Event message) throws Exception {
+        stopStats();
     }
 
     private static final int DIFFERENTIAL_DRIVE_BIOTE = 3;
@@ -78,52 +121,75 @@ public class NetworkBiote extends Biote {
         String name = msg.getData().getString("eventName");
         
         if (name.equals("all-stop")) {
-            Event allStop = new  Event("Mover-AllStop");
+            Event allStop = new Event(ALL_STOP_EVENT);
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, allStop);
         }
         else if (name.equals("differentialDrive")) {
-            Event forward = new Event("Mover-MoveRequest", msg.getData());
+            Event forward = new Event(MOVE_REQUEST_EVENT, msg.getData());
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, forward);
         }
         else if (name.equals("driveMotor")) {
-            Event forward = new Event("Mover-DriveMotor", msg.getData());
+            Event forward = new Event(DRIVE_MOTOR_EVENT, msg.getData());
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, forward);
         }
         else if (name.equals("Mover-Set-Speeds")) {
-            Event forward = new Event("Mover-Set-Speeds", msg.getData());
+            Event forward = new Event(SET_SPEEDS_EVENT, msg.getData());
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, forward);
         }
         else if (name.equals("subscribe")) {
             DictionaryAtom dict = DictionaryAtom.newAtom();
             dict.setInt("bioteId", getBioteId());
-            Event subscribe = new Event("Mover-Subscribe", dict);
+            Event subscribe = new Event(MOVER_SUBSCRIBE_EVENT, dict);
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, subscribe);
         }
         else if (name.equals("move")) {
-            Event forward = new Event("Mover-SetDestinationPoint", msg.getData());
+            Event forward = new Event(SET_DESTINATION_EVENT, msg.getData());
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, forward);
-            startTimer(1000, new Event("Timer-Expire"), false);
+            startTimer(1000, new Event(TIMER_EXPIRE_EVENT, null, MOVE_TIMEOUT_KEY), false);
         }
         else if (name.equals("reset")) {
             DictionaryAtom dict = DictionaryAtom.newAtom();
             dict.setReal("x", 0);
             dict.setReal("y", 0);
             dict.setReal("theta", 0);
-            Event forward = new Event("Mover-Reset", dict);
+            Event forward = new Event(RESET_EVENT, dict);
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, forward);
         }
+        else if (name.equals("subscribe-stats")) {
+            stopStats();
+            mStatsTimerId = startTimer(STATS_INTERVAL_MILLISECONDS,
+                    new Event(NET_STATS_EVENT, null, STATS_KEY), true);
+        }
+        else if (name.equals("unsubscribe-stats")) {
+            stopStats();
+        }
         else if (name.equals("updateConfiguration")) {
             ImmutableDict updateConfig = msg.getData().getDictionary("data");
-            Event updateConfigEvent = new Event("Mover-UpdateConfig", updateConfig);
+            Event updateConfigEvent = new Event(UPDATE_CONFIG_EVENT, updateConfig);
             sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, updateConfigEvent);
         }
     }
     
     private void onTimerExpire(Event msg) throws Exception {
-        Event allStop = new Event("Mover-AllStop");
+        Event allStop = new Event(ALL_STOP_EVENT);
         sendStimulus(DIFFERENTIAL_DRIVE_BIOTE, allStop);
     }
     
+    // Send the scheduling statistics of every biote to the client.
+    private void onStats(Event msg) throws Exception {
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setString("eventName", "biote-stats");
+        dict.setList("biotes", getBioteManager().getBioteStats().getImmutable());
+        mBioteSocket.sendMessage(new Event(NET_OUT_EVENT, dict));
+    }
+
+    private void stopStats() {
+        if (mStatsTimerId != 0) {
+            cancelTimer(mStatsTimerId);
+            mStatsTimerId = 0;
+        }
+    }
+    
     // Handle events from other biotes
     // which should be queued to the network system.
     private void onNetOut(Event msg) throws Exception {
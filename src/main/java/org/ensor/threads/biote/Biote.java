@@ -25,10 +25,20 @@
 package org.ensor.threads.biote;
 
 import org.ensor.data.atom.Atom;
+import org.ensor.data.atom.DictionaryAtom;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.ensor.java.utilities.StackTrace;
 
 /**
@@ -53,21 +63,83 @@ import org.ensor.java.utilities.StackTrace;
  */
 public abstract class Biote {
     private final BioteManager mBioteManager;
-    private final HashMap<String,LinkedList<IEventHandler> > mEventSubscriptions;
+    // Handler tables are indexed by event type ID and are only used by the
+    // thread processing this biote.
+    private Handlers[]                              mEventSubscriptions;
+    private BatchHandlers[]                         mBatchSubscriptions;
+
+    // The handlers of one event type.  These are named classes so that the
+    // subscription tables can be plain arrays indexed by event type ID.
+    private static final class Handlers extends LinkedList<IEventHandler> {
+        private static final long serialVersionUID = 1L;
+    }
+    private static final class BatchHandlers extends LinkedList<IBatchEventHandler> {
+        private static final long serialVersionUID = 1L;
+    }
+    private final ArrayList<Event>                  mBatch;
     private long                                    mBioteId;
     protected final boolean                         mUseBlockingQueue;
+    private final boolean                           mRealTime;
 
     private static final int                                                BIOTE_STATE_IDLE = 0;
     private static final int                                                BIOTE_STATE_QUEUED = 1;
     private static final int                                                BIOTE_STATE_PROCESSING = 2;
     private static final int                                                BIOTE_STATE_TERMINATING = 3;
 
-    // The state lock must always be accquired prior to manipulating the event queue and processing state.
-    // both members should be manipulated together in an atomic manner
-    private final Object                                                    mStateLock;
-    private final HashMap<String,Integer>                                   mEventRouting;
-    private final Queue<Event>                                       	mRequest;
-    private int                                                             mProcessingState;
+    private static final EventType                                          INIT_EVENT = EventType.get("Event-Init");
+    private static final EventType                                          FINALIZE_EVENT = EventType.get("Event-Finalize");
+    private static final long                                               NO_ROUTE = 0;
+
+    // The event queues and the processing state are manipulated without locks.
+    // Any thread may add events to the mailboxes, but only the thread which moved
+    // the state from QUEUED to PROCESSING may take events out of them.  High
+    // priority events go to their own mailbox which is always drained first.
+    // The routing and priority tables are read by any thread sending to this
+    // biote.  They are indexed by event type ID and are replaced by a modified
+    // copy whenever they change.
+    private final Object                                                    mTableLock;
+    private volatile long[]                                                 mEventRouting;
+    private volatile EventPriority[]                                        mEventPriorities;
+    private final Mailbox                                                   mRequest;
+    private final Mailbox                                                   mUrgentRequest;
+    private final AtomicInteger                                             mProcessingState;
+    // Set while an entry for this biote is waiting in the urgent ready queue,
+    // so that a burst of high priority events schedules it there only once.
+    // Only the thread processing the biote clears it.
+    private final AtomicBoolean                                             mUrgentScheduled;
+    private volatile Thread                                                 mProcessingThread;
+
+    // Statistics kept by the biote manager.  These are looked up once so that
+    // sampling them costs no more than a few atomic additions.
+    private final SystemStat                                                mStimulateStat;
+    private final SystemStat                                                mStimulateBatchStat;
+    private final SystemStat                                                mDroppedStat;
+    private final SystemStat                                                mRejectedStat;
+    private final SystemStat                                                mConflatedStat;
+    private final BioteStats                                                mStats;
+
+    // The capacity of the normal mailbox and what happens to events sent while
+    // it is full.  A capacity of zero means the mailbox is unbounded.  High
+    // priority events do not count against the capacity and are never dropped.
+    private volatile int                                                    mMailboxCapacity;
+    private volatile OverflowPolicy                                         mOverflowPolicy;
+    private volatile long                                                   mBlockTimeoutNanos;
+    private final AtomicLong                                                mDroppedEvents;
+    private final AtomicLong                                                mRejectedEvents;
+
+    // The worker thread which last processed this biote.  The scheduler
+    // places the biote back on that thread's ready deque.
+    private volatile int                                                    mWorkerAffinity;
+
+    // The thread of its own which runs a real time biote.
+    private volatile RealTimeLane                                           mRealTimeLane;
+
+        /*
+         * Returns a table size large enough to hold the given event type ID.
+         */
+        private static int tableSize(int id) {
+            return Math.max(16, Integer.highestOneBit(id) << 1);
+        }
 
         /**
          * The constructor for a biote should never be called explicitly.  To create a new biote, register
@@ -79,24 +151,61 @@ public abstract class Biote {
 	protected Biote(
                 final BioteManager aBioteManager,
                 final boolean useBlockingQueue) {
+                this(aBioteManager, useBlockingQueue, false);
+        }
+
+        /**
+         * Creates a biote which may run on a real time thread of its own.  A
+         * real time biote is run by a maximum priority thread which does nothing
+         * else, so its events, and in particular its timer events, are handled
+         * without waiting behind other biotes.  This is meant for the few biotes
+         * running control loops.
+         *
+         * @param aBioteManager
+         * @param useBlockingQueue
+         * @param realTime True to run this biote on a real time thread.
+         */
+	protected Biote(
+                final BioteManager aBioteManager,
+                final boolean useBlockingQueue,
+                final boolean realTime) {
                 mBioteManager = aBioteManager;
 		mBioteId = 0;
-                mStateLock = new Object();
-		mRequest = new LinkedList<Event>();
-                mEventRouting = new HashMap<String,Integer>();
-                mProcessingState = BIOTE_STATE_IDLE;
-                mEventSubscriptions = new HashMap<String,LinkedList<IEventHandler> >();
+                mStimulateStat = aBioteManager.getStat("Biote.java:stimulate", true);
+                mStimulateBatchStat = aBioteManager.getStat("Biote.java:stimulateBatch", false);
+                mDroppedStat = aBioteManager.getStat("Biote.java:dropped", false);
+                mRejectedStat = aBioteManager.getStat("Biote.java:rejected", false);
+                mConflatedStat = aBioteManager.getStat("Biote.java:conflated", false);
+                mStats = new BioteStats(aBioteManager.getStat("Biote.java:queueWait", true));
+                mRequest = new Mailbox(mStats);
+                mUrgentRequest = new Mailbox(mStats);
+                mTableLock = new Object();
+                mEventRouting = new long[0];
+                mEventPriorities = new EventPriority[0];
+                mProcessingState = new AtomicInteger(BIOTE_STATE_IDLE);
+                mUrgentScheduled = new AtomicBoolean(false);
+                mWorkerAffinity = -1;
+                mMailboxCapacity = 0;
+                mOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+                mBlockTimeoutNanos = 0;
+                mDroppedEvents = new AtomicLong(0);
+                mRejectedEvents = new AtomicLong(0);
+                mEventSubscriptions = new Handlers[0];
+                mBatchSubscriptions = new BatchHandlers[0];
+                mBatch = new ArrayList<Event>();
                 mUseBlockingQueue = useBlockingQueue;
+                mRealTime = realTime;
+                mRealTimeLane = null;
 
                 // Listen for the init event
-                subscribe("Event-Init", new IEventHandler() {
+                subscribe(INIT_EVENT, new IEventHandler() {
                     public void process(Event msg) throws Exception {
                         onInit(msg);
                     }
                 });
 
                 // Listen for the init event
-                subscribe("Event-Finalize", new IEventHandler() {
+                subscribe(FINALIZE_EVENT, new IEventHandler() {
                     public void process(Event msg) throws Exception {
                         onFini(msg);
                     }
@@ -105,13 +214,27 @@ public abstract class Biote {
 
         //=====================================================================
         private void onFini(Event message) throws Exception {
-            log(Constants.LOG_BIOTE_CORE, "Biote is being destroyed now...");
+            log(LogCategory.BIOTE_CORE, "Biote is being destroyed now...");
 
-            synchronized(mStateLock) {
-		mProcessingState = BIOTE_STATE_TERMINATING;
+            // A biote being processed is removed by the thread processing it
+            // when it finishes.  Otherwise the biote may be idle, or queued
+            // with a ready queue entry which will now find it terminating and
+            // do nothing, so nobody else will remove it.
+            int state;
+            do {
+                state = mProcessingState.get();
+                if (state == BIOTE_STATE_TERMINATING)
+                    return;
+            } while (!mProcessingState.compareAndSet(state, BIOTE_STATE_TERMINATING));
+
+            try {
+                onFinalize(message);
+            }
+            finally {
+                if (state != BIOTE_STATE_PROCESSING) {
+                    mBioteManager.__protected_friend_Biote__removeBiote(mBioteId);
+                }
             }
-            
-            onFinalize(message);
         }
         
         /**
@@ -143,19 +266,121 @@ public abstract class Biote {
 	public void subscribe(
                 final String event,
                 final IEventHandler h) {
-            LinkedList<IEventHandler> subscribers = mEventSubscriptions.get(event);
+            subscribe(EventType.get(event), h);
+	}
+
+        /**
+         * Subscribe this Biote to the given event type.  When an event of
+         * that type is stimulated, the given handler's process function will
+         * be called.
+         *
+         * @param event Type of event to subscribe to.
+         * @param h Event handler to be called when the event is received.
+         */
+        public void subscribe(
+                final EventType event,
+                final IEventHandler h) {
+            int id = event.getId();
+            if (id >= mEventSubscriptions.length) {
+                mEventSubscriptions = Arrays.copyOf(mEventSubscriptions, tableSize(id));
+            }
+            Handlers subscribers = mEventSubscriptions[id];
             if (subscribers == null) {
-                    subscribers = new LinkedList<IEventHandler>();
-                    mEventSubscriptions.put(event, subscribers);
+                    subscribers = new Handlers();
+                    mEventSubscriptions[id] = subscribers;
             }
             subscribers.add(h);
-	}
+        }
+
+        /**
+         * Subscribe this Biote to the given event and set the priority with
+         * which that event is delivered to this Biote.
+         *
+         * @param event Name of event to subscribe to.
+         * @param h Event handler to be called when the event is received.
+         * @param priority Priority class of the event.
+         */
+        public void subscribe(
+                final String event,
+                final IEventHandler h,
+                final EventPriority priority) {
+            subscribe(EventType.get(event), h, priority);
+        }
+
+        /**
+         * Subscribe this Biote to the given event type and set the priority
+         * with which events of that type are delivered to this Biote.
+         *
+         * @param event Type of event to subscribe to.
+         * @param h Event handler to be called when the event is received.
+         * @param priority Priority class of the event.
+         */
+        public void subscribe(
+                final EventType event,
+                final IEventHandler h,
+                final EventPriority priority) {
+            setEventPriority(event, priority);
+            subscribe(event, h);
+        }
+
+        /**
+         * Subscribe this Biote to batches of the given event.  When several
+         * of these events are waiting in this Biote's queue one after the
+         * other, they are all passed to the handler in a single call.
+         * Handlers subscribed with {@link #subscribe subscribe} still
+         * receive the events one at a time.
+         *
+         * @param event Name of event to subscribe to.
+         * @param h Event handler to be called with each batch.
+         */
+        public void subscribeBatch(
+                final String event,
+                final IBatchEventHandler h) {
+            subscribeBatch(EventType.get(event), h);
+        }
+
+        /**
+         * Subscribe this Biote to batches of the given event type.
+         *
+         * @param event Type of event to subscribe to.
+         * @param h Event handler to be called with each batch.
+         */
+        public void subscribeBatch(
+                final EventType event,
+                final IBatchEventHandler h) {
+            int id = event.getId();
+            if (id >= mBatchSubscriptions.length) {
+                mBatchSubscriptions = Arrays.copyOf(mBatchSubscriptions, tableSize(id));
+            }
+            BatchHandlers subscribers = mBatchSubscriptions[id];
+            if (subscribers == null) {
+                    subscribers = new BatchHandlers();
+                    mBatchSubscriptions[id] = subscribers;
+            }
+            subscribers.add(h);
+        }
 
         /**
          * Unsubscribe _all_ of this Biote's handlers for the given event.
          */
         public void unsubscribeHandlers( String event ) {
-            mEventSubscriptions.remove(event);
+            int id = EventType.get(event).getId();
+            if (id < mEventSubscriptions.length) {
+                mEventSubscriptions[id] = null;
+            }
+            if (id < mBatchSubscriptions.length) {
+                mBatchSubscriptions[id] = null;
+            }
+        }
+
+        private LinkedList<IEventHandler> getSubscribers(EventType event) {
+            int id = event.getId();
+            return id < mEventSubscriptions.length ? mEventSubscriptions[id] : null;
+        }
+
+        private LinkedList<IBatchEventHandler> getBatchSubscribers(EventType event) {
+            int id = event.getId();
+            return id < mBatchSubscriptions.length ? mBatchSubscriptions[id] : null;
         }
 
         /**
@@ -166,24 +391,103 @@ public abstract class Biote {
          * @param msg
          */
         public void stimulate(Event msg) {
-            mBioteManager.sampleStat("Biote.java:stimulate");
+            long start = System.nanoTime();
             try {
-                String eventName = msg.getEventName();
-                LinkedList<IEventHandler> subscribers = mEventSubscriptions.get(eventName);
+                LinkedList<IEventHandler> subscribers = getSubscribers(msg.getEventType());
                 if (subscribers == null) {
-                    log(true, "Biote.stimulate():" + eventName + " has no subscribers.");
+                    log(true, "Biote.stimulate():" + msg.getEventName() + " has no subscribers.");
                     return;
                 }
                 for( IEventHandler h : subscribers ) {
                     h.process(msg);
-                    log(Constants.LOG_BIOTE_CORE, "Biote.processEvents():" + eventName);
-                    log(Constants.LOG_BIOTE_CORE, "Biote.processEvent:", msg.getData());
+                    // Getting the data may convert a typed payload, so only
+                    // do it if it is going to be logged.
+                    if (isLogEnabled(LogCategory.BIOTE_CORE)) {
+                        log(LogCategory.BIOTE_CORE, "Biote.processEvents():{}", msg.getEventName());
+                        log(LogCategory.BIOTE_CORE, "Biote.processEvent:", msg.getData());
+                    }
                 }
             }
             catch (Exception ex) {
                 log(true, "Biote.stimulate():" + ex.toString());
                 log(true, StackTrace.getStackTrace(ex));
             }
+            finally {
+                long elapsed = System.nanoTime() - start;
+                mStimulateStat.sample(elapsed);
+                mStats.recordHandler(msg.getEventType(), elapsed);
+            }
+        }
+        /**
+         * Cause the given events to be handled immediately, in order.  Each run
+         * of consecutive events with the same name is passed to the batch
+         * handlers for that event in a single call, and to the ordinary
+         * handlers one event at a time.
+         *
+         * @param msgs
+         */
+        public void stimulateBatch(List<Event> msgs) {
+            int runStart = 0;
+            for (int i = 1; i <= msgs.size(); i++) {
+                if (i == msgs.size() ||
+                        msgs.get(i).getEventType() != msgs.get(runStart).getEventType()) {
+                    stimulateRun(msgs.subList(runStart, i));
+                    runStart = i;
+                }
+            }
+        }
+        private void stimulateRun(List<Event> msgs) {
+            EventType eventType = msgs.get(0).getEventType();
+            LinkedList<IBatchEventHandler> subscribers = getBatchSubscribers(eventType);
+            if (subscribers != null) {
+                mStimulateBatchStat.sample(msgs.size());
+                long start = System.nanoTime();
+                try {
+                    for( IBatchEventHandler h : subscribers ) {
+                        h.process(msgs);
+                    }
+                }
+                catch (Exception ex) {
+                    log(true, "Biote.stimulateBatch():" + ex.toString());
+                    log(true, StackTrace.getStackTrace(ex));
+                }
+                finally {
+                    mStats.recordHandler(eventType, System.nanoTime() - start);
+                }
+                if (getSubscribers(eventType) == null) {
+                    return;
+                }
+            }
+            for (Event msg : msgs) {
+                stimulate(msg);
+            }
+        }
+        /**
+         * Runs a CPU heavy job, such as planning a path, on the compute pool
+         * so that it does not hold up the other biotes.  When the job is done
+         * its result arrives as the payload of an event with the given name,
+         * handled like any other event of this biote.  The job must not touch
+         * the state of this biote.  A job which throws is logged.
+         * @param <T>
+         * @param job
+         * @param resultEventName
+         * @return A future which may be used to cancel the job.
+         */
+        public <T> Future<T> offload(Callable<T> job, String resultEventName) {
+            return mBioteManager.offload(job, resultEventName, null, getBioteId());
+        }
+        /**
+         * Runs a CPU heavy job on the compute pool.  The result arrives as the
+         * payload of an event with the result name, and an exception thrown by
+         * the job as the payload of an event with the failure name.
+         * @param <T>
+         * @param job
+         * @param resultEventName
+         * @param failureEventName
+         * @return A future which may be used to cancel the job.
+         */
+        public <T> Future<T> offload(Callable<T> job, String resultEventName, String failureEventName) {
+            return mBioteManager.offload(job, resultEventName, failureEventName, getBioteId());
         }
         /**
          * Returns the ID of the biote.
@@ -192,6 +496,15 @@ public abstract class Biote {
          */
 	public long getBioteId() {return mBioteId;}
 	protected void setBioteId(int bioteId) {mBioteId = bioteId;}
+        int getWorkerAffinity() {return mWorkerAffinity;}
+        void setWorkerAffinity(int aWorker) {mWorkerAffinity = aWorker;}
+        /**
+         * Returns true if this biote runs on a real time thread of its own.
+         * @return
+         */
+        public boolean isRealTime() {return mRealTime;}
+        RealTimeLane getRealTimeLane() {return mRealTimeLane;}
+        void setRealTimeLane(RealTimeLane aLane) {mRealTimeLane = aLane;}
 	public int startTimer(int delayMS, Event msg, boolean repeating) {
 		return mBioteManager.startTimer(getBioteId(), delayMS, msg, repeating);
 	}
@@ -207,12 +520,18 @@ public abstract class Biote {
          * @return
          */
         public long getTargetBioteId(String eventName) {
-            Integer targetBioteId = null;
-            synchronized(mStateLock) {
-                targetBioteId = mEventRouting.get(eventName);
-            }
-            if (targetBioteId != null) {
-                return targetBioteId.intValue();
+            return getTargetBioteId(EventType.get(eventName));
+        }
+        /**
+         * Get the biote ID that events of the given type should be sent to.
+         * @param eventType
+         * @return
+         */
+        public long getTargetBioteId(EventType eventType) {
+            int id = eventType.getId();
+            long[] routes = mEventRouting;
+            if (id < routes.length && routes[id] != NO_ROUTE) {
+                return routes[id];
             }
             return mBioteId;
         }
@@ -224,15 +543,160 @@ public abstract class Biote {
          * @param bioteId
          */
         public void setMessageRoute(String eventName, Integer bioteId) {
-            synchronized(mStateLock) {
-                if (bioteId == null) {
-                    mEventRouting.remove(eventName);
+            setMessageRoute(EventType.get(eventName), bioteId);
+        }
+        /**
+         * For the given event type, route any messages to us
+         * directly to the given biote ID.
+         *
+         * @param eventType
+         * @param bioteId The biote to route to, or null to stop routing.
+         */
+        public void setMessageRoute(EventType eventType, Integer bioteId) {
+            int id = eventType.getId();
+            synchronized (mTableLock) {
+                long[] routes = mEventRouting;
+                if (bioteId == null && id >= routes.length) {
+                    return;
                 }
-                else {
-                    mEventRouting.put(eventName, bioteId);
+                routes = Arrays.copyOf(routes, Math.max(routes.length, tableSize(id)));
+                routes[id] = bioteId == null ? NO_ROUTE : bioteId.intValue();
+                mEventRouting = routes;
+            }
+        }
+        /**
+         * Sets the priority with which the given event is delivered to this
+         * biote.  High priority events are handled ahead of any normal events
+         * waiting in the biote's queue, and the biote is scheduled ahead of
+         * biotes which only have normal events waiting.
+         *
+         * @param eventName
+         * @param priority
+         */
+        public void setEventPriority(String eventName, EventPriority priority) {
+            setEventPriority(EventType.get(eventName), priority);
+        }
+        /**
+         * Sets the priority with which events of the given type are delivered
+         * to this biote.
+         *
+         * @param eventType
+         * @param priority
+         */
+        public void setEventPriority(EventType eventType, EventPriority priority) {
+            int id = eventType.getId();
+            synchronized (mTableLock) {
+                EventPriority[] priorities = mEventPriorities;
+                if (priority == EventPriority.NORMAL) {
+                    priority = null;
                 }
+                if (priority == null && id >= priorities.length) {
+                    return;
+                }
+                priorities = Arrays.copyOf(priorities, Math.max(priorities.length, tableSize(id)));
+                priorities[id] = priority;
+                mEventPriorities = priorities;
             }
         }
+        /**
+         * Returns the priority with which the given event is delivered to
+         * this biote.
+         *
+         * @param eventName
+         * @return
+         */
+        public EventPriority getEventPriority(String eventName) {
+            return getEventPriority(EventType.get(eventName));
+        }
+        /**
+         * Returns the priority with which events of the given type are
+         * delivered to this biote.
+         *
+         * @param eventType
+         * @return
+         */
+        public EventPriority getEventPriority(EventType eventType) {
+            return isUrgent(eventType) ? EventPriority.HIGH : EventPriority.NORMAL;
+        }
+        private boolean isUrgent(EventType eventType) {
+            int id = eventType.getId();
+            EventPriority[] priorities = mEventPriorities;
+            return id < priorities.length && priorities[id] == EventPriority.HIGH;
+        }
+        /**
+         * Limits the number of normal priority events which may wait in this
+         * biote's queue.  Events sent while the queue is full are handled
+         * according to the given policy.  A sender blocked by the
+         * {@link OverflowPolicy#BLOCK BLOCK} policy gives up right away.
+         *
+         * @param capacity Maximum number of waiting events, or zero for no limit.
+         * @param policy What to do with events sent while the queue is full.
+         */
+        public void setMailboxCapacity(int capacity, OverflowPolicy policy) {
+            setMailboxCapacity(capacity, policy, 0);
+        }
+        /**
+         * Limits the number of normal priority events which may wait in this
+         * biote's queue.  Events sent while the queue is full are handled
+         * according to the given policy.
+         *
+         * @param capacity Maximum number of waiting events, or zero for no limit.
+         * @param policy What to do with events sent while the queue is full.
+         * @param blockTimeoutMillis How long a sender waits for room in the
+         *                           queue under the {@link OverflowPolicy#BLOCK BLOCK}
+         *                           policy before the event is dropped.
+         */
+        public void setMailboxCapacity(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+            mOverflowPolicy = policy;
+            mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+            mMailboxCapacity = Math.max(capacity, 0);
+        }
+        /**
+         * Returns the maximum number of normal priority events which may wait
+         * in this biote's queue, or zero if there is no limit.
+         * @return
+         */
+        public int getMailboxCapacity() {
+            return mMailboxCapacity;
+        }
+        /**
+         * Returns the number of events waiting in this biote's queue.
+         * @return
+         */
+        public int getMailboxDepth() {
+            return mRequest.size() + mUrgentRequest.size();
+        }
+        /**
+         * Returns the number of events which were dropped because this biote's
+         * queue was full.
+         * @return
+         */
+        public long getDroppedEventCount() {
+            return mDroppedEvents.get();
+        }
+        /**
+         * Returns the number of events which were rejected because this biote's
+         * queue was full.
+         * @return
+         */
+        public long getRejectedEventCount() {
+            return mRejectedEvents.get();
+        }
+        /*
+         * Describes this biote's queue and handler statistics in the given
+         * dictionary.  This may be called from any thread.
+         */
+        void snapshotStats(DictionaryAtom dict) {
+            dict.setInt("bioteId", mBioteId);
+            dict.setString("type", getClass().getSimpleName());
+            dict.setBoolean("realTime", mRealTime);
+            dict.setInt("mailboxDepth", mRequest.size());
+            dict.setInt("urgentDepth", mUrgentRequest.size());
+            dict.setInt("mailboxCapacity", mMailboxCapacity);
+            dict.setInt("dropped", mDroppedEvents.get());
+            dict.setInt("rejected", mRejectedEvents.get());
+            mStats.snapshot(dict);
+        }
         /**
          * Causes the biote to enter the terminating state.  The biote will be destroyed
          * the next time that biote gets a time slice in the event processing queue.  Any events pending
@@ -240,13 +704,13 @@ public abstract class Biote {
          * to handle them in the future.
          */
 	public void shutdown(final boolean immediate) {
-            Event shutdownMessage = new Event("Event-Finalize");
+            Event shutdownMessage = new Event(FINALIZE_EVENT);
             if (immediate) {
                 stimulate(shutdownMessage);
             } else {
                 startTimer(5000, shutdownMessage, false);
             }
-            log(Constants.LOG_BIOTE_CORE,
+            log(LogCategory.BIOTE_CORE,
                     "Biote is now scheduled for destruction.");
 	}
         /**
@@ -256,11 +720,61 @@ public abstract class Biote {
          * event processing fairness rules.
          * @param bioteId
          * @param msg
-         * @throws Exception
+         * @return What became of the event.
          */
-	public void sendStimulus(long bioteId, Event msg) {
-            mBioteManager.sendStimulus(bioteId, msg, getBioteId());
+	public DeliveryStatus sendStimulus(long bioteId, Event msg) {
+            return mBioteManager.deliverStimulus(bioteId, msg, getBioteId());
 	}
+        /**
+         * Sends a request to another biote and returns a future which completes
+         * with its reply.  The future completes on the replying biote's thread,
+         * so a biote should forward the reply to itself with
+         * {@link #sendStimulus sendStimulus} rather than handle it there.
+         * @param bioteId
+         * @param msg
+         * @param timeoutMillis
+         * @return A future which completes with the reply or fails on timeout.
+         */
+        public CompletableFuture<Event> ask(long bioteId, Event msg, int timeoutMillis) {
+            return mBioteManager.ask(bioteId, msg, timeoutMillis, getBioteId());
+        }
+        /**
+         * Answers a request sent to this biote with {@link #ask ask}.
+         * @param request
+         * @param response
+         * @return False if the request was not sent with ask, or has already
+         *         been answered or timed out.
+         */
+        public boolean reply(Event request, Event response) {
+            return mBioteManager.reply(request, response);
+        }
+        /**
+         * Publishes an event to every biote subscribed to the given topic.  The
+         * same event is delivered to each of them, so it must not be modified
+         * afterwards.
+         * @param topicName
+         * @param msg
+         * @return The number of subscribers the event was delivered to.
+         */
+        public int publish(String topicName, Event msg) {
+            return mBioteManager.publish(topicName, msg, getBioteId());
+        }
+        /**
+         * Subscribes this biote to the given topic so that it receives the
+         * events published to it.  The subscription ends when the biote
+         * unsubscribes or is destroyed.
+         * @param topicName
+         */
+        public void subscribeTopic(String topicName) {
+            mBioteManager.subscribeTopic(topicName, getBioteId());
+        }
+        /**
+         * Unsubscribes this biote from the given topic.
+         * @param topicName
+         */
+        public void unsubscribeTopic(String topicName) {
+            mBioteManager.unsubscribeTopic(topicName, getBioteId());
+        }
         /**
          * This function logs a message to the smartfox log.
          * @param system
@@ -279,6 +793,50 @@ public abstract class Biote {
         public void log(boolean system, String message, Atom atom) {
             mBioteManager.logString(system, getBioteId(), message, atom);
         }
+        /**
+         * Returns true if the given logging category is switched on.
+         * @param category
+         * @return
+         */
+        public boolean isLogEnabled(LogCategory category) {
+            return mBioteManager.isLogEnabled(category);
+        }
+        /**
+         * This function logs a message in the given category.  Nothing is
+         * built unless the category is switched on.
+         * @param category
+         * @param message
+         */
+        public void log(LogCategory category, String message) {
+            mBioteManager.logString(category, getBioteId(), message);
+        }
+        /**
+         * This function logs a message in the given category.  Each "{}" in
+         * the message is replaced by the next argument when the message is
+         * written, so nothing is built unless the category is switched on.
+         * @param category
+         * @param message
+         * @param arg
+         */
+        public void log(LogCategory category, String message, Object arg) {
+            mBioteManager.logString(category, getBioteId(), message, arg);
+        }
+        public void log(LogCategory category, String message, Object arg1, Object arg2) {
+            mBioteManager.logString(category, getBioteId(), message, arg1, arg2);
+        }
+        public void log(LogCategory category, String message, Object arg1, Object arg2, Object arg3) {
+            mBioteManager.logString(category, getBioteId(), message, arg1, arg2, arg3);
+        }
+        /**
+         * This function logs a message in the given category along with a
+         * dump of the given atom.
+         * @param category
+         * @param message
+         * @param atom
+         */
+        public void log(LogCategory category, String message, Atom atom) {
+            mBioteManager.logString(category, getBioteId(), message, atom);
+        }
 
         /**
          * This call should only be made from a biote thread.
@@ -288,50 +846,107 @@ public abstract class Biote {
          * control back to the thread so that it can process other biotes.
          */
 	public void __protected_friend_BioteThread__processEvents() {
+            __protected_friend_BioteThread__processEvents(-1);
+        }
+        /**
+         * This call should only be made from a biote thread.  It processes
+         * the pending events like
+         * {@link #__protected_friend_BioteThread__processEvents() processEvents()}
+         * and makes the given worker the biote's home thread if this thread
+         * gets to process the biote.
+         * @param worker The worker slot of the calling thread, or -1 to
+         *               leave the home thread unchanged.
+         */
+	public void __protected_friend_BioteThread__processEvents(int worker) {
+            // Only the thread which moves the biote from QUEUED to PROCESSING
+            // may consume its events.  A biote may sit in more than one ready
+            // queue, and the entries which lose this race are stale and must
+            // have no effect at all.  In particular a terminated biote has
+            // already been removed by the thread which processed it.
+            if (!mProcessingState.compareAndSet(BIOTE_STATE_QUEUED, BIOTE_STATE_PROCESSING)) {
+                return;
+            }
+            if (worker >= 0) {
+                mWorkerAffinity = worker;
+            }
+            mProcessingThread = Thread.currentThread();
             try {
-                // Process up to n events for this biote
-                int eventsLeftToProcess = 10;
-                while ( --eventsLeftToProcess >= 0 ) {
+                // Process events for this biote until its time slice is used up.
+                // Cheap events are handled many at a time, while an expensive
+                // event hands the thread back as soon as it is done.
+                long sliceEnd = System.nanoTime() + mBioteManager.getEventTimeSliceNanos();
+                // Tell the stall watchdog which handler this thread is in.
+                StallWatchdog.Slot slot = mBioteManager.__protected_friend_Biote__watchdogSlot();
+                do {
                     // If the biote is terminating then we should not handle any events
-                    // Otherwise retrieve the next event and mark the biote as handling it
-                    Event msg = null;
-                    synchronized (mStateLock) {
-                        if( BIOTE_STATE_TERMINATING == mProcessingState )
-                            break;
-                        mProcessingState = BIOTE_STATE_PROCESSING;
-                        msg = mRequest.poll();
-                    }
+                    if( BIOTE_STATE_TERMINATING == mProcessingState.get() )
+                        break;
 
                     // Handle the event (if any).  Ensure that failure to process an event
-                    // does not prevent this biote from processing future events
+                    // does not prevent this biote from processing future events.
+                    // High priority events are always taken first.
+                    Mailbox lane = mUrgentRequest.isEmpty() ? mRequest : mUrgentRequest;
+                    Event msg = lane.poll();
                     if (msg == null)
                         break;
-                    stimulate(msg);
-                }
+                    EventType eventType = msg.getEventType();
+                    if (getBatchSubscribers(eventType) != null) {
+                        // Collect the consecutive events with the same name so
+                        // that batch handlers can deal with them in one go.
+                        mBatch.add(msg);
+                        while (mBatch.size() < Constants.EVENT_BATCH_MAX) {
+                            if (lane != mUrgentRequest && !mUrgentRequest.isEmpty())
+                                break;
+                            Event next = lane.pollType(eventType);
+                            if (next == null)
+                                break;
+                            mBatch.add(next);
+                        }
+                        if (slot != null)
+                            slot.begin(this, eventType);
+                        try {
+                            stimulateBatch(mBatch);
+                        }
+                        finally {
+                            if (slot != null)
+                                slot.end();
+                            mBatch.clear();
+                        }
+                    }
+                    else {
+                        if (slot != null)
+                            slot.begin(this, eventType);
+                        try {
+                            stimulate(msg);
+                        }
+                        finally {
+                            if (slot != null)
+                                slot.end();
+                        }
+                    }
+                } while (System.nanoTime() < sliceEnd);
             }
 
             // We must ensure that the state of the biote is valid regardless of how the function terminates
             // If the biote is terminating, then we shutdown now
-            // If there are more events pending, then we must place ourself back in the ready queue
-            // Otherwise this biote is now idle
+            // Otherwise this biote is now idle.  If more events are pending, then
+            // we must place ourself back in the ready queue.  A producer which
+            // enqueued an event after we went idle competes with us for the
+            // IDLE to QUEUED transition so that the biote is scheduled only once.
             finally {
-                boolean shutdown = false;
-                synchronized (mStateLock) {
-                    if( BIOTE_STATE_TERMINATING == mProcessingState ) {
-                        shutdown = true;
-                    }
-                    else if (mRequest.isEmpty()) {
-                        mProcessingState = BIOTE_STATE_IDLE;
-                    }
-                    else {
-                        mProcessingState = BIOTE_STATE_QUEUED;
-                        mBioteManager.__protected_friend_Biote__scheduleBiote(this, mUseBlockingQueue);
-                    }
-                }
-
-                if( shutdown ) {
+                mProcessingThread = null;
+                // Any urgent entry taken before this one is now stale.
+                mUrgentScheduled.set(false);
+                if (!mProcessingState.compareAndSet(BIOTE_STATE_PROCESSING, BIOTE_STATE_IDLE)) {
                     mBioteManager.__protected_friend_Biote__removeBiote(mBioteId);
                 }
+                else if ((!mRequest.isEmpty() || !mUrgentRequest.isEmpty()) &&
+                        mProcessingState.compareAndSet(BIOTE_STATE_IDLE, BIOTE_STATE_QUEUED)) {
+                    mStats.recordReschedule();
+                    mBioteManager.__protected_friend_Biote__scheduleBiote(
+                            this, mUseBlockingQueue,
+                            !mUrgentRequest.isEmpty() && mUrgentScheduled.compareAndSet(false, true));
+                }
             }
 	}
         /**
@@ -340,34 +955,153 @@ public abstract class Biote {
          * with a friend class of the biote manager.  This function appends the
          * given message to the biote's queue of events and schedules the biote's execution.
          * @param msg
-         * @throws Exception
-         */
-        public void __protected_friend_BioteManager__enqueueStimulus(BioteManager bioteManager, Event msg) {
-            boolean dropped = false;
-            boolean schedule = false;
-            
-            synchronized (mStateLock) {
-                // We should not enqueue any events to a terminating biote
-                if( BIOTE_STATE_TERMINATING == mProcessingState ) {
-                    dropped = true;
+         * @return What became of the event.
+         */
+        public DeliveryStatus __protected_friend_BioteManager__enqueueStimulus(BioteManager bioteManager, Event msg) {
+            // We should not enqueue any events to a terminating biote
+            if( BIOTE_STATE_TERMINATING == mProcessingState.get() ) {
+                log(true, "Event '" + msg.getEventName() + "' was dropped because this biote is terminating...");
+                return DeliveryStatus.DROPPED;
+            }
+
+            // If the biote's state is idle then we can put it in the ready queue.
+            // If it is not idle it means the biote is either already queued or
+            // currently processing events and will look at the mailbox again
+            // before it goes idle.
+            if (isUrgent(msg.getEventType())) {
+                offerUrgent(msg);
+                scheduleUrgent(bioteManager);
+                return DeliveryStatus.DELIVERED;
+            }
+            DeliveryStatus status = offerBounded(bioteManager, msg);
+            if (status == DeliveryStatus.DELIVERED &&
+                    mProcessingState.compareAndSet(BIOTE_STATE_IDLE, BIOTE_STATE_QUEUED)) {
+                bioteManager.__protected_friend_Biote__scheduleBiote(this, mUseBlockingQueue);
+            }
+            return status;
+        }
+        /*
+         * Places a normal priority event in the mailbox, applying the overflow
+         * policy if the mailbox is full.
+         */
+        private DeliveryStatus offerBounded(BioteManager bioteManager, Event msg) {
+            if (mRequest.replace(msg)) {
+                conflated(1);
+                return DeliveryStatus.DELIVERED;
+            }
+            int capacity = mMailboxCapacity;
+            if (capacity == 0) {
+                mRequest.offer(msg);
+                return DeliveryStatus.DELIVERED;
+            }
+            if (mRequest.offer(msg, capacity)) {
+                return DeliveryStatus.DELIVERED;
+            }
+            switch (mOverflowPolicy) {
+                case DROP_OLDEST:
+                    do {
+                        if (mRequest.evict() != null) {
+                            dropped();
+                        }
+                    } while (!mRequest.offer(msg, capacity));
+                    return DeliveryStatus.DELIVERED;
+                case BLOCK:
+                    // The biote cannot wait for itself to make room, and the
+                    // timer thread must not hold up every other timer.
+                    if (Thread.currentThread() != mProcessingThread &&
+                            !bioteManager.isTimerThread()) {
+                        long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                        while (System.nanoTime() < deadline) {
+                            LockSupport.parkNanos(Constants.MAILBOX_BLOCK_PARK_NANOSECONDS);
+                            if (mRequest.offer(msg, capacity)) {
+                                return DeliveryStatus.DELIVERED;
+                            }
+                        }
+                    }
+                    dropped();
+                    return DeliveryStatus.DROPPED;
+                case REJECT:
+                    mRejectedEvents.incrementAndGet();
+                    mRejectedStat.sample();
+                    return DeliveryStatus.REJECTED;
+                default:
+                    dropped();
+                    return DeliveryStatus.DROPPED;
+            }
+        }
+        private void offerUrgent(Event msg) {
+            if (mUrgentRequest.replace(msg)) {
+                conflated(1);
+            }
+            else {
+                mUrgentRequest.offer(msg);
+            }
+        }
+        private void conflated(int aCount) {
+            mConflatedStat.sample(aCount);
+        }
+        private void dropped() {
+            mDroppedEvents.incrementAndGet();
+            mDroppedStat.sample();
+        }
+        /*
+         * Schedules this biote after a high priority event was queued.  A biote
+         * which is already waiting in an ordinary ready queue is added to the
+         * urgent queue as well so that it does not wait behind other biotes,
+         * but it is never added to the urgent queue twice.  A biote which is
+         * being processed picks the event up before it goes idle.
+         */
+        private void scheduleUrgent(BioteManager bioteManager) {
+            if (!mUrgentScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            if (mProcessingState.compareAndSet(BIOTE_STATE_IDLE, BIOTE_STATE_QUEUED) ||
+                    mProcessingState.get() == BIOTE_STATE_QUEUED) {
+                bioteManager.__protected_friend_Biote__scheduleBiote(this, mUseBlockingQueue, true);
+            }
+            else {
+                mUrgentScheduled.set(false);
+            }
+        }
+        /**
+         * This function should only be called by the biote manager.  It appends
+         * a batch of messages to the biote's queue of events in one step and
+         * schedules the biote's execution.
+         * @param bioteManager
+         * @param msgs
+         */
+        public void __protected_friend_BioteManager__enqueueStimuli(BioteManager bioteManager, List<Event> msgs) {
+            if( BIOTE_STATE_TERMINATING == mProcessingState.get() ) {
+                log(true, msgs.size() + " events were dropped because this biote is terminating...");
+                return;
+            }
+
+            boolean urgent = false;
+            boolean delivered = true;
+            if (mEventPriorities.length == 0 && mMailboxCapacity == 0) {
+                int replaced = mRequest.offerAll(msgs);
+                if (replaced > 0) {
+                    conflated(replaced);
                 }
-                // Otherwise we can enqueue the event now
-                else {
-                    // If the biote's state is idle then we can put it in the ready queue.
-                    // If it is not idle it means the biote is currently processing an event,
-                    // and so cannot be put in the ready queue
-                    mRequest.add(msg);
-                    if (mProcessingState == BIOTE_STATE_IDLE) {
-                        mProcessingState = BIOTE_STATE_QUEUED;
-                        schedule = true;
+            }
+            else {
+                delivered = false;
+                for (Event msg : msgs) {
+                    if (isUrgent(msg.getEventType())) {
+                        offerUrgent(msg);
+                        urgent = true;
+                    }
+                    else if (offerBounded(bioteManager, msg) == DeliveryStatus.DELIVERED) {
+                        delivered = true;
                     }
                 }
             }
-
-            // If the event is to be scheduled, do so now; if it was dropped, log it
-            if( schedule )
+            if (urgent) {
+                scheduleUrgent(bioteManager);
+            }
+            else if (delivered &&
+                    mProcessingState.compareAndSet(BIOTE_STATE_IDLE, BIOTE_STATE_QUEUED)) {
                 bioteManager.__protected_friend_Biote__scheduleBiote(this, mUseBlockingQueue);
-            else if( dropped )
-                log(true, "Event '" + msg.getEventName() + "' was dropped because this biote is terminating...");
+            }
         }
 };
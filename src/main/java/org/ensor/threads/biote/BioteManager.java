@@ -24,7 +24,6 @@
 
 package org.ensor.threads.biote;
 
-import org.ensor.data.atom.DictionaryAtom;
 import org.ensor.data.atom.ListAtom;
 import org.ensor.data.atom.Atom;
 import java.util.*;
@@ -36,31 +35,37 @@ import java.io.StringWriter;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.ensor.data.atom.log.AtomLogger;
 import org.ensor.java.utilities.StackTrace;
 
 public class BioteManager {
         protected final static Logger mLogger = Logger.getLogger(BioteManager.class .getName()); 
         private final static float                                      SECONDS_PER_NANOSECOND = 1f / 1000000000f;
+        private final static EventType                                  INIT_EVENT = EventType.get("Event-Init");
+        private final static EventType                                  ASK_TIMEOUT_EVENT = EventType.get("Event-Ask-Timeout");
+        private final static int                                        ASK_SHARD_SHIFT = 48;
+        private final static long                                       LOCAL_ADDRESS_MASK = (1L << Constants.BIOTE_NODE_SHIFT) - 1;
     
         private final AtomicBoolean                                     mRunning;
 
         /*
          * This is the list of all biotes indexed by biote ID.
          */
-	private final ConcurrentHashMap<Long,Biote>			mBiotes;
+	private final BioteRegistry                                     mBiotes;
         private final AtomicInteger                                     mBioteIdGenerator;
 
         /* This is the scheduler data structure.  Biotes in this
          * data structure are ready to be processed because they
          * have pending events.  They are removed from this structure
          * when their events have been processed and are added to this
-         * structure when their events are queued.
+         * structure when their events are queued.  Each thread has its
+         * own deque of ready biotes and steals from the others when it
+         * runs out of work.
          */
         private final ConcurrentMap<Long, Long>                         mThreadTimes;
-	private final ConcurrentLinkedQueue<Biote>                      mReadyBiotes;
+        private final ReadyQueue                                        mReadyBiotes;
 	private final int                                               mThreadPoolSize;
         private final ExecutorService                                   mThreadPool;
         
@@ -70,22 +75,99 @@ public class BioteManager {
          * when their events have been processed and are added to this
          * structure when their events are queued.
          */
-        private final ConcurrentLinkedQueue<Biote>                      mReadyBlockingBiotes;
+        private final ReadyQueue                                        mReadyBlockingBiotes;
         private final int                                               mBlockingThreadPoolSize;
         private final ExecutorService                                   mBlockingThreadPool;
+        private final BlockingExecutionMode                             mBlockingExecutionMode;
+
+        /*
+         * This is the amount of time a biote may spend handling events before
+         * its thread moves on to the next ready biote.
+         */
+        private volatile long                                           mEventTimeSliceNanos;
+
+        /*
+         * The executor driving this biote manager when it runs on virtual
+         * time, or null when it runs on its own threads and the system clock.
+         */
+        private final VirtualTimeExecutor                               mVirtualTime;
+
+        /*
+         * The journal every event sent is appended to, or null if events
+         * are not journaled.
+         */
+        private volatile EventJournal                                   mJournal;
+
+        /*
+         * Reports the handlers which run for too long.  There is none under
+         * virtual time.
+         */
+        private final StallWatchdog                                     mWatchdog;
+
+        /*
+         * The shard group this biote manager is a shard of, or null, and the
+         * number of the shard.  The shard number is kept in the upper bits of
+         * the ID of each biote and of each request sent with ask.
+         */
+        private final BioteShardGroup                                   mShardGroup;
+        private final int                                               mShard;
+
+        /*
+         * The node connecting this biote manager to biote managers in other
+         * processes, or null.
+         */
+        private volatile BioteNode                                      mNode;
+
+        /*
+         * Runs CPU heavy jobs handed off by biotes so that they do not hold
+         * up the event handling threads.  There is none under virtual time.
+         */
+        private final ForkJoinPool                                      mComputePool;
+        private final SystemStat                                        mOffloadStat;
+
+        /*
+         * The logging categories switched on, one bit per category, and the
+         * thread which writes the log.
+         */
+        private volatile int                                            mLogCategories;
+        private final LogSink                                           mLogSink;
 
         /*
-         * This is the list of timer tasks.  Timer tasks are executed on a single
-         * timer thread.  Adding or removing a scheduled task is 'lightweight'
-         * and does not start or stop a thread.  Timer tasks should do nothing but
-         * stimulate events.  They should not do heavyweight processing themselves.
+         * This is the list of timers.  Timers are kept in a hashed timing wheel
+         * driven by a single timer thread.  Adding or removing a timer is
+         * 'lightweight' and does not start or stop a thread.  Expired timers
+         * do nothing but stimulate events, and all of the events which expire
+         * together are handed to the biotes as a batch.
          */
-	private final ConcurrentHashMap<Integer,TimerTask>		mTimers;
+	private final ConcurrentHashMap<Integer,TimerWheel.Timeout>	mTimers;
 	private final AtomicInteger					mTimerIds;
-	private       Timer                                             mTimer;
+        private final TimerWheel                                        mTimerWheel;
 
-	private final ConcurrentHashMap<Integer,Boolean>                mPendingBiotes;
-        private ConcurrentHashMap<String, SystemStat> mStats;
+        /*
+         * The topics which biotes publish events to, by name.  Topics are
+         * created the first time they are subscribed to and never removed.
+         */
+        private final ConcurrentHashMap<String, Topic>                  mTopics;
+
+        /*
+         * The requests sent with ask which have not been answered or timed
+         * out yet, by correlation ID.
+         */
+        private final ConcurrentHashMap<Long, PendingAsk>               mAsks;
+        private final AtomicLong                                        mAskIds;
+
+
+        /*
+         * These are the statistics kept by this biote manager.  Statistics are
+         * never removed, so code on hot paths looks them up once and keeps them.
+         */
+        private final ConcurrentHashMap<String, SystemStat>             mStats;
+        private final SystemStat                                        mSendStimulusStat;
+        private final SystemStat                                        mPublishStat;
+        private final SystemStat                                        mStartTimerStat;
+        private final SystemStat                                        mCancelTimerStat;
+        private final SystemStat                                        mTimerLatenessStat;
+        private final SystemStat                                        mTimerMissedStat;
 
         private static final ConcurrentHashMap<String, BioteManager>    mInstances = new ConcurrentHashMap<String, BioteManager>();
 
@@ -99,38 +181,273 @@ public class BioteManager {
                 final String aInstanceId,
                 final int aThreadPoolSize,
                 final int aBlockingThreadPoolSize) {
+            this(aInstanceId, aThreadPoolSize, aBlockingThreadPoolSize,
+                    SchedulerMode.WAKE_ON_ENQUEUE);
+        }
+
+        /**
+         * Creates a Biote manager with the given thread pool sizes.
+         * @param aInstanceId Name of this Biote manager instance.
+         * @param aThreadPoolSize Number of threads handling normal Biotes.
+         * @param aBlockingThreadPoolSize Number of threads handling Biotes
+         *                                which use the blocking queue.
+         * @param aSchedulerMode How idle threads wait for Biotes to become
+         *                       ready.
+         */
+        public BioteManager(
+                final String aInstanceId,
+                final int aThreadPoolSize,
+                final int aBlockingThreadPoolSize,
+                final SchedulerMode aSchedulerMode) {
+            this(aInstanceId, aThreadPoolSize, aBlockingThreadPoolSize,
+                    aSchedulerMode, BlockingExecutionMode.POOLED);
+        }
+
+        /**
+         * Creates a Biote manager with the given thread pool sizes.
+         * @param aInstanceId Name of this Biote manager instance.
+         * @param aThreadPoolSize Number of threads handling normal Biotes.
+         * @param aBlockingThreadPoolSize Number of threads handling Biotes
+         *                                which use the blocking queue.  This
+         *                                is ignored when blocking Biotes run
+         *                                on a thread per batch.
+         * @param aSchedulerMode How idle threads wait for Biotes to become
+         *                       ready.
+         * @param aBlockingExecutionMode How the events of Biotes which use
+         *                               the blocking queue are run.
+         */
+        public BioteManager(
+                final String aInstanceId,
+                final int aThreadPoolSize,
+                final int aBlockingThreadPoolSize,
+                final SchedulerMode aSchedulerMode,
+                final BlockingExecutionMode aBlockingExecutionMode) {
+            this(aInstanceId, aThreadPoolSize, aBlockingThreadPoolSize,
+                    aSchedulerMode, aBlockingExecutionMode, null, null, 0);
+        }
+
+        /*
+         * Creates one shard of a shard group.
+         */
+        BioteManager(
+                final String aInstanceId,
+                final int aThreadPoolSize,
+                final int aBlockingThreadPoolSize,
+                final SchedulerMode aSchedulerMode,
+                final BioteShardGroup aShardGroup,
+                final int aShard) {
+            this(aInstanceId, aThreadPoolSize, aBlockingThreadPoolSize,
+                    aSchedulerMode, BlockingExecutionMode.POOLED, null,
+                    aShardGroup, aShard);
+        }
+
+        /**
+         * Creates a Biote manager which runs on virtual time.  It has no
+         * threads of its own: Biotes and timers only run when the given
+         * executor is told to advance its clock, on the thread which tells it
+         * to.  Each Biote handles one event (or one batch) at a time, so that
+         * the order in which Biotes run depends on nothing but the executor's
+         * seed.
+         * @param aInstanceId Name of this Biote manager instance.
+         * @param aVirtualTime The executor which drives this Biote manager.
+         */
+        public BioteManager(
+                final String aInstanceId,
+                final VirtualTimeExecutor aVirtualTime) {
+            this(aInstanceId, 1, 1, SchedulerMode.WAKE_ON_ENQUEUE,
+                    BlockingExecutionMode.POOLED, aVirtualTime, null, 0);
+        }
+
+        private BioteManager(
+                final String aInstanceId,
+                final int aThreadPoolSize,
+                final int aBlockingThreadPoolSize,
+                final SchedulerMode aSchedulerMode,
+                final BlockingExecutionMode aBlockingExecutionMode,
+                final VirtualTimeExecutor aVirtualTime,
+                final BioteShardGroup aShardGroup,
+                final int aShard) {
                 mInstanceId = aInstanceId;
+                mVirtualTime = aVirtualTime;
+                mShardGroup = aShardGroup;
+                mShard = aShard;
                 
                 mInstances.put(mInstanceId, this);
+                for (LogCategory category : LogCategory.values()) {
+                    if (category.isEnabledByDefault()) {
+                        mLogCategories |= category.mask();
+                    }
+                }
+                mLogSink = new LogSink(mLogger, mInstanceId, Constants.LOG_SINK_CAPACITY);
 		mTimerIds = new AtomicInteger(0);
-		mTimer = new Timer();
-                mBiotes = new ConcurrentHashMap<Long,Biote>();
+                mEventTimeSliceNanos = TimeUnit.MICROSECONDS.toNanos(Constants.EVENT_TIME_SLICE_MICROSECONDS);
+                mBiotes = new BioteRegistry();
                 mBioteIdGenerator = new AtomicInteger(Constants.BIOTE_FIRST_GENERATED_ID);
                 mRunning = new AtomicBoolean(true);
-                mTimers = new ConcurrentHashMap<Integer, TimerTask>();
+                mTimers = new ConcurrentHashMap<Integer, TimerWheel.Timeout>();
+                mTimerWheel = new TimerWheel(
+                        mInstanceId + ":timer",
+                        Constants.TIMER_TICK_NANOSECONDS,
+                        Constants.TIMER_WHEEL_SIZE,
+                        new TimerExpirationHandler(),
+                        mVirtualTime);
+                // The shards of a group share their topics.
+                mTopics = mShardGroup != null ?
+                        mShardGroup.getTopics() : new ConcurrentHashMap<String, Topic>();
+                mAsks = new ConcurrentHashMap<Long, PendingAsk>();
+                mAskIds = new AtomicLong((long) mShard << ASK_SHARD_SHIFT);
                 mStats = new ConcurrentHashMap<String, SystemStat>();
-                // Initialize the normal event handling threads
+                mSendStimulusStat = getStat("BioteManager.java:sendStimulus", false);
+                mPublishStat = getStat("BioteManager.java:publish", false);
+                mStartTimerStat = getStat("BioteManager.java:startTimer", false);
+                mCancelTimerStat = getStat("BioteManager.java:cancelTimer", false);
+                mTimerLatenessStat = getStat("TimerWheel.java:lateness", true);
+                mTimerMissedStat = getStat("TimerWheel.java:missed", false);
                 mThreadTimes = new ConcurrentHashMap<Long, Long>();
-		mReadyBiotes = new ConcurrentLinkedQueue<Biote>();
+                mOffloadStat = getStat("BioteManager.java:offload", true);
+                mBlockingExecutionMode = aBlockingExecutionMode;
+                if (mVirtualTime != null) {
+                    // Under virtual time, the thread advancing the clock runs
+                    // every biote and there are no thread pools.
+                    mThreadPoolSize = 0;
+                    mReadyBiotes = null;
+                    mThreadPool = null;
+                    mBlockingThreadPoolSize = 0;
+                    mReadyBlockingBiotes = null;
+                    mBlockingThreadPool = null;
+                    mEventTimeSliceNanos = 0;
+                    mWatchdog = null;
+                    mComputePool = null;
+                    mVirtualTime.attach(this, mTimerWheel);
+                    return;
+                }
+
+                mWatchdog = new StallWatchdog(this, mInstanceId + ":watchdog");
+                mComputePool = newComputePool();
+
+                // Initialize the normal event handling threads
                 mThreadPoolSize = Math.max(Math.min(aThreadPoolSize, 40), 1);
+                mReadyBiotes = new ReadyQueue(mThreadPoolSize, aSchedulerMode, mRunning);
                 mLogger.warning(mInstanceId + ":Normal thread pool is " + mThreadPoolSize);
 
                 mThreadPool = Executors.newFixedThreadPool(mThreadPoolSize);
 		for (int i = 0; i < mThreadPoolSize; i++) {
-                    mThreadPool.submit(new BioteThread(mReadyBiotes, mThreadTimes, mRunning, this));
+                    mThreadPool.submit(new BioteThread(mReadyBiotes, i, mThreadTimes, mRunning, this));
                 }
                 
                 // Initialize the event handling threads for events that block, and use low cpu
-		mReadyBlockingBiotes = new ConcurrentLinkedQueue<Biote>();
-                mBlockingThreadPoolSize = Math.max(Math.min(aBlockingThreadPoolSize, 40), 1);
-                mLogger.warning(mInstanceId + ":Blocking thread pool is " + mBlockingThreadPoolSize);
-
-                mBlockingThreadPool = Executors.newFixedThreadPool(mBlockingThreadPoolSize);
-		for (int i = 0; i < mBlockingThreadPoolSize; i++)
-                    mBlockingThreadPool.submit(new BioteThread(mReadyBlockingBiotes, null, mRunning, this));
+                if (mBlockingExecutionMode == BlockingExecutionMode.THREAD_PER_BATCH) {
+                    mBlockingThreadPoolSize = 0;
+                    mReadyBlockingBiotes = null;
+                    mBlockingThreadPool = newThreadPerBatchExecutor();
+                }
+                else {
+                    mBlockingThreadPoolSize = Math.max(Math.min(aBlockingThreadPoolSize, 40), 1);
+                    mReadyBlockingBiotes = new ReadyQueue(mBlockingThreadPoolSize, aSchedulerMode, mRunning);
+                    mLogger.warning(mInstanceId + ":Blocking thread pool is " + mBlockingThreadPoolSize);
 
-                mPendingBiotes = new ConcurrentHashMap<Integer,Boolean>();
+                    mBlockingThreadPool = Executors.newFixedThreadPool(mBlockingThreadPoolSize);
+                    for (int i = 0; i < mBlockingThreadPoolSize; i++)
+                        mBlockingThreadPool.submit(new BioteThread(mReadyBlockingBiotes, i, null, mRunning, this));
+                }
 	}
+        /*
+         * Creates the executor used to run each batch of a blocking biote on a
+         * thread of its own.  Virtual threads are only available on newer
+         * Java runtimes, so we look for them by reflection and fall back to a
+         * cached pool of platform threads.
+         */
+        private ExecutorService newThreadPerBatchExecutor() {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                mLogger.warning(mInstanceId + ":Blocking biotes run on virtual threads");
+                return executor;
+            }
+            catch (Exception ex) {
+                mLogger.warning(mInstanceId + ":Blocking biotes run on a cached thread pool");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        /*
+         * Creates the pool for jobs handed off by biotes.  Its threads run
+         * just below normal priority so that a long job gives way to the
+         * event handling threads.
+         */
+        private ForkJoinPool newComputePool() {
+            return new ForkJoinPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                            ForkJoinWorkerThread thread =
+                                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                            thread.setName(mInstanceId + ":compute:" + thread.getPoolIndex());
+                            thread.setPriority(Thread.NORM_PRIORITY - 1);
+                            return thread;
+                        }
+                    },
+                    null,
+                    true);
+        }
+        /**
+         * Sets the time slice for handling events.  A biote keeps handling its
+         * pending events until the time slice is used up, and always handles at
+         * least one event each time it is scheduled.
+         * @param aMicroseconds The time slice in microseconds.
+         */
+        public void setEventTimeSlice(final long aMicroseconds) {
+            mEventTimeSliceNanos = TimeUnit.MICROSECONDS.toNanos(aMicroseconds);
+        }
+        /**
+         * Returns the time slice for handling events.
+         * @return The time slice in nanoseconds.
+         */
+        public long getEventTimeSliceNanos() {
+            return mEventTimeSliceNanos;
+        }
+        /**
+         * Sets how long an event handler may run before the stall watchdog
+         * starts sampling its stack and reports it.
+         * @param aMillis The threshold in milliseconds.
+         */
+        public void setStallThreshold(final long aMillis) {
+            if (mWatchdog != null) {
+                mWatchdog.setThresholdMillis(aMillis);
+            }
+        }
+        /**
+         * Returns the most recent reports of event handlers which ran for
+         * longer than the stall threshold, oldest first.  Each report holds
+         * the event name, the Biote ID and type, how long the handler ran in
+         * microseconds, the number of stack samples taken and the frames seen
+         * most often with their counts.
+         * @return A list of report dictionaries.
+         */
+        public ListAtom getStallReports() {
+            if (mWatchdog == null) {
+                return ListAtom.newAtom();
+            }
+            return mWatchdog.getReports();
+        }
+        StallWatchdog.Slot __protected_friend_Biote__watchdogSlot() {
+            return mWatchdog == null ? null : mWatchdog.slot();
+        }
+        int getWatchdogSlotCount() {
+            return mWatchdog == null ? 0 : mWatchdog.getSlotCount();
+        }
+        void __protected_friend_BlockingBatchTask__releaseWatchdogSlot() {
+            if (mWatchdog != null) {
+                mWatchdog.release();
+            }
+        }
+        /**
+         * Returns how the events of Biotes which use the blocking queue are run.
+         * @return The blocking execution mode.
+         */
+        public BlockingExecutionMode getBlockingExecutionMode() {
+            return mBlockingExecutionMode;
+        }
         @Override
         public Object clone() throws CloneNotSupportedException {
             throw new CloneNotSupportedException();
@@ -164,6 +481,21 @@ public class BioteManager {
         private void doPrivateShutdown() {
                 logString(true, 0, "Beginning BioteManager shutdown sequence...");
                 mRunning.set(false);
+                if (mVirtualTime != null) {
+                    failPendingAsks();
+                    logString(true, 0, "Biote manager is no longer running.  Ther server is effectively down.");
+                    mLogSink.close();
+                    return;
+                }
+                mReadyBiotes.wakeAll();
+                for (Biote b : mBiotes.values()) {
+                    if (b.getRealTimeLane() != null) {
+                        b.getRealTimeLane().stop();
+                    }
+                }
+                if (mReadyBlockingBiotes != null) {
+                    mReadyBlockingBiotes.wakeAll();
+                }
                 try {
                     mThreadPool.shutdown();
                     mThreadPool.awaitTermination(30, TimeUnit.SECONDS);
@@ -182,11 +514,13 @@ public class BioteManager {
                 catch (Exception ex) {
                     mLogger.log(Level.SEVERE, "Exception shutting down", ex);
                 }
-                Timer t = mTimer;
-                mTimer = null;
-                t.cancel();
+                mComputePool.shutdownNow();
+                mTimerWheel.stop();
+                mWatchdog.stop();
+                failPendingAsks();
 
                 logString(true, 0, "Biote manager is no longer running.  Ther server is effectively down.");
+                mLogSink.close();
         }
         
         class ShutdownRunnable implements Runnable {
@@ -202,21 +536,73 @@ public class BioteManager {
 	}
         protected void logString(boolean system, long bioteId, String message) {
             if (!system) return;
-            long threadId = Thread.currentThread().getId();
-            mLogger.info( mInstanceId + ":" + "[" + threadId + "]" + "[" + bioteId + "]" + message);
+            mLogSink.append(bioteId, message, null, null, null, null);
         }
         protected void logString(boolean system, long bioteId, String message, Atom atom) {
             if (!system) return;
-            long threadId = Thread.currentThread().getId();
             if (atom == null) {
-                logString(system, bioteId, message + " : (null)");
+                mLogSink.append(bioteId, message + " : (null)", null, null, null, null);
             } else {
-                AtomLogger.dump(mLogger,
-                        mInstanceId + ":" + "[" + threadId + "]" +
-                                "[" + bioteId + "]" + message,
-                        atom);
+                mLogSink.append(bioteId, message, null, null, null, atom);
+            }
+        }
+        /**
+         * Switches a logging category on or off.
+         * @param aCategory The category to switch.
+         * @param aEnabled True to log the messages of the category.
+         */
+        public synchronized void setLogEnabled(final LogCategory aCategory, final boolean aEnabled) {
+            if (aEnabled) {
+                mLogCategories |= aCategory.mask();
+            }
+            else {
+                mLogCategories &= ~aCategory.mask();
             }
         }
+        /**
+         * Returns true if the given logging category is switched on.  Callers
+         * which need to do work to produce the arguments of a message should
+         * check this first.
+         * @param aCategory The category to check.
+         * @return True if the messages of the category are logged.
+         */
+        public boolean isLogEnabled(final LogCategory aCategory) {
+            return (mLogCategories & aCategory.mask()) != 0;
+        }
+        /**
+         * Returns the number of log messages dropped because the log thread
+         * could not keep up.
+         * @return The number of dropped log messages.
+         */
+        public long getDroppedLogCount() {
+            return mLogSink.getDroppedCount();
+        }
+        /*
+         * Logs a message in the given category.  Each "{}" in the message is
+         * replaced by the next argument on the log thread, so nothing is
+         * built or allocated when the category is off.  Primitive arguments
+         * are boxed by the caller, so check isLogEnabled before passing them.
+         */
+        protected void logString(LogCategory category, long bioteId, String message) {
+            if ((mLogCategories & category.mask()) == 0) return;
+            mLogSink.append(bioteId, message, null, null, null, null);
+        }
+        protected void logString(LogCategory category, long bioteId, String message, Object arg) {
+            if ((mLogCategories & category.mask()) == 0) return;
+            mLogSink.append(bioteId, message, arg, null, null, null);
+        }
+        protected void logString(LogCategory category, long bioteId, String message, Object arg1, Object arg2) {
+            if ((mLogCategories & category.mask()) == 0) return;
+            mLogSink.append(bioteId, message, arg1, arg2, null, null);
+        }
+        protected void logString(LogCategory category, long bioteId, String message, Object arg1, Object arg2, Object arg3) {
+            if ((mLogCategories & category.mask()) == 0) return;
+            mLogSink.append(bioteId, message, arg1, arg2, arg3, null);
+        }
+        protected void logString(LogCategory category, long bioteId, String message, Atom atom) {
+            if ((mLogCategories & category.mask()) == 0) return;
+            logString(true, bioteId, message, atom);
+        }
 
         //=============================================================================================
         /**
@@ -226,9 +612,24 @@ public class BioteManager {
          * @throws Exception
          */
         public int createBiote( Biote aBiote ) throws Exception {
-            int newBioteId = mBioteIdGenerator.addAndGet(1);
-            createBiote(aBiote, newBioteId);
-            return newBioteId;
+            // Generated IDs wrap around once they run out, skipping the IDs
+            // of biotes which are still alive.
+            for (int i = 0; i < Constants.BIOTE_MAX_ID; i++) {
+                int newBioteId = (mShard << Constants.BIOTE_SHARD_SHIFT) | nextGeneratedId();
+                if( mBiotes.get(newBioteId & Constants.BIOTE_MAX_ID) == null &&
+                        addBiote(aBiote, newBioteId) )
+                    return newBioteId;
+            }
+            throw new IllegalStateException("There are no free biote IDs left.");
+        }
+        private int nextGeneratedId() {
+            int id;
+            int next;
+            do {
+                id = mBioteIdGenerator.get();
+                next = id >= Constants.BIOTE_MAX_ID ? Constants.BIOTE_FIRST_GENERATED_ID + 1 : id + 1;
+            } while (!mBioteIdGenerator.compareAndSet(id, next));
+            return next;
         }
 
         //=============================================================================================
@@ -241,35 +642,44 @@ public class BioteManager {
          */
         protected void createBiote( Biote aBiote, int aBioteId ) throws Exception {
             // We need to ensure that two biotes are never created with the same biote id.
-            // Using putIfAbsent atomically replaces the value in the pending biotes table with true, and
-            // returns the old value.  If we get back true, then someone is already creating the biote, and
-            // this creation attempt is an error.
-            Boolean pendingCreation = mPendingBiotes.putIfAbsent(aBioteId, Boolean.TRUE);
-            if( pendingCreation != null )
-                throw new IllegalArgumentException("The is already a biote being created with id: " + aBioteId);
-            
-            // We now know that noone else can attempt to create the biote
-            // The very last thing we do is remove the entry from the pending biotes map; ensure that happens
-            try {
-                // If the biote already exists, this creation attempt is a failure.
-                // We don't need to worry about the biote being added to the map by others during this function
-                // since it is impossible for anyone else to create the biote right now
-                if( mBiotes.containsKey(aBioteId) )
-                    throw new IllegalArgumentException("The is already an existing biote with id: " + aBioteId);
+            // The biote table adds the biote only if there is no biote with that id yet,
+            // and does so atomically, so at most one creation attempt can succeed.
+            if( (aBioteId >>> Constants.BIOTE_SHARD_SHIFT) != mShard )
+                throw new IllegalArgumentException("Biote ID " + aBioteId + " does not belong to shard " + mShard);
+            if( !addBiote(aBiote, aBioteId) )
+                throw new IllegalArgumentException("The is already an existing biote with id: " + aBioteId);
+        }
+        /*
+         * Adds the biote to the biote table under the given ID and tells it to
+         * initialize itself.  Returns false if the ID is already taken.
+         */
+        private boolean addBiote( Biote aBiote, int aBioteId ) {
+            aBiote.setBioteId(aBioteId);
 
-                aBiote.setBioteId(aBioteId);
-                
-                // Create the biote and add it to the biote table
-                addBiote(aBiote);
-            }
-            finally {
-                mPendingBiotes.remove(aBioteId);
+            // A real time biote gets a thread of its own, except under virtual
+            // time where there is only one thread.  The thread must be there
+            // before anyone can send the biote an event.
+            if( aBiote.isRealTime() && mVirtualTime == null )
+                aBiote.setRealTimeLane(new RealTimeLane(this, aBiote));
+            if( !mBiotes.add(aBioteId & Constants.BIOTE_MAX_ID, aBiote) ) {
+                if( aBiote.getRealTimeLane() != null ) {
+                    aBiote.getRealTimeLane().stop();
+                    aBiote.setRealTimeLane(null);
+                }
+                return false;
             }
 
             // If there were no errors, then the biote should have been created.
             // We no need to tell it to inialize itself
-            Event initEvent = new Event("Event-Init");
+            Event initEvent = new Event(INIT_EVENT);
             sendStimulus(aBioteId, initEvent, aBioteId);
+            return true;
+        }
+        /*
+         * Returns the number of slots in the biote table.
+         */
+        int getBioteTableSize() {
+            return mBiotes.capacity();
         }
 
         //=============================================================================================
@@ -283,11 +693,14 @@ public class BioteManager {
             }
         }
 
-	private void addBiote(Biote b) {
-		mBiotes.put(b.getBioteId(), b);
-	}
         protected void __protected_friend_Biote__removeBiote(long bioteId) {
-            Biote biote = mBiotes.remove(bioteId);
+            Biote biote = mBiotes.remove(bioteId & Constants.BIOTE_MAX_ID);
+            if (biote != null && biote.getRealTimeLane() != null) {
+                biote.getRealTimeLane().stop();
+            }
+            for (Topic topic : mTopics.values()) {
+                topic.remove(bioteId);
+            }
             logString(true, bioteId, "Biote is now destroyed...");
         }
         public int getBioteCount() {
@@ -302,28 +715,493 @@ public class BioteManager {
          * @return Returns false if the biote does not exist and returns true if the biote existed so that the event could be sent.
          */
 	public boolean sendStimulus(long bioteId, Event msg, long sourceBioteId) {
-                Biote b = mBiotes.get(bioteId);
+                return deliverStimulus(bioteId, msg, sourceBioteId) != DeliveryStatus.NO_SUCH_BIOTE;
+        }
+        /**
+         * This function sends a message to a biote given by the biote ID specified, and
+         * reports whether the message was placed on the target biote's message queue.  A
+         * message may be dropped or rejected if the target biote's queue is full.
+         * @param bioteId Biote ID of the biote that should receive the message.
+         * @param msg Message to be sent.
+         * @param sourceBioteId Biote ID of the biote that is sending the message.
+         * @return Returns what became of the message.
+         */
+        public DeliveryStatus deliverStimulus(long bioteId, Event msg, long sourceBioteId) {
+                if ((bioteId >>> Constants.BIOTE_NODE_SHIFT) != 0) {
+                    BioteNode node = mNode;
+                    if (node != null && BioteNode.nodeOf(bioteId) != node.getNodeId()) {
+                        return node.send(bioteId, msg, remoteSource(node, sourceBioteId));
+                    }
+                    // An address on this node.
+                    bioteId &= LOCAL_ADDRESS_MASK;
+                }
+                Biote b = findBiote(bioteId);
                 if (b == null) {
                     logString(true, sourceBioteId, "Dropping event: '" + msg.getEventName() + "' to non-existent biote: " + bioteId);
+                    return DeliveryStatus.NO_SUCH_BIOTE;
+                }
+                mSendStimulusStat.sample();
+                EventJournal journal = mJournal;
+                if (journal != null) {
+                    journal.append(currentTimeMillis(), sourceBioteId, bioteId, msg, false);
+                }
+                Biote targetBiote = getTargetBiote(b, msg, sourceBioteId);
+                DeliveryStatus status = targetBiote.__protected_friend_BioteManager__enqueueStimulus(
+                        targetBiote.getBioteManager(), msg);
+                if (isLogEnabled(LogCategory.BIOTE_MANAGER)) {
+                    logString(LogCategory.BIOTE_MANAGER, targetBiote.getBioteId(), "BioteManager.sendStimulus:{}", msg.getEventName());
+                    logString(LogCategory.BIOTE_MANAGER, targetBiote.getBioteId(), "BioteManager.sendStimulus", msg.getData());
+                }
+                return status;
+        }
+        /**
+         * This function sends a batch of messages to the biote given by the biote ID
+         * specified.  Consecutive messages which are routed to the same biote are
+         * placed on that biote's message queue in a single step.
+         * @param bioteId Biote ID of the biote that should receive the messages.
+         * @param msgs Messages to be sent, in order.
+         * @param sourceBioteId Biote ID of the biote that is sending the messages.
+         * @return Returns false if the biote does not exist and returns true if the biote existed so that the events could be sent.
+         */
+        public boolean sendStimuli(long bioteId, List<Event> msgs, long sourceBioteId) {
+                return sendStimuli(bioteId, msgs, sourceBioteId, false);
+        }
+        private boolean sendStimuli(long bioteId, List<Event> msgs, long sourceBioteId, boolean fromTimer) {
+                if ((bioteId >>> Constants.BIOTE_NODE_SHIFT) != 0) {
+                    BioteNode node = mNode;
+                    if (node != null && BioteNode.nodeOf(bioteId) != node.getNodeId()) {
+                        boolean sent = true;
+                        for (int i = 0; i < msgs.size(); i++) {
+                            sent &= node.send(bioteId, msgs.get(i), remoteSource(node, sourceBioteId))
+                                    != DeliveryStatus.NO_SUCH_BIOTE;
+                        }
+                        return sent;
+                    }
+                    bioteId &= LOCAL_ADDRESS_MASK;
+                }
+                Biote b = findBiote(bioteId);
+                if (b == null) {
+                    logString(true, sourceBioteId, "Dropping " + msgs.size() + " events to non-existent biote: " + bioteId);
                     return false;
                 }
-                sampleStat("BioteManager.java:sendStimulus");
-                long targetBioteId = b.getTargetBioteId(msg.getEventName());
-                Biote targetBiote = mBiotes.get(targetBioteId);
+                mSendStimulusStat.sample(msgs.size());
+                EventJournal journal = mJournal;
+                if (journal != null) {
+                    long now = currentTimeMillis();
+                    for (int i = 0; i < msgs.size(); i++) {
+                        journal.append(now, sourceBioteId, bioteId, msgs.get(i), fromTimer);
+                    }
+                }
+                Biote runTarget = null;
+                int runStart = 0;
+                for (int i = 0; i < msgs.size(); i++) {
+                    Biote targetBiote = getTargetBiote(b, msgs.get(i), sourceBioteId);
+                    if (targetBiote != runTarget) {
+                        if (runTarget != null) {
+                            runTarget.__protected_friend_BioteManager__enqueueStimuli(
+                                    runTarget.getBioteManager(), msgs.subList(runStart, i));
+                        }
+                        runTarget = targetBiote;
+                        runStart = i;
+                    }
+                }
+                if (runTarget != null) {
+                    runTarget.__protected_friend_BioteManager__enqueueStimuli(
+                            runTarget.getBioteManager(), msgs.subList(runStart, msgs.size()));
+                }
+                return true;
+        }
+        /*
+         * Returns the address by which a biote on another node reaches the
+         * given source biote.
+         */
+        private static long remoteSource(BioteNode node, long sourceBioteId) {
+                if (sourceBioteId == 0 || (sourceBioteId >>> Constants.BIOTE_NODE_SHIFT) != 0) {
+                    return sourceBioteId;
+                }
+                return node.address(sourceBioteId);
+        }
+        /**
+         * Connects this biote manager to other processes through the given
+         * node.  This is called by the node itself.
+         * @param node The node, or null.
+         */
+        void setNode(BioteNode node) {
+            mNode = node;
+        }
+        /**
+         * Returns the node connecting this biote manager to other processes.
+         * @return The node, or null if this biote manager only reaches its
+         *         own biotes.
+         */
+        public BioteNode getNode() {
+            return mNode;
+        }
+        /*
+         * Returns the biote with the given ID, which may belong to another
+         * shard of this biote manager's shard group.  The biote is looked up
+         * in the table of the shard which owns it, without any locking.
+         */
+        private Biote findBiote(long bioteId) {
+                int shard = (int) (bioteId >>> Constants.BIOTE_SHARD_SHIFT);
+                if (shard == mShard) {
+                    return mBiotes.get(bioteId & Constants.BIOTE_MAX_ID);
+                }
+                BioteManager owner = mShardGroup == null ? null : mShardGroup.getShardOf(bioteId);
+                return owner == null ? null : owner.mBiotes.get(bioteId & Constants.BIOTE_MAX_ID);
+        }
+        private Biote getTargetBiote(Biote b, Event msg, long sourceBioteId) {
+                if (b instanceof RouterBiote) {
+                    Biote replica = ((RouterBiote) b).selectReplica(msg);
+                    if (replica != null) {
+                        return replica;
+                    }
+                }
+                long targetBioteId = b.getTargetBioteId(msg.getEventType());
+                if (targetBioteId == b.getBioteId()) {
+                    return b;
+                }
+                Biote targetBiote = findBiote(targetBioteId);
                 if (targetBiote == null) {
-                    logString(true, sourceBioteId, "Event: '" + msg.getEventName() + "' should have been routed to biote: " + targetBioteId + " which did not exist.  Sending to biote " + bioteId + " instead.");
+                    logString(true, sourceBioteId, "Event: '" + msg.getEventName() + "' should have been routed to biote: " + targetBioteId + " which did not exist.  Sending to biote " + b.getBioteId() + " instead.");
                     targetBiote = b;
                 }
-                targetBiote.__protected_friend_BioteManager__enqueueStimulus(this, msg);
-                logString(Constants.LOG_BIOTE_MANAGER, targetBiote.getBioteId(), "BioteManager.sendStimulus:" + msg.getEventName());
-                logString(Constants.LOG_BIOTE_MANAGER, targetBiote.getBioteId(), "BioteManager.sendStimulus", msg.getData());
+                return targetBiote;
+        }
+        /**
+         * Starts appending every event sent through this biote manager to the
+         * given journal, or stops journaling if the journal is null.  The
+         * caller remains responsible for closing the journal.
+         * @param journal The journal, or null.
+         */
+        public void setJournal(EventJournal journal) {
+            mJournal = journal;
+        }
+        /**
+         * Returns the journal events are appended to.
+         * @return The journal, or null if events are not journaled.
+         */
+        public EventJournal getJournal() {
+            return mJournal;
+        }
+        /**
+         * Subscribes a biote to a topic.  Every event published to the topic
+         * from then on is sent to the biote, until it unsubscribes or is
+         * destroyed.
+         * @param topicName Name of the topic.
+         * @param bioteId Biote ID of the biote to subscribe.
+         * @return Returns false if the biote was already subscribed to the topic.
+         */
+        public boolean subscribeTopic(String topicName, long bioteId) {
+            Topic topic = mTopics.get(topicName);
+            if (topic == null) {
+                Topic newTopic = new Topic(topicName);
+                topic = mTopics.putIfAbsent(topicName, newTopic);
+                if (topic == null) topic = newTopic;
+            }
+            return topic.add(bioteId);
+        }
+        /**
+         * Unsubscribes a biote from a topic.
+         * @param topicName Name of the topic.
+         * @param bioteId Biote ID of the biote to unsubscribe.
+         * @return Returns false if the biote was not subscribed to the topic.
+         */
+        public boolean unsubscribeTopic(String topicName, long bioteId) {
+            Topic topic = mTopics.get(topicName);
+            return topic != null && topic.remove(bioteId);
+        }
+        /**
+         * Returns the number of biotes subscribed to a topic.  Publishers may
+         * use this to skip building events nobody will receive.
+         * @param topicName Name of the topic.
+         * @return The number of subscribed biotes.
+         */
+        public int getSubscriberCount(String topicName) {
+            Topic topic = mTopics.get(topicName);
+            return topic == null ? 0 : topic.getSubscribers().length;
+        }
+        /**
+         * This function sends a message to every biote subscribed to the given
+         * topic.  The same event is placed on each subscriber's message queue, so
+         * its data is neither copied nor converted once per subscriber.  Events
+         * must therefore not be modified once they are published.  Each
+         * subscriber's routing, priority and queue capacity apply as they would
+         * to {@link #sendStimulus sendStimulus}.
+         * @param topicName Name of the topic.
+         * @param msg Message to be published.
+         * @param sourceBioteId Biote ID of the biote that is publishing the message.
+         * @return Returns the number of subscribers whose queue the message was placed on.
+         */
+        public int publish(String topicName, Event msg, long sourceBioteId) {
+            Topic topic = mTopics.get(topicName);
+            if (topic == null) {
+                return 0;
+            }
+            long[] subscribers = topic.getSubscribers();
+            mPublishStat.sample();
+            int delivered = 0;
+            for (int i = 0; i < subscribers.length; i++) {
+                if (deliverStimulus(subscribers[i], msg, sourceBioteId) == DeliveryStatus.DELIVERED) {
+                    delivered++;
+                }
+            }
+            return delivered;
+        }
+        /**
+         * This function sends a request to a biote and returns a future which
+         * completes with the biote's reply.  The event is sent as with
+         * {@link #sendStimulus sendStimulus}, carrying a correlation ID which the
+         * receiving biote passes back through {@link #reply reply}.  The future
+         * fails with a {@link TimeoutException} if there is no reply within the
+         * given time, and with an {@link IllegalStateException} if the request
+         * could not be placed on the biote's queue.
+         *
+         * Whatever is chained to the future runs on the thread which completes
+         * it, which is usually the replying biote's thread.  A biote asking
+         * another biote should therefore only send itself the reply from there
+         * rather than touch its own state.
+         * @param bioteId Biote ID of the biote that should receive the request.
+         * @param msg Request to be sent.
+         * @param timeoutMillis How long to wait for a reply, in milliseconds.
+         * @param sourceBioteId Biote ID of the biote that is sending the request.
+         * @return A future which completes with the reply.
+         */
+        public CompletableFuture<Event> ask(long bioteId, Event msg, int timeoutMillis, long sourceBioteId) {
+            long correlationId = mAskIds.incrementAndGet();
+            PendingAsk pending = new PendingAsk();
+            mAsks.put(correlationId, pending);
+            pending.mTimerId = startTimer(0, timeoutMillis,
+                    new Event(ASK_TIMEOUT_EVENT, null, null, correlationId), false);
+            DeliveryStatus status = deliverStimulus(bioteId, new Event(msg, correlationId), sourceBioteId);
+            if (status != DeliveryStatus.DELIVERED) {
+                failAsk(correlationId, new IllegalStateException("Request '" +
+                        msg.getEventName() + "' to biote " + bioteId +
+                        " was not delivered: " + status));
+            }
+            return pending.mFuture;
+        }
+        /**
+         * This function answers a request sent with {@link #ask ask} by
+         * completing the asker's future with the given reply.
+         * @param request The request being answered.
+         * @param response The reply.
+         * @return Returns false if the event is not a request, or if the request
+         *         was already answered or has timed out.
+         */
+        public boolean reply(Event request, Event response) {
+            long correlationId = request.getCorrelationId();
+            int shard = (int) (correlationId >>> ASK_SHARD_SHIFT);
+            if (correlationId != 0 && shard != mShard) {
+                // The request was asked through another shard.
+                BioteManager owner = mShardGroup == null ? null : mShardGroup.getShard(shard);
+                return owner != null && owner.reply(request, response);
+            }
+            PendingAsk pending = correlationId == 0 ?
+                    null : mAsks.remove(correlationId);
+            if (pending == null) {
+                return false;
+            }
+            cancelTimer(pending.mTimerId);
+            return pending.mFuture.complete(response);
+        }
+        private void failPendingAsks() {
+            for (Long correlationId : mAsks.keySet()) {
+                failAsk(correlationId, new IllegalStateException(
+                        "The biote manager was shut down before the request was answered."));
+            }
+        }
+        private void failAsk(long correlationId, Throwable cause) {
+            PendingAsk pending = mAsks.remove(correlationId);
+            if (pending != null) {
+                cancelTimer(pending.mTimerId);
+                pending.mFuture.completeExceptionally(cause);
+            }
+        }
+        /**
+         * This function runs a job on the compute pool and sends its result
+         * back to a biote as an event.  The result is the payload of an event
+         * with the given name, read with {@link Event#getPayload getPayload}.
+         * If the job throws, the exception is the payload of an event with the
+         * failure name instead, or is logged if no failure name is given.
+         *
+         * The job runs on another thread while the biote carries on handling
+         * events, so it must not touch the biote's state.  Under virtual time
+         * the job runs right away on the calling thread.
+         *
+         * The time each job takes is kept in the histogram statistic
+         * "BioteManager.java:offload", in microseconds.
+         * @param <T> The type of the result.
+         * @param job The job to run.
+         * @param resultEventName Name of the event which carries the result.
+         * @param failureEventName Name of the event which carries the
+         *                         exception, or null.
+         * @param bioteId Biote ID of the biote which receives the result.
+         * @return A future for the result, which may be used to cancel the
+         *         job.  A job cancelled before it finishes sends no event,
+         *         even if it was already running; a job which has sent its
+         *         event can no longer be cancelled.
+         */
+        public <T> Future<T> offload(
+                final Callable<T> job,
+                final String resultEventName,
+                final String failureEventName,
+                final long bioteId) {
+            final EventType resultType = EventType.get(resultEventName);
+            final EventType failureType = failureEventName == null ?
+                    null : EventType.get(failureEventName);
+            final OffloadFuture<T> future = new OffloadFuture<T>();
+            ForkJoinTask<T> task = ForkJoinTask.adapt(new Callable<T>() {
+                public T call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        T result = job.call();
+                        if (future.settle()) {
+                            deliverStimulus(bioteId, new Event(resultType, result, null), bioteId);
+                        }
+                        return result;
+                    }
+                    catch (Exception ex) {
+                        if (future.settle()) {
+                            if (failureType != null) {
+                                deliverStimulus(bioteId, new Event(failureType, ex, null), bioteId);
+                            }
+                            else {
+                                logString(true, bioteId, "Offloaded job for '" + resultEventName +
+                                        "' failed: " + StackTrace.getStackTrace(ex));
+                            }
+                        }
+                        throw ex;
+                    }
+                    finally {
+                        mOffloadStat.sample(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                }
+            });
+            future.mTask = task;
+            if (mVirtualTime != null) {
+                task.quietlyInvoke();
+            }
+            else {
+                mComputePool.execute(task);
+            }
+            return future;
+        }
+        /*
+         * The future of an offloaded job.  Cancelling the job and sending its
+         * outcome race to settle the job, so a cancelled job never sends its
+         * event and a job which has sent its event cannot be cancelled.
+         */
+        static final class OffloadFuture<T> implements Future<T> {
+            private final AtomicBoolean         mSettled = new AtomicBoolean(false);
+            private volatile boolean            mCancelled;
+            volatile ForkJoinTask<T>            mTask;
+
+            boolean settle() {
+                return mSettled.compareAndSet(false, true);
+            }
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (!settle()) {
+                    return false;
+                }
+                mCancelled = true;
+                mTask.cancel(mayInterruptIfRunning);
                 return true;
+            }
+            public boolean isCancelled() {
+                return mCancelled;
+            }
+            public boolean isDone() {
+                return mCancelled || mTask.isDone();
+            }
+            public T get() throws InterruptedException, ExecutionException {
+                if (mCancelled) {
+                    throw new CancellationException();
+                }
+                return mTask.get();
+            }
+            public T get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                if (mCancelled) {
+                    throw new CancellationException();
+                }
+                return mTask.get(timeout, unit);
+            }
+        }
+        /*
+         * A request sent with ask, and the timer which fails it if it is not
+         * answered in time.
+         */
+        static class PendingAsk {
+            final CompletableFuture<Event>      mFuture = new CompletableFuture<Event>();
+            volatile int                        mTimerId;
+        }
+        /*
+         * Returns true if called from the thread which expires timers.  Under
+         * virtual time, the one thread which runs anything also runs timers.
+         */
+        boolean isTimerThread() {
+            if (mShardGroup != null) {
+                return mShardGroup.isTimerThread();
+            }
+            return mVirtualTime != null || mTimerWheel.isTimerThread();
+        }
+        boolean isOwnTimerThread() {
+            return mTimerWheel.isTimerThread();
+        }
+        /**
+         * Returns the shard group this biote manager is a shard of.
+         * @return The shard group, or null if this biote manager is not
+         *         sharded.
+         */
+        public BioteShardGroup getShardGroup() {
+            return mShardGroup;
+        }
+        /**
+         * Returns the number of this biote manager's shard, which is kept in
+         * the upper bits of the IDs of its biotes.  A biote manager which is
+         * not sharded is shard 0.
+         * @return The shard number.
+         */
+        public int getShard() {
+            return mShard;
+        }
+        /**
+         * Returns the current time in milliseconds.  This is the system clock,
+         * or the virtual clock when this biote manager runs on virtual time.
+         * Biotes should use this rather than the system clock so that they
+         * behave the same under virtual time.
+         * @return The current time in milliseconds.
+         */
+        public long currentTimeMillis() {
+            return mVirtualTime == null ?
+                    System.currentTimeMillis() : mVirtualTime.currentTimeMillis();
         }
         protected void __protected_friend_Biote__scheduleBiote(Biote b, boolean useBlockingQueue) {
-            if( useBlockingQueue )
-                mReadyBlockingBiotes.add(b);
-            else
-                mReadyBiotes.add(b);
+            __protected_friend_Biote__scheduleBiote(b, useBlockingQueue, false);
+        }
+        /*
+         * Places the biote in the ready queue.  An urgent biote has high priority
+         * events waiting and is taken ahead of every other ready biote.
+         */
+        protected void __protected_friend_Biote__scheduleBiote(Biote b, boolean useBlockingQueue, boolean urgent) {
+            RealTimeLane lane = b.getRealTimeLane();
+            if( mVirtualTime != null )
+                mVirtualTime.schedule(b, urgent);
+            else if( lane != null )
+                lane.schedule();
+            else if( !useBlockingQueue )
+                mReadyBiotes.add(b, urgent);
+            else if( mReadyBlockingBiotes != null )
+                mReadyBlockingBiotes.add(b, urgent);
+            else {
+                try {
+                    mBlockingThreadPool.execute(new BlockingBatchTask(b, this));
+                }
+                catch (RejectedExecutionException ex) {
+                    logString(true, b.getBioteId(), "Biote was not scheduled because the biote manager is shutting down.");
+                }
+            }
         }
         /**
          * Starts a timer for the given Biote ID.  When the timer expires,
@@ -349,17 +1227,12 @@ public class BioteManager {
          */
 	public int startTimer(long bioteId, int delay, Event msg, boolean repeating) {
             int timerId = mTimerIds.addAndGet(1);
-            TimerTask task = new StimulateEventTask(bioteId, msg, repeating, timerId, this);
-            mTimers.put(timerId, task);
-            sampleStat("BioteManager.java:startTimer");
-            if (mTimer != null) {
-                if (repeating) {
-                        mTimer.schedule(task, delay, delay);
-                }
-                else {
-                        mTimer.schedule(task, delay);
-                }
-            }
+            long delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+            TimerWheel.Timeout timeout = mTimerWheel.newTimeout(
+                    timerId, bioteId, msg, delayNanos, repeating ? delayNanos : 0);
+            mTimers.put(timerId, timeout);
+            mStartTimerStat.sample();
+            mTimerWheel.schedule(timeout);
             return timerId;
 	}
         /**
@@ -368,165 +1241,162 @@ public class BioteManager {
          * @param timerId
          */
 	public void cancelTimer(int timerId) {
-            sampleStat("BioteManager.java:cancelTimer");
-            TimerTask task = mTimers.remove(timerId);
-            if (task == null) {
+            mCancelTimerStat.sample();
+            TimerWheel.Timeout timeout = mTimers.remove(timerId);
+            if (timeout == null) {
                     return;
             }
-            task.cancel();
+            mTimerWheel.cancel(timeout);
 	}
+        /**
+         * This class receives the timers which expired during one pass of the
+         * timer wheel.  It records how late each timer was handed over and
+         * sends the timer events to each biote as one batch.  If a biote no
+         * longer exists, its timers are cancelled.
+         */
+        class TimerExpirationHandler implements TimerWheel.IExpirationHandler {
+            public void expire(List<TimerWheel.Timeout> aExpired) {
+                Map<Long, List<TimerWheel.Timeout>> byBiote =
+                        new LinkedHashMap<Long, List<TimerWheel.Timeout>>();
+                for (TimerWheel.Timeout t : aExpired) {
+                    mTimerLatenessStat.sample((int) TimeUnit.NANOSECONDS.toMicros(t.getLateness()));
+                    if (t.getMissed() > 0) {
+                        mTimerMissedStat.sample(t.getMissed());
+                    }
+                    if (!t.isRepeating()) {
+                        mTimers.remove(t.getTimerId());
+                    }
+                    if (t.getEvent().getEventType() == ASK_TIMEOUT_EVENT) {
+                        failAsk(t.getEvent().getCorrelationId(), new TimeoutException(
+                                "No reply to the request within the timeout."));
+                        continue;
+                    }
+                    List<TimerWheel.Timeout> timeouts = byBiote.get(t.getBioteId());
+                    if (timeouts == null) {
+                        timeouts = new ArrayList<TimerWheel.Timeout>();
+                        byBiote.put(t.getBioteId(), timeouts);
+                    }
+                    timeouts.add(t);
+                }
+                for (Map.Entry<Long, List<TimerWheel.Timeout>> entry : byBiote.entrySet()) {
+                    long bioteId = entry.getKey();
+                    List<TimerWheel.Timeout> timeouts = entry.getValue();
+                    List<Event> events = new ArrayList<Event>(timeouts.size());
+                    for (TimerWheel.Timeout t : timeouts) {
+                        events.add(t.getEvent());
+                    }
+                    try {
+                        if (!sendStimuli(bioteId, events, bioteId, true)) {
+                            for (TimerWheel.Timeout t : timeouts) {
+                                cancelTimer(t.getTimerId());
+                            }
+                        }
+                    }
+                    catch (Exception ex) {
+                        logString(true, bioteId,
+                                "TimerExpirationHandler:Exception -> " +
+                                        ex.toString() + "\n\r" +
+                                StackTrace.getStackTrace(ex));
+                    }
+                    catch (AssertionError ex) {
+                        logString(true, bioteId,
+                                "BioteManager:Error -> " +
+                                        ex.toString() + "\n\r" +
+                                StackTrace.getStackTrace(ex));
+                        shutdown();
+                    }
+                }
+            }
+        }
+        /*
+         * Returns the statistic with the given name, creating it the first time
+         * it is asked for.  A histogram statistic also keeps the distribution of
+         * its samples.
+         */
+        SystemStat getStat(String statName, boolean histogram) {
+            SystemStat stat = mStats.get(statName);
+            if (stat == null) {
+                SystemStat newStat = new SystemStat(statName, histogram);
+                stat = mStats.putIfAbsent(statName, newStat);
+                if (stat == null) stat = newStat;
+            }
+            return stat;
+        }
         public void sampleStat(String statName) {
             sampleStat(statName, 1);
         }
         public void sampleStat(String statName, int value) {
-            SystemStat newStat = new SystemStat(statName);
-            SystemStat stat = mStats.putIfAbsent(statName, newStat);
-            if (stat == null) stat = newStat;
-            synchronized (stat) {
-                stat.sample(value);
+            getStat(statName, false).sample(value);
+        }
+        /**
+         * Samples a value, such as a latency, whose distribution is of interest.
+         * When flushed, the statistic reports percentiles of the values as well
+         * as their minimum, maximum and total.
+         * @param statName Name of the statistic.
+         * @param value Value to sample.
+         */
+        public void sampleHistogram(String statName, long value) {
+            getStat(statName, true).sample(value);
+        }
+        /**
+         * Returns a snapshot of the scheduling statistics of every biote.  Each
+         * biote is described by a dictionary holding its ID and class, the
+         * number of events waiting in its mailboxes, its mailbox capacity and
+         * drop counts, the number, total and maximum of the times its events
+         * waited in the mailbox, the number of times it rescheduled itself,
+         * and a "handlers" list with the number, total and maximum handler
+         * time for each event type it has handled.  Times are in nanoseconds.
+         * Counts and totals cover the life of the biote, while maximums cover
+         * the time since the previous snapshot.
+         * @return A list of dictionaries, one for each biote.
+         * @throws Exception
+         */
+        public ListAtom getBioteStats() throws Exception {
+            ListAtom statsList = ListAtom.newAtom();
+            for (Biote b : mBiotes.values()) {
+                b.snapshotStats(statsList.newDictionary());
             }
+            return statsList;
         }
+        /**
+         * Returns the statistics sampled since the last flush and resets them.
+         * Each statistic with samples is reported as a dictionary holding its
+         * name and the number, minimum, maximum and total of its samples.
+         * Histogram statistics also report the p50, p90, p99 and p999
+         * percentiles.  Times sampled by the biotes themselves, such as
+         * "Biote.java:stimulate" and "Biote.java:queueWait", are in nanoseconds.
+         * Threads may keep sampling while the statistics are flushed.
+         * @return A list of dictionaries, one for each statistic.
+         * @throws Exception
+         */
         public ListAtom flushStats() throws Exception {
             ListAtom statsList = ListAtom.newAtom();
-            synchronized (mStats) {
-                for (SystemStat stat : mStats.values()) {
-                    DictionaryAtom statDict = statsList.newDictionary();
-                    statDict.setString("name", stat.mName);
-                    statDict.setInt("samples", stat.mSamples);
-                    statDict.setInt("min", stat.mMin);
-                    statDict.setInt("max", stat.mMax);
-                    statDict.setInt("total", stat.mTotal);
-                }
-                mStats.clear();
+            for (SystemStat stat : mStats.values()) {
+                stat.flush(statsList);
             }
             return statsList;
         }
 };
 
-class BioteThread implements Runnable {
-        private volatile AtomicBoolean                  mRunning;
-	private final ConcurrentLinkedQueue<Biote>      mReadyBiotes;
-        private final ConcurrentMap<Long, Long>         mTimeMap;
-        private final BioteManager                      mBioteManager;
-	BioteThread(
-                final ConcurrentLinkedQueue<Biote> readyBiotes,
-                final ConcurrentMap<Long, Long> aTimeMap,
-                final AtomicBoolean running,
-                final BioteManager aBioteManager) {
-            mReadyBiotes = readyBiotes;
-            mTimeMap = aTimeMap;
-            mRunning = running;
-            mBioteManager = aBioteManager;
-	}
-	public void run() {
-                mBioteManager.logString(
-                        Constants.LOG_BIOTE_MANAGER,
-                        0,
-                        "Starting event handling thread...");
-		while (mRunning.get()) {
-			checkBiotes();
-		}
-                mBioteManager.logString(
-                        Constants.LOG_BIOTE_MANAGER,
-                        0,
-                        "Terminating event handling thread...");
-	}
-	public void checkBiotes() {
-            Biote b = mReadyBiotes.poll();
-            boolean idle = true;
-            if (b != null) {
-                idle = false;
-                try {
-                    markStart();
-                    b.__protected_friend_BioteThread__processEvents();
-                }
-                catch (Exception ex) {
-                    BioteManager.mLogger.severe(
-                            "BioteManager:Exception -> " +
-                            ex.toString() + "\n\r" +
-                            StackTrace.getStackTrace(ex));
-                }
-                catch (Error ex) {
-                    BioteManager.mLogger.severe(
-                            "BioteManager:Error -> " +
-                                    ex.toString() + "\n\r" +
-                                    StackTrace.getStackTrace(ex));
-                    mBioteManager.shutdown();
-                }
-                finally {
-                    markStop();
-                }
-            }
-            // If we did not have any messages for any biotes to process
-            // then we will sleep.
-            if (idle) {
-                try {
-                    Thread.sleep(10);
-                }
-                catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-	}
+/**
+ * Runs one batch of events of a blocking biote on a thread of its own.
+ */
+class BlockingBatchTask implements Runnable {
+        private final Biote             mBiote;
+        private final BioteManager      mBioteManager;
 
-        private void markStart() {
-            if (mTimeMap != null) {
-                mTimeMap.put(Thread.currentThread().getId(), System.nanoTime());
-            }
+        BlockingBatchTask(final Biote aBiote, final BioteManager aBioteManager) {
+            mBiote = aBiote;
+            mBioteManager = aBioteManager;
         }
-
-        private void markStop() {
-            if (mTimeMap != null) {
-                mTimeMap.remove(Thread.currentThread().getId());
+        public void run() {
+            try {
+                BioteThread.processBiote(mBiote, mBioteManager);
+            }
+            finally {
+                // The thread may never run another batch, so its watchdog
+                // slot must not outlive the batch.
+                mBioteManager.__protected_friend_BlockingBatchTask__releaseWatchdogSlot();
             }
         }
 };
-
-class StimulateEventTask extends TimerTask {
-	private final long              mBioteId;
-	private final Event             mEPropTree;
-        private boolean                 mRepeating;
-        private final int               mTimerId;
-        private final BioteManager      mBioteManager;
-        
-	StimulateEventTask(
-                final long bioteId,
-                final Event msg,
-                final boolean repeating,
-                final int timerId,
-                final BioteManager aBioteManager) {
-            mBioteId = bioteId;
-            mEPropTree = msg;
-            mRepeating = repeating;
-            mTimerId = timerId;
-            mBioteManager = aBioteManager;
-	}
-	public void run() {
-		try {
-			boolean rc = mBioteManager.sendStimulus(
-                                mBioteId,
-                                mEPropTree,
-                                mBioteId);
-                        if (!rc) {
-                            mRepeating = false;
-                        }
-		}
-                catch (Exception ex) {
-                    mBioteManager.logString(true, mBioteId,
-                            "StimulateEventTask:Exception -> " +
-                                    ex.toString() + "\n\r" +
-                            StackTrace.getStackTrace(ex));
-                }
-                catch (AssertionError ex) {
-                    mBioteManager.logString(true, mBioteId,
-                            "BioteManager:Error -> " +
-                                    ex.toString() + "\n\r" +
-                            StackTrace.getStackTrace(ex));
-                    mBioteManager.shutdown();
-                }
-
-                if (!mRepeating) {
-                    mBioteManager.cancelTimer(mTimerId);
-                }
-	}
-};
@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A node connects a {@link BioteManager BioteManager} to the Biote
+ * managers of other processes, possibly on other machines, so that Biotes
+ * can send events to Biotes running elsewhere in the same way as to local
+ * ones.  This keeps Biotes which are heavy on memory or processor, such as
+ * the Kinect or path planning, from disturbing motor control.
+ *
+ * Every node has a number.  The address of a Biote on another node has
+ * that node's number in its upper 32 bits, above
+ * {@link Constants#BIOTE_NODE_SHIFT BIOTE_NODE_SHIFT}, and is made with
+ * {@link #address address}.  Sending an event to such an address hands it
+ * to the connection to that node.  The source of an event sent from here
+ * is given this node's number, so the receiving Biote can send events
+ * back to it.
+ *
+ * There is one TCP connection between any two nodes, made by one of them
+ * calling {@link #connect connect} and the other one accepting it after
+ * {@link #listen listen}, and it carries the events in both directions.
+ * If two nodes connect to each other at the same time, both keep the
+ * connection made by the node with the lower number and close the other.
+ * Two nodes may also run in the same process and connect over the loopback
+ * interface, which is useful for testing.  See
+ * {@link RemoteLink RemoteLink} for how events travel.
+ *
+ * A node listens on the loopback interface unless it is given another
+ * address.  All nodes which work together share a secret, and a connection
+ * is only used once both ends have shown that they know it.  Each end sends
+ * its number and a random challenge, then answers the other end's
+ * challenge with an HMAC-SHA256 of both challenges and its own number,
+ * keyed with the secret.  The secret itself never goes over the network.
+ *
+ * @author Jon
+ */
+public class BioteNode {
+    private static final int                                HANDSHAKE_MAGIC = 0x42696f74;
+    private static final int                                CHALLENGE_BYTES = 16;
+    private static final String                             MAC_ALGORITHM = "HmacSHA256";
+
+    private final BioteManager                              mBioteManager;
+    private final int                                       mNodeId;
+    private final SecretKeySpec                             mSecret;
+    private final SecureRandom                              mRandom;
+    private final ConcurrentHashMap<Integer, RemoteLink>    mLinks;
+    private volatile ServerSocketChannel                    mServer;
+    private volatile boolean                                mRunning;
+
+    /**
+     * Creates a node for the given Biote manager and attaches it to the
+     * manager.
+     * @param aBioteManager The local Biote manager.
+     * @param aNodeId The number of this node, which must be positive.
+     * @param aSecret The secret shared by all nodes which may connect to
+     *                each other, which must not be empty.
+     */
+    public BioteNode(final BioteManager aBioteManager, final int aNodeId, final byte[] aSecret) {
+        if (aNodeId <= 0) {
+            throw new IllegalArgumentException("Node number " + aNodeId + " is not positive");
+        }
+        if (aSecret == null || aSecret.length == 0) {
+            throw new IllegalArgumentException("Node " + aNodeId + " has no secret");
+        }
+        mBioteManager = aBioteManager;
+        mNodeId = aNodeId;
+        mSecret = new SecretKeySpec(aSecret.clone(), MAC_ALGORITHM);
+        mRandom = new SecureRandom();
+        mLinks = new ConcurrentHashMap<Integer, RemoteLink>();
+        mRunning = true;
+        aBioteManager.setNode(this);
+    }
+
+    /**
+     * Returns the address of a Biote on the given node.
+     * @param aNodeId The number of the node.
+     * @param aBioteId The ID of the Biote on that node.
+     * @return The address of the Biote.
+     */
+    public static long address(final int aNodeId, final long aBioteId) {
+        return ((long) aNodeId << Constants.BIOTE_NODE_SHIFT) | (aBioteId & 0xffffffffL);
+    }
+
+    /**
+     * Returns the number of the node a Biote address belongs to.
+     * @param aAddress The address.
+     * @return The number of the node, or zero for a local Biote ID.
+     */
+    public static int nodeOf(final long aAddress) {
+        return (int) (aAddress >>> Constants.BIOTE_NODE_SHIFT);
+    }
+
+    /**
+     * Returns the number of this node.
+     * @return The number of this node.
+     */
+    public int getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns the address other nodes use for a local Biote.
+     * @param aBioteId The ID of the local Biote.
+     * @return The address of the Biote.
+     */
+    public long address(final long aBioteId) {
+        return address(mNodeId, aBioteId);
+    }
+
+    /**
+     * Returns true if there is a connection to the given node.
+     * @param aNodeId The number of the node.
+     * @return True if events can be sent to the node.
+     */
+    public boolean isConnected(final int aNodeId) {
+        return mLinks.containsKey(aNodeId);
+    }
+
+    /**
+     * Starts accepting connections from other nodes on the given port of
+     * the loopback interface.
+     * @param aPort The port, or zero for any free port.
+     * @return The port connections are accepted on.
+     * @throws IOException If the port cannot be opened.
+     */
+    public int listen(final int aPort) throws IOException {
+        return listen(InetAddress.getLoopbackAddress(), aPort);
+    }
+
+    /**
+     * Starts accepting connections from other nodes on the given address
+     * and port.
+     * @param aBindAddress The local address to accept connections on.
+     * @param aPort The port, or zero for any free port.
+     * @return The port connections are accepted on.
+     * @throws IOException If the port cannot be opened.
+     */
+    public int listen(final InetAddress aBindAddress, final int aPort) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(aBindAddress, aPort));
+        mServer = server;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept(server);
+            }
+        }, "node:" + mNodeId + ":accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Connects to another node.  This returns once both nodes have agreed
+     * on who they are, after which events may be sent to the other node.
+     * @param aNodeId The number of the other node.
+     * @param aHost The host the other node runs on.
+     * @param aPort The port the other node listens on.
+     * @throws IOException If the connection cannot be made, the node
+     *                     listening there has another number, or it does
+     *                     not know the secret.
+     */
+    public void connect(final int aNodeId, final String aHost, final int aPort) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(aHost, aPort),
+                    Constants.REMOTE_CONNECT_TIMEOUT_MILLISECONDS);
+            int remoteNodeId = handshake(channel);
+            if (remoteNodeId != aNodeId) {
+                throw new IOException("Expected node " + aNodeId + " at " + aHost + ":" +
+                        aPort + " but found node " + remoteNodeId);
+            }
+            if (!addLink(remoteNodeId, mNodeId, channel)) {
+                channel.close();
+            }
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes all connections and stops accepting new ones.
+     */
+    public void close() {
+        mRunning = false;
+        ServerSocketChannel server = mServer;
+        if (server != null) {
+            try {
+                server.close();
+            }
+            catch (IOException ex) {
+            }
+        }
+        for (RemoteLink link : mLinks.values()) {
+            link.close();
+        }
+    }
+
+    BioteManager getBioteManager() {
+        return mBioteManager;
+    }
+
+    /*
+     * Sends an event to a Biote on another node.
+     */
+    DeliveryStatus send(final long aAddress, final Event aEvent, final long aSourceBioteId) {
+        RemoteLink link = mLinks.get(nodeOf(aAddress));
+        if (link == null) {
+            mBioteManager.logString(true, aSourceBioteId, "Dropping event: '" +
+                    aEvent.getEventName() + "' to biote " + aAddress +
+                    " on node " + nodeOf(aAddress) + " which is not connected.");
+            return DeliveryStatus.NO_SUCH_BIOTE;
+        }
+        return link.send(aAddress, aEvent, aSourceBioteId);
+    }
+
+    RemoteLink getLink(final int aNodeId) {
+        return mLinks.get(aNodeId);
+    }
+
+    void linkClosed(final RemoteLink aLink) {
+        mLinks.remove(aLink.getRemoteNodeId(), aLink);
+    }
+
+    private void accept(final ServerSocketChannel aServer) {
+        while (mRunning) {
+            SocketChannel channel = null;
+            try {
+                channel = aServer.accept();
+                int remoteNodeId = handshake(channel);
+                if (!addLink(remoteNodeId, remoteNodeId, channel)) {
+                    channel.close();
+                }
+            }
+            catch (IOException ex) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException closeEx) {
+                    }
+                }
+                if (mRunning && aServer.isOpen()) {
+                    mBioteManager.logString(true, 0, "Failed to accept a node: " + ex.toString());
+                }
+                else {
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Tells the other end of the channel the number of this node, checks
+     * that both ends know the secret, and returns the number of the other
+     * node.  Nothing else is read from the channel until this returns.
+     */
+    private int handshake(final SocketChannel aChannel) throws IOException {
+        Socket socket = aChannel.socket();
+        socket.setTcpNoDelay(true);
+        // The streams of a blocking channel's socket honour the timeout,
+        // so a silent peer cannot hold up the accepting thread.
+        socket.setSoTimeout(Constants.REMOTE_CONNECT_TIMEOUT_MILLISECONDS);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        byte[] localChallenge = new byte[CHALLENGE_BYTES];
+        mRandom.nextBytes(localChallenge);
+        out.writeInt(HANDSHAKE_MAGIC);
+        out.writeInt(mNodeId);
+        out.write(localChallenge);
+        out.flush();
+
+        if (in.readInt() != HANDSHAKE_MAGIC) {
+            throw new IOException("The other end is not a biote node");
+        }
+        int remoteNodeId = in.readInt();
+        byte[] remoteChallenge = new byte[CHALLENGE_BYTES];
+        in.readFully(remoteChallenge);
+
+        out.write(proof(remoteChallenge, localChallenge, mNodeId));
+        out.flush();
+        byte[] remoteProof = new byte[proof(localChallenge, remoteChallenge, remoteNodeId).length];
+        in.readFully(remoteProof);
+        if (!MessageDigest.isEqual(remoteProof,
+                proof(localChallenge, remoteChallenge, remoteNodeId))) {
+            throw new IOException("Node " + remoteNodeId + " does not know the secret");
+        }
+        socket.setSoTimeout(0);
+        return remoteNodeId;
+    }
+
+    /*
+     * Returns the answer a node gives to a challenge.  The answer covers
+     * both challenges and the number of the node answering, so it cannot
+     * be replayed on another connection or sent back to its maker.
+     */
+    private byte[] proof(final byte[] aChallenge, final byte[] aOwnChallenge, final int aNodeId)
+            throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(mSecret);
+            mac.update(aChallenge);
+            mac.update(aOwnChallenge);
+            mac.update(new byte[] {
+                (byte) (aNodeId >>> 24), (byte) (aNodeId >>> 16),
+                (byte) (aNodeId >>> 8), (byte) aNodeId
+            });
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException("Cannot answer the handshake", ex);
+        }
+    }
+
+    /*
+     * Starts a link over a channel on which the handshake is done.  When
+     * there already is an open link to the node, for instance because both
+     * nodes connected to each other at once, both ends keep the connection
+     * made by the node with the lower number.  Both ends know which node
+     * made each connection, so they agree without talking to each other.
+     * Returns false if the channel was not used, in which case the caller
+     * closes it.
+     */
+    private synchronized boolean addLink(final int aRemoteNodeId, final int aInitiatorNodeId,
+            final SocketChannel aChannel) {
+        RemoteLink previous = mLinks.get(aRemoteNodeId);
+        if (previous != null && previous.isOpen() &&
+                previous.getInitiatorNodeId() == Math.min(mNodeId, aRemoteNodeId) &&
+                aInitiatorNodeId != previous.getInitiatorNodeId()) {
+            mBioteManager.logString(true, 0, "Already connected to node " + aRemoteNodeId +
+                    ", closing the connection made by node " + aInitiatorNodeId);
+            return false;
+        }
+        RemoteLink link = new RemoteLink(this, aRemoteNodeId, aInitiatorNodeId, aChannel);
+        mLinks.put(aRemoteNodeId, link);
+        if (previous != null) {
+            previous.close();
+        }
+        link.start();
+        mBioteManager.logString(true, 0, "Connected to node " + aRemoteNodeId);
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This is the table of Biotes of one
+ * {@link org.ensor.threads.biote.BioteManager BioteManager}, indexed by
+ * Biote ID.  Biote IDs are small integers handed out in sequence, so a
+ * Biote is kept in the slot given by the low bits of its ID and looking it
+ * up is usually a single array read, without hashing or boxing the ID.
+ * Biotes whose IDs share their low bits go to the following free slots.
+ *
+ * The table is sized by the number of live Biotes, not by the largest ID,
+ * so it stays small on a server which creates and destroys Biotes for as
+ * long as it runs.  A removed Biote leaves a marker behind so that lookups
+ * still find the Biotes placed after it; the markers go away whenever the
+ * table is rebuilt.
+ *
+ * Lookups never lock.  Adding and removing Biotes is serialized.  When the
+ * table becomes too full, too empty or too cluttered with markers, it is
+ * copied into a table of the right size which is then published; a reader
+ * holding the old table may miss a Biote added at the same moment but
+ * never sees a Biote which was not added.
+ *
+ * @author Jon
+ */
+class BioteRegistry {
+    private static final int                        INITIAL_SIZE = 64;
+
+    // Left in the slot of a removed Biote.
+    private static final Object                     REMOVED = new Object();
+
+    private volatile AtomicReferenceArray<Object>   mTable;
+    private int                                     mCount;
+    private int                                     mUsed;
+
+    BioteRegistry() {
+        mTable = new AtomicReferenceArray<Object>(INITIAL_SIZE);
+        mCount = 0;
+        mUsed = 0;
+    }
+
+    /**
+     * Returns the Biote with the given ID.
+     * @param aBioteId The ID of the Biote, without any shard bits.
+     * @return The Biote or null if there is none with that ID.
+     */
+    Biote get(final long aBioteId) {
+        if (aBioteId < 0 || aBioteId > Constants.BIOTE_MAX_ID) {
+            return null;
+        }
+        AtomicReferenceArray<Object> table = mTable;
+        int mask = table.length() - 1;
+        int slot = (int) aBioteId & mask;
+        for (int i = 0; i <= mask; i++) {
+            Object entry = table.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != REMOVED && idOf((Biote) entry) == aBioteId) {
+                return (Biote) entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a Biote under the given ID.  The Biote must already carry the
+     * ID.
+     * @param aBioteId The ID of the Biote, without any shard bits.
+     * @param aBiote The Biote.
+     * @return False if there already is a Biote with that ID.
+     */
+    synchronized boolean add(final int aBioteId, final Biote aBiote) {
+        if (aBioteId < 0 || aBioteId > Constants.BIOTE_MAX_ID) {
+            throw new IllegalArgumentException("Biote ID " + aBioteId +
+                    " is outside the range of biote IDs.");
+        }
+        if (get(aBioteId) != null) {
+            return false;
+        }
+        if ((mUsed + 1) * 2 > mTable.length()) {
+            rebuild(mCount + 1);
+        }
+        AtomicReferenceArray<Object> table = mTable;
+        int mask = table.length() - 1;
+        int slot = aBioteId & mask;
+        Object entry = table.get(slot);
+        while (entry != null && entry != REMOVED) {
+            slot = (slot + 1) & mask;
+            entry = table.get(slot);
+        }
+        if (entry == null) {
+            mUsed++;
+        }
+        table.set(slot, aBiote);
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Removes the Biote with the given ID.
+     * @param aBioteId The ID of the Biote, without any shard bits.
+     * @return The Biote removed or null if there was none with that ID.
+     */
+    synchronized Biote remove(final long aBioteId) {
+        if (aBioteId < 0 || aBioteId > Constants.BIOTE_MAX_ID) {
+            return null;
+        }
+        AtomicReferenceArray<Object> table = mTable;
+        int mask = table.length() - 1;
+        int slot = (int) aBioteId & mask;
+        for (int i = 0; i <= mask; i++) {
+            Object entry = table.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != REMOVED && idOf((Biote) entry) == aBioteId) {
+                table.set(slot, REMOVED);
+                mCount--;
+                if (table.length() > INITIAL_SIZE && mCount * 8 < table.length()) {
+                    rebuild(mCount);
+                }
+                return (Biote) entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of Biotes in the table.
+     * @return The number of Biotes.
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of slots in the table.
+     * @return The number of slots.
+     */
+    int capacity() {
+        return mTable.length();
+    }
+
+    /**
+     * Returns the Biotes in the table at this moment.
+     * @return A list of the Biotes.
+     */
+    List<Biote> values() {
+        AtomicReferenceArray<Object> table = mTable;
+        List<Biote> biotes = new ArrayList<Biote>();
+        for (int i = 0; i < table.length(); i++) {
+            Object entry = table.get(i);
+            if (entry != null && entry != REMOVED) {
+                biotes.add((Biote) entry);
+            }
+        }
+        return biotes;
+    }
+
+    /*
+     * Copies the live Biotes into a new table which is at most a quarter
+     * full with the given number of Biotes, and publishes it.
+     */
+    private void rebuild(final int aCount) {
+        int size = INITIAL_SIZE;
+        while (size < aCount * 4) {
+            size *= 2;
+        }
+        AtomicReferenceArray<Object> table = mTable;
+        AtomicReferenceArray<Object> rebuilt = new AtomicReferenceArray<Object>(size);
+        int mask = size - 1;
+        for (int i = 0; i < table.length(); i++) {
+            Object entry = table.get(i);
+            if (entry != null && entry != REMOVED) {
+                int slot = (int) idOf((Biote) entry) & mask;
+                while (rebuilt.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                rebuilt.set(slot, entry);
+            }
+        }
+        mUsed = mCount;
+        mTable = rebuilt;
+    }
+
+    private static long idOf(final Biote aBiote) {
+        return aBiote.getBioteId() & Constants.BIOTE_MAX_ID;
+    }
+}
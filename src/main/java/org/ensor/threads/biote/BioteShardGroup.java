@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shard group splits the Biotes of one application over several
+ * {@link BioteManager BioteManagers}.  Each shard has its own threads,
+ * ready queues and timer, so a busy workload on one shard does not slow
+ * down the others, and the Biotes of a shard stay on the same few threads.
+ *
+ * The number of the shard which owns a Biote is kept in the upper bits of
+ * its ID, above {@link Constants#BIOTE_SHARD_SHIFT BIOTE_SHARD_SHIFT}, so
+ * any shard can send an event to any Biote of the group: the event goes
+ * straight into the lock free queue of the target Biote and, if the Biote
+ * was idle, onto the ready queue of the shard which owns it.  Timers run
+ * on the shard which started them and deliver the same way.  Requests sent
+ * with {@link BioteManager#ask ask} may be answered from any shard, and
+ * the shards share their topics.
+ *
+ * Biotes are created on the shard they are constructed with.
+ * {@link #getShardFor getShardFor} picks a shard for a key, which keeps
+ * related Biotes together.
+ *
+ * @author Jon
+ */
+public class BioteShardGroup {
+    private final BioteManager[]                            mShards;
+    private final ConcurrentHashMap<String, Topic>          mTopics;
+
+    /**
+     * Creates a shard group.  The shards are named after the group with the
+     * number of the shard appended.
+     * @param aName Name of the shard group.
+     * @param aShards Number of shards.
+     * @param aThreadPoolSize Number of threads handling normal Biotes in
+     *                        each shard.
+     * @param aBlockingThreadPoolSize Number of threads handling Biotes which
+     *                                use the blocking queue in each shard.
+     * @param aSchedulerMode How idle threads wait for Biotes to become
+     *                       ready.
+     */
+    public BioteShardGroup(
+            final String aName,
+            final int aShards,
+            final int aThreadPoolSize,
+            final int aBlockingThreadPoolSize,
+            final SchedulerMode aSchedulerMode) {
+        if (aShards < 1 || aShards > Constants.BIOTE_MAX_SHARDS) {
+            throw new IllegalArgumentException("A shard group has between 1 and " +
+                    Constants.BIOTE_MAX_SHARDS + " shards, not " + aShards);
+        }
+        mTopics = new ConcurrentHashMap<String, Topic>();
+        mShards = new BioteManager[aShards];
+        for (int i = 0; i < aShards; i++) {
+            mShards[i] = new BioteManager(aName + ":" + i, aThreadPoolSize,
+                    aBlockingThreadPoolSize, aSchedulerMode, this, i);
+        }
+    }
+
+    /**
+     * Creates a shard group whose threads wake as soon as a Biote is ready.
+     * @param aName Name of the shard group.
+     * @param aShards Number of shards.
+     * @param aThreadPoolSize Number of threads handling normal Biotes in
+     *                        each shard.
+     * @param aBlockingThreadPoolSize Number of threads handling Biotes which
+     *                                use the blocking queue in each shard.
+     */
+    public BioteShardGroup(
+            final String aName,
+            final int aShards,
+            final int aThreadPoolSize,
+            final int aBlockingThreadPoolSize) {
+        this(aName, aShards, aThreadPoolSize, aBlockingThreadPoolSize,
+                SchedulerMode.WAKE_ON_ENQUEUE);
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * Returns the shard with the given number.
+     * @param aShard The number of the shard.
+     * @return The shard, or null if there is no shard with that number.
+     */
+    public BioteManager getShard(final int aShard) {
+        if (aShard < 0 || aShard >= mShards.length) {
+            return null;
+        }
+        return mShards[aShard];
+    }
+
+    /**
+     * Returns the shard which owns the Biote with the given ID.
+     * @param aBioteId The ID of the Biote.
+     * @return The shard, or null if the ID does not belong to this group.
+     */
+    public BioteManager getShardOf(final long aBioteId) {
+        if (aBioteId < 0) {
+            return null;
+        }
+        return getShard((int) (aBioteId >>> Constants.BIOTE_SHARD_SHIFT));
+    }
+
+    /**
+     * Returns the shard for the given key.  The same key always gives the
+     * same shard.
+     * @param aKey The key.
+     * @return The shard.
+     */
+    public BioteManager getShardFor(final Object aKey) {
+        int h = aKey.hashCode();
+        h ^= h >>> 16;
+        return mShards[(h & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    /**
+     * Returns the number of Biotes in all shards.
+     * @return The number of Biotes.
+     */
+    public int getBioteCount() {
+        int count = 0;
+        for (BioteManager shard : mShards) {
+            count += shard.getBioteCount();
+        }
+        return count;
+    }
+
+    /**
+     * Shuts down every shard.
+     */
+    public void shutdown() {
+        for (BioteManager shard : mShards) {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * Waits for every shard to be shut down.
+     */
+    public void waitForShutdown() {
+        for (BioteManager shard : mShards) {
+            shard.waitForShutdown();
+        }
+    }
+
+    ConcurrentHashMap<String, Topic> getTopics() {
+        return mTopics;
+    }
+
+    /*
+     * Returns true if the calling thread is the timer thread of any shard.
+     */
+    boolean isTimerThread() {
+        for (BioteManager shard : mShards) {
+            if (shard.isOwnTimerThread()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
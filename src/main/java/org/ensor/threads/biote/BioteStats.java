@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ListAtom;
+
+/**
+ * These are the scheduling statistics of one Biote: how long its events
+ * wait in its mailbox, how long its handlers take for each event type and
+ * how often it had to put itself back in the ready queue because events
+ * were left over at the end of its time slice.
+ *
+ * Only the thread processing the Biote records into these statistics, so
+ * the counters are updated with plain ordered writes rather than atomic
+ * additions.  Counts and totals grow for the life of the Biote; a reader
+ * works out rates from the difference between two snapshots.  Maximums
+ * are reset by each snapshot so that they cover the time since the last
+ * one.
+ *
+ * @author Jon
+ */
+class BioteStats {
+    private static final int    COUNT = 0;
+    private static final int    TOTAL = 1;
+    private static final int    MAX = 2;
+    private static final int    FIELDS = 3;
+
+    private final SystemStat            mQueueWaitStat;
+    private final AtomicLong            mWaitCount;
+    private final AtomicLong            mWaitTotal;
+    private final AtomicLong            mWaitMax;
+    private final AtomicLong            mReschedules;
+
+    // Handler statistics, FIELDS entries per event type ID.  The array only
+    // ever grows, and only the processing thread replaces it.
+    private volatile AtomicLongArray    mHandlers;
+
+    BioteStats(final SystemStat aQueueWaitStat) {
+        mQueueWaitStat = aQueueWaitStat;
+        mWaitCount = new AtomicLong(0);
+        mWaitTotal = new AtomicLong(0);
+        mWaitMax = new AtomicLong(0);
+        mReschedules = new AtomicLong(0);
+        mHandlers = new AtomicLongArray(0);
+    }
+
+    /**
+     * Records the time an event spent in the mailbox.
+     * @param aNanos Time from enqueue to dequeue in nanoseconds.
+     */
+    void recordWait(final long aNanos) {
+        mQueueWaitStat.sample(aNanos);
+        mWaitCount.lazySet(mWaitCount.get() + 1);
+        mWaitTotal.lazySet(mWaitTotal.get() + aNanos);
+        if (aNanos > mWaitMax.get()) {
+            mWaitMax.lazySet(aNanos);
+        }
+    }
+
+    /**
+     * Records the time the handlers for one event took.
+     * @param aEventType Type of the event handled.
+     * @param aNanos Time spent in the handlers in nanoseconds.
+     */
+    void recordHandler(final EventType aEventType, final long aNanos) {
+        int base = aEventType.getId() * FIELDS;
+        AtomicLongArray handlers = mHandlers;
+        if (base >= handlers.length()) {
+            int size = Math.max(16, Integer.highestOneBit(aEventType.getId()) << 1) * FIELDS;
+            AtomicLongArray grown = new AtomicLongArray(size);
+            for (int i = 0; i < handlers.length(); i++) {
+                grown.set(i, handlers.get(i));
+            }
+            handlers = grown;
+            mHandlers = grown;
+        }
+        handlers.lazySet(base + COUNT, handlers.get(base + COUNT) + 1);
+        handlers.lazySet(base + TOTAL, handlers.get(base + TOTAL) + aNanos);
+        if (aNanos > handlers.get(base + MAX)) {
+            handlers.lazySet(base + MAX, aNanos);
+        }
+    }
+
+    /**
+     * Records that the Biote put itself back in the ready queue.
+     */
+    void recordReschedule() {
+        mReschedules.lazySet(mReschedules.get() + 1);
+    }
+
+    /**
+     * Adds these statistics to the given dictionary.
+     * @param aDict The dictionary describing the Biote.
+     */
+    void snapshot(final DictionaryAtom aDict) {
+        aDict.setInt("waitCount", mWaitCount.get());
+        aDict.setInt("waitTotalNanos", mWaitTotal.get());
+        aDict.setInt("waitMaxNanos", mWaitMax.getAndSet(0));
+        aDict.setInt("reschedules", mReschedules.get());
+        ListAtom handlerList = aDict.newList("handlers");
+        AtomicLongArray handlers = mHandlers;
+        for (int base = 0; base < handlers.length(); base += FIELDS) {
+            long count = handlers.get(base + COUNT);
+            if (count == 0) {
+                continue;
+            }
+            DictionaryAtom handler = handlerList.newDictionary();
+            handler.setString("event", EventType.forId(base / FIELDS).getName());
+            handler.setInt("count", count);
+            handler.setInt("totalNanos", handlers.get(base + TOTAL));
+            handler.setInt("maxNanos", handlers.getAndSet(base + MAX, 0));
+        }
+    }
+}
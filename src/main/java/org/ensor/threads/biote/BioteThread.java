@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.ensor.java.utilities.StackTrace;
+
+/**
+ * This is one thread of a Biote manager's thread pool.  It takes ready
+ * Biotes from the pool's {@link ReadyQueue ReadyQueue} and handles their
+ * events.
+ *
+ * @author Jon
+ */
+class BioteThread implements Runnable {
+        private volatile AtomicBoolean                  mRunning;
+        private final ReadyQueue                        mReadyBiotes;
+        private final int                               mWorker;
+        private final ConcurrentMap<Long, Long>         mTimeMap;
+        private final BioteManager                      mBioteManager;
+	BioteThread(
+                final ReadyQueue readyBiotes,
+                final int aWorker,
+                final ConcurrentMap<Long, Long> aTimeMap,
+                final AtomicBoolean running,
+                final BioteManager aBioteManager) {
+            mReadyBiotes = readyBiotes;
+            mWorker = aWorker;
+            mTimeMap = aTimeMap;
+            mRunning = running;
+            mBioteManager = aBioteManager;
+	}
+	public void run() {
+                mBioteManager.logString(
+                        LogCategory.BIOTE_MANAGER,
+                        0,
+                        "Starting event handling thread...");
+                mReadyBiotes.register(mWorker);
+		while (mRunning.get()) {
+			checkBiotes();
+		}
+                mBioteManager.logString(
+                        LogCategory.BIOTE_MANAGER,
+                        0,
+                        "Terminating event handling thread...");
+	}
+	public void checkBiotes() {
+            // If there are no biotes with messages to process, the
+            // ready queue waits for one according to the scheduler mode.
+            Biote b = mReadyBiotes.take(mWorker);
+            if (b != null) {
+                // Whoever processes the biote becomes its home thread, so
+                // when it reschedules itself it comes back here.  A stale
+                // entry leaves the home thread alone.
+                try {
+                    markStart();
+                    processBiote(b, mBioteManager, mWorker);
+                }
+                finally {
+                    markStop();
+                }
+            }
+	}
+
+        /**
+         * Processes the pending events of a biote.  An exception escaping
+         * from the biote is logged and an error shuts the biote manager down.
+         */
+        static void processBiote(final Biote b, final BioteManager aBioteManager) {
+            processBiote(b, aBioteManager, -1);
+        }
+
+        /**
+         * Processes the pending events of a biote on behalf of the given
+         * worker slot, which becomes the biote's home thread.
+         */
+        static void processBiote(final Biote b, final BioteManager aBioteManager, final int aWorker) {
+            try {
+                b.__protected_friend_BioteThread__processEvents(aWorker);
+            }
+            catch (Exception ex) {
+                BioteManager.mLogger.severe(
+                        "BioteManager:Exception -> " +
+                        ex.toString() + "\n\r" +
+                        StackTrace.getStackTrace(ex));
+            }
+            catch (Error ex) {
+                BioteManager.mLogger.severe(
+                        "BioteManager:Error -> " +
+                                ex.toString() + "\n\r" +
+                                StackTrace.getStackTrace(ex));
+                aBioteManager.shutdown();
+            }
+        }
+
+        private void markStart() {
+            if (mTimeMap != null) {
+                mTimeMap.put(Thread.currentThread().getId(), System.nanoTime());
+            }
+        }
+
+        private void markStop() {
+            if (mTimeMap != null) {
+                mTimeMap.remove(Thread.currentThread().getId());
+            }
+        }
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration selects how a
+ * {@link org.ensor.threads.biote.BioteManager BioteManager} runs the events
+ * of Biotes which were created to use the blocking queue.
+ * @author Jon
+ */
+public enum BlockingExecutionMode {
+    /**
+     * Blocking Biotes share a fixed pool of threads.  A Biote which blocks
+     * for a long time occupies one of those threads and delays every other
+     * blocking Biote waiting for a thread.
+     */
+    POOLED,
+    /**
+     * Every batch of events of a blocking Biote runs on a thread of its own.
+     * Virtual threads are used when the Java runtime provides them,
+     * otherwise platform threads are created as needed and reused when
+     * they become free.  A Biote never has more than one batch running at
+     * a time, so its events are still handled in order.
+     */
+    THREAD_PER_BATCH
+}
@@ -42,8 +42,23 @@ public final class Constants {
      * manager after the 'init' Biote.
      */
     public static final int BIOTE_FIRST_GENERATED_ID = 2;
+    public static final int BIOTE_MAX_ID = (1 << 24) - 1;
 
-    // Logging constants
+    /**
+     * The bits of a Biote ID above this hold the shard of the Biote manager
+     * which owns it, so there may be up to BIOTE_MAX_SHARDS shards.
+     */
+    public static final int BIOTE_SHARD_SHIFT = 24;
+    public static final int BIOTE_MAX_SHARDS = 1 << (31 - BIOTE_SHARD_SHIFT);
+
+    /**
+     * The bits of a Biote address above this hold the number of the node
+     * the Biote runs on.  Local Biote IDs have no node bits.
+     */
+    public static final int BIOTE_NODE_SHIFT = 32;
+
+    // Logging constants.  These only set whether each logging category
+    // starts out on; see LogCategory.
     public static final boolean LOG_ALL_CATEGORIES = false;
 
     public static final boolean LOG_BIOTE_MANAGER = false || LOG_ALL_CATEGORIES;
@@ -60,4 +75,49 @@ public final class Constants {
     // Timing info
     public static final float LONG_EVENT_SECONDS        = 5;
 
+    // Scheduler tuning
+    public static final long SCHEDULER_POLL_MILLISECONDS    = 10;
+    public static final int SCHEDULER_SPIN_COUNT            = 100;
+    public static final long SCHEDULER_PARK_NANOSECONDS     = 100000000L;
+
+    // Event processing quantum
+    public static final long EVENT_TIME_SLICE_MICROSECONDS  = 200;
+    public static final int EVENT_BATCH_MAX                 = 64;
+
+    // Timer wheel tuning
+    public static final long TIMER_TICK_NANOSECONDS         = 1000000L;
+    public static final int TIMER_WHEEL_SIZE                = 512;
+
+    // How long a sender blocked on a full mailbox sleeps between attempts
+    public static final long MAILBOX_BLOCK_PARK_NANOSECONDS = 50000L;
+
+    // Upper limit on the number of stripes in each statistics histogram
+    public static final int STAT_MAX_STRIPES                = 8;
+
+    // Event journal
+    public static final int JOURNAL_SEGMENT_BYTES           = 64 * 1024 * 1024;
+    public static final long JOURNAL_ROLL_PARK_NANOSECONDS  = 10000000L;
+    public static final long JOURNAL_SEAL_TIMEOUT_MILLISECONDS = 1000;
+
+    // Log sink
+    public static final int LOG_SINK_CAPACITY               = 4096;
+
+    // Router biotes
+    public static final long ROUTER_SCALE_PERIOD_MILLISECONDS = 100;
+    public static final int ROUTER_SCALE_UP_DEPTH           = 16;
+    public static final int ROUTER_SCALE_DOWN_PERIODS       = 50;
+    public static final int ROUTER_HASH_POINTS              = 64;
+
+    // Connections between nodes
+    public static final int REMOTE_FRAME_BYTES              = 64 * 1024;
+    public static final int REMOTE_MAX_FRAME_BYTES          = 16 * 1024 * 1024;
+    public static final int REMOTE_QUEUE_CAPACITY           = 65536;
+    public static final int REMOTE_CONNECT_TIMEOUT_MILLISECONDS = 5000;
+
+    // Stall watchdog
+    public static final long WATCHDOG_STALL_THRESHOLD_MILLISECONDS = 20;
+    public static final long WATCHDOG_SAMPLE_NANOSECONDS    = 2000000L;
+    public static final int WATCHDOG_TOP_FRAMES             = 8;
+    public static final int WATCHDOG_MAX_REPORTS            = 16;
+
 }
@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration tells the sender of an event what became of it.
+ * @author Jon
+ */
+public enum DeliveryStatus {
+    /**
+     * The event was placed in the receiving Biote's mailbox.
+     */
+    DELIVERED,
+    /**
+     * The receiving Biote's mailbox was full and the event was dropped,
+     * or the Biote is terminating.
+     */
+    DROPPED,
+    /**
+     * The receiving Biote's mailbox was full and its overflow policy is
+     * {@link OverflowPolicy#REJECT}.
+     */
+    REJECTED,
+    /**
+     * There is no Biote with the given ID.
+     */
+    NO_SUCH_BIOTE
+}
@@ -2,57 +2,200 @@ package org.ensor.threads.biote;
 
 import org.ensor.data.atom.Atom;
 import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.IDictionaryVisitable;
 import org.ensor.data.atom.ImmutableDict;
-import org.ensor.data.atom.Pair;
-import org.ensor.data.atom.StringAtom;
-import org.json.JSONObject;
 
 /**
- * An Event is a dictionary with a name.  These are primarily used as
- * the primitive event data type.  Data can be placed into the property tree
- * with a given name and simply 'sent' to another Biote
+ * An Event is a named payload.  These are primarily used as
+ * the primitive event data type.  Data can be placed into a dictionary
+ * and simply 'sent' to another Biote
  * through {@link org.ensor.robots.scheduler.Biote#sendStimulus}.
- * An event can be created directly from a JSON Object, from a given dictionary,
- * or can be constructed as an empty dictionary and values can be added after
- * the fact.
+ *
+ * The event holds its type and its payload as plain fields.  A dictionary
+ * payload is handed over to the event rather than copied, so the sender
+ * must not change a {@link DictionaryAtom} after creating an event with it.
+ * The payload may also be a plain Java object, see {@link IEventPayload}.
+ * The payload is converted into an immutable dictionary only the first
+ * time {@link #getData getData} is called.
+ *
+ * An event may carry a conflation key.  An event with a conflation key
+ * replaces any event with the same key which is still waiting to be
+ * handled by the receiving Biote, taking over its place in the queue.
+ * This suits events which carry a snapshot of some state, where only the
+ * latest one matters.  Events with the same conflation key should also
+ * have the same name.
  *
  * @author Jon
  */
 public class Event {
-        private final String         mEventName;
-        private final ImmutableDict  mEventData;
+        private static final ImmutableDict EMPTY_DATA = ImmutableDict.newAtom();
+
+        private final EventType      mEventType;
+        private final Object         mPayload;
+        private final String         mConflationKey;
+        private final long           mCorrelationId;
+        private volatile ImmutableDict mEventData;
         
         public Event(final String eventName) {
-            this(eventName, ImmutableDict.newAtom());
+            this(EventType.get(eventName));
         }
         
         public Event(final String eventName, final DictionaryAtom atom) {
-            mEventName = eventName;
-            mEventData = ImmutableDict.newAtom(new Pair[] {
-                new Pair<String, Atom>(
-                        "event-name",
-                        StringAtom.newAtom(mEventName)),
-                new Pair<String, Atom>(
-                        "event-data",
-                        atom.getImmutable())
-            });
+            this(EventType.get(eventName), atom, null);
         }
         public Event(final String eventName, final ImmutableDict atom) {
-            mEventName = eventName;
-            mEventData = ImmutableDict.newAtom(new Pair[] {
-                new Pair<String, Atom>(
-                        "event-name",
-                        StringAtom.newAtom(mEventName)),
-                new Pair<String, Atom>(
-                        "event-data",
-                        atom.getImmutable())
-            });
+            this(EventType.get(eventName), atom, null);
+        }
+        /**
+         * Creates an event which replaces any waiting event with the same
+         * conflation key.
+         * @param eventName Name of the event.
+         * @param atom Data of the event.
+         * @param conflationKey Conflation key, or null if the event should
+         *                      never replace another.
+         */
+        public Event(final String eventName, final DictionaryAtom atom, final String conflationKey) {
+            this(EventType.get(eventName), atom, conflationKey);
+        }
+        /**
+         * Creates an event which replaces any waiting event with the same
+         * conflation key.
+         * @param eventName Name of the event.
+         * @param atom Data of the event.
+         * @param conflationKey Conflation key, or null if the event should
+         *                      never replace another.
+         */
+        public Event(final String eventName, final ImmutableDict atom, final String conflationKey) {
+            this(EventType.get(eventName), atom, conflationKey);
+        }
+        public Event(final EventType eventType) {
+            this(eventType, null, null);
+        }
+        public Event(final EventType eventType, final DictionaryAtom atom) {
+            this(eventType, atom, null);
+        }
+        public Event(final EventType eventType, final ImmutableDict atom) {
+            this(eventType, atom, null);
+        }
+        public Event(final EventType eventType, final IEventPayload payload) {
+            this(eventType, payload, null);
+        }
+        /**
+         * Creates an event of the given type.
+         * @param eventType Type of the event.
+         * @param payload Payload of the event.  This is either a dictionary,
+         *                an {@link IEventPayload}, any other object which is
+         *                only ever read through {@link #getPayload getPayload},
+         *                or null for an event without data.
+         * @param conflationKey Conflation key, or null if the event should
+         *                      never replace another.
+         */
+        public Event(final EventType eventType, final Object payload, final String conflationKey) {
+            this(eventType, payload, conflationKey, 0);
         }
+        /*
+         * Creates an event which is a request sent with
+         * BioteManager.ask or the timeout of such a request.
+         */
+        Event(final EventType eventType, final Object payload, final String conflationKey, final long correlationId) {
+            mEventType = eventType;
+            mPayload = payload;
+            mConflationKey = conflationKey;
+            mCorrelationId = correlationId;
+        }
+        /*
+         * Returns a copy of the given event which carries the given
+         * correlation ID.  The payload is shared, not copied.
+         */
+        Event(final Event event, final long correlationId) {
+            this(event.mEventType, event.mPayload, event.mConflationKey, correlationId);
+            mEventData = event.mEventData;
+        }
+        /**
+         * Returns the data of the event as an immutable dictionary.  The
+         * payload is converted the first time this is called.
+         * @return The data of the event.
+         */
         public ImmutableDict getData() {
-            return mEventData.getDictionary("event-data");
+            ImmutableDict data = mEventData;
+            if (data == null) {
+                data = (ImmutableDict) getPayloadAtom().getImmutable();
+                mEventData = data;
+            }
+            return data;
+        }
+        /**
+         * Returns the data of the event as a dictionary without making an
+         * immutable copy of it.  This is what serializers use.  The
+         * dictionary returned must not be changed.
+         * @return The data of the event.
+         */
+        public IDictionaryVisitable getDictionary() {
+            ImmutableDict data = mEventData;
+            if (data != null) {
+                return data;
+            }
+            return (IDictionaryVisitable) getPayloadAtom();
+        }
+        /*
+         * Returns true if the payload of the event can be turned into a
+         * dictionary.
+         */
+        boolean hasDictionary() {
+            return mEventData != null || mPayload == null ||
+                    mPayload instanceof ImmutableDict ||
+                    mPayload instanceof DictionaryAtom ||
+                    mPayload instanceof IEventPayload;
+        }
+        private Atom getPayloadAtom() {
+            if (mPayload == null) {
+                return EMPTY_DATA;
+            }
+            if (mPayload instanceof ImmutableDict) {
+                return (ImmutableDict) mPayload;
+            }
+            if (mPayload instanceof DictionaryAtom) {
+                return (DictionaryAtom) mPayload;
+            }
+            if (mPayload instanceof IEventPayload) {
+                return ((IEventPayload) mPayload).toDictionary();
+            }
+            throw new IllegalStateException("The payload of event '" +
+                    getEventName() + "' is a " + mPayload.getClass().getName() +
+                    " which cannot be converted to a dictionary.");
+        }
+        /**
+         * Returns the payload of the event.
+         * @param <T> The type of the payload.
+         * @param aClass The class of the payload.
+         * @return The payload, or null if the event has none.
+         */
+        public <T> T getPayload(final Class<T> aClass) {
+            return aClass.cast(mPayload);
         }
 	public String getEventName() {
-            return mEventData.getString("event-name");
+            return mEventType.getName();
 	}
+        /**
+         * Returns the interned type of the event.
+         * @return The type of the event.
+         */
+        public EventType getEventType() {
+            return mEventType;
+        }
+        /**
+         * Returns the conflation key of the event.
+         * @return The conflation key or null if the event has none.
+         */
+        public String getConflationKey() {
+            return mConflationKey;
+        }
+        /**
+         * Returns the ID which ties a request sent with
+         * {@link BioteManager#ask ask} to its reply.
+         * @return The correlation ID or zero if the event is not a request.
+         */
+        public long getCorrelationId() {
+            return mCorrelationId;
+        }
 };
-
@@ -0,0 +1,439 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * This is a journal of every event sent through a
+ * {@link org.ensor.threads.biote.BioteManager BioteManager}.  Each event is
+ * appended as a binary record holding the time, the source and target
+ * Biote IDs, the event name and the event data.  The journal can be read
+ * back and replayed with
+ * {@link org.ensor.threads.biote.EventJournalReader EventJournalReader}.
+ *
+ * The journal is a directory of segment files of a fixed size, each of
+ * which is mapped into memory.  A thread appending a record claims room
+ * in the current segment by advancing its position with a compare and
+ * set, then copies the record in and finally writes the record's length,
+ * which marks it as complete.  No locks are taken.  When a record does
+ * not fit, the thread which notices swaps in a spare segment, and a
+ * background thread flushes and closes the full segment and maps the next
+ * spare.  Only if the background thread has fallen behind and there is
+ * no spare does the sender map one itself.
+ *
+ * A record whose sender died before finishing it ends its segment as far
+ * as readers are concerned.  The background thread waits at most
+ * {@link Constants#JOURNAL_SEAL_TIMEOUT_MILLISECONDS
+ * JOURNAL_SEAL_TIMEOUT_MILLISECONDS} for the records of a full segment to
+ * be finished, and then closes it anyway.
+ *
+ * A closed segment is unmapped straight away rather than when the
+ * garbage collector gets to its buffer, so that the address space of a
+ * 32-bit machine does not fill up with old segments.  A segment with an
+ * unfinished record stays mapped, since its sender may still write to it.
+ *
+ * @author Jon
+ */
+public class EventJournal implements Runnable {
+    private static final String                     SEGMENT_PREFIX = "journal-";
+    private static final String                     SEGMENT_SUFFIX = ".dat";
+    private static final int                        SEALED = Integer.MAX_VALUE;
+
+    /**
+     * One mapped segment file.
+     */
+    static final class Segment {
+        private final File                  mFile;
+        private final FileChannel           mChannel;
+        private final MappedByteBuffer      mBuffer;
+        private final int                   mCapacity;
+        private final AtomicInteger         mPosition;
+        private final AtomicInteger         mCommitted;
+
+        Segment(final File aFile, final int aCapacity) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+            try {
+                file.setLength(aCapacity);
+                mChannel = file.getChannel();
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, aCapacity);
+            }
+            catch (IOException ex) {
+                file.close();
+                throw ex;
+            }
+            mFile = aFile;
+            mCapacity = aCapacity;
+            mPosition = new AtomicInteger(0);
+            mCommitted = new AtomicInteger(0);
+        }
+
+        /**
+         * Claims room for a record.
+         * @return The offset of the record, or -1 if it does not fit.
+         */
+        int claim(final int aLength) {
+            while (true) {
+                int position = mPosition.get();
+                if (position > mCapacity - aLength) {
+                    return -1;
+                }
+                if (mPosition.compareAndSet(position, position + aLength)) {
+                    return position;
+                }
+            }
+        }
+
+        /**
+         * Copies a record into the room claimed for it.  The length at the
+         * start of the record is written last.
+         */
+        void write(final int aOffset, final ByteBuffer aRecord) {
+            int length = aRecord.remaining();
+            ByteBuffer target = mBuffer.duplicate();
+            target.position(aOffset + 4);
+            aRecord.position(aRecord.position() + 4);
+            target.put(aRecord);
+            mBuffer.putInt(aOffset, length);
+            mCommitted.addAndGet(length);
+        }
+
+        /**
+         * Stops further claims, waits for records being written to be
+         * completed and closes the segment.  A record which is not completed
+         * in time, because its sender failed or stalled after claiming it,
+         * is left as it is; readers stop at its zero length.
+         */
+        void seal() throws IOException {
+            int end = mPosition.getAndSet(SEALED);
+            if (end == SEALED) {
+                return;
+            }
+            long deadline = System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(Constants.JOURNAL_SEAL_TIMEOUT_MILLISECONDS);
+            boolean finished = true;
+            while (mCommitted.get() < end) {
+                if (System.nanoTime() - deadline > 0) {
+                    BioteManager.mLogger.warning("Closing journal segment " + mFile +
+                            " with " + (end - mCommitted.get()) + " bytes of unfinished records");
+                    finished = false;
+                    break;
+                }
+                Thread.yield();
+            }
+            mBuffer.force();
+            mChannel.close();
+            if (finished) {
+                unmap(mBuffer);
+            }
+        }
+
+        /**
+         * Closes and removes a segment which was never written to.
+         */
+        void discard() throws IOException {
+            mChannel.close();
+            unmap(mBuffer);
+            if (!mFile.delete()) {
+                BioteManager.mLogger.warning("Unable to remove unused journal segment " + mFile);
+            }
+        }
+    }
+
+    private final File                              mDirectory;
+    private final int                               mSegmentBytes;
+    private final AtomicReference<Segment>          mCurrent;
+    private final AtomicReference<Segment>          mSpare;
+    private final ConcurrentLinkedQueue<Segment>    mSealed;
+    private final AtomicLong                        mRecordCount;
+    private final AtomicLong                        mDroppedCount;
+    private final ThreadLocal<JournalCodec>         mCodecs;
+    private final Thread                            mThread;
+    private volatile boolean                        mRunning;
+    private int                                     mNextSegment;
+
+    /**
+     * Opens a journal in the given directory and starts its background
+     * thread.  New segments are numbered after any already in the directory.
+     * @param aDirectory The directory holding the segment files.
+     * @param aSegmentBytes The size of each segment file.
+     * @throws IOException If the first segment cannot be created.
+     */
+    public EventJournal(final File aDirectory, final int aSegmentBytes) throws IOException {
+        if (!aDirectory.isDirectory() && !aDirectory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + aDirectory);
+        }
+        mDirectory = aDirectory;
+        mSegmentBytes = aSegmentBytes;
+        mNextSegment = 0;
+        for (File f : segmentFiles(aDirectory)) {
+            mNextSegment = Math.max(mNextSegment, segmentNumber(f) + 1);
+        }
+        mCurrent = new AtomicReference<Segment>(newSegment());
+        mSpare = new AtomicReference<Segment>(null);
+        mSealed = new ConcurrentLinkedQueue<Segment>();
+        mRecordCount = new AtomicLong(0);
+        mDroppedCount = new AtomicLong(0);
+        mCodecs = new ThreadLocal<JournalCodec>() {
+            @Override
+            protected JournalCodec initialValue() {
+                return new JournalCodec();
+            }
+        };
+        mRunning = true;
+        mThread = new Thread(this, "journal:" + aDirectory.getName());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Appends an event to the journal.  This may be called from any thread.
+     * @param aTimeMillis The time the event was sent.
+     * @param aSourceBioteId The Biote which sent the event.
+     * @param aTargetBioteId The Biote the event was sent to.
+     * @param aEvent The event.
+     * @param aTimer True if the event was sent by a timer.
+     */
+    public void append(
+            final long aTimeMillis,
+            final long aSourceBioteId,
+            final long aTargetBioteId,
+            final Event aEvent,
+            final boolean aTimer) {
+        ByteBuffer record;
+        try {
+            record = mCodecs.get().encode(aTimeMillis, aSourceBioteId,
+                    aTargetBioteId, aEvent, aTimer ? JournalCodec.FLAG_TIMER : 0);
+        }
+        catch (IllegalArgumentException ex) {
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        int length = record.remaining();
+        while (mRunning) {
+            Segment segment = mCurrent.get();
+            int offset = segment.claim(length);
+            if (offset >= 0) {
+                segment.write(offset, record);
+                mRecordCount.incrementAndGet();
+                return;
+            }
+            if (length > mSegmentBytes) {
+                break;
+            }
+            Segment spare = mSpare.get();
+            if (spare == null) {
+                spare = createSpare();
+                if (spare == null) {
+                    break;
+                }
+            }
+            // Only the thread which swaps in the spare hands the full segment
+            // over.  Everyone else retries with whatever is current now.
+            if (mCurrent.compareAndSet(segment, spare)) {
+                mSpare.compareAndSet(spare, null);
+                mSealed.add(segment);
+                LockSupport.unpark(mThread);
+            }
+        }
+        mDroppedCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of records written to the journal.
+     * @return The number of records.
+     */
+    public long getRecordCount() {
+        return mRecordCount.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the journal was closed,
+     * an event could not be encoded, a record was larger than a segment, or
+     * a segment could not be created.
+     * @return The number of dropped records.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    Segment getCurrentSegment() {
+        return mCurrent.get();
+    }
+
+    /**
+     * Returns the directory holding the segment files.
+     * @return The journal directory.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Stops the journal.  Records appended from now on are dropped.  This
+     * waits for the background thread to flush and close every segment.
+     */
+    public void close() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (mRunning) {
+            if (mSpare.get() == null) {
+                createSpare();
+            }
+            sealSegments();
+            LockSupport.parkNanos(this, Constants.JOURNAL_ROLL_PARK_NANOSECONDS);
+        }
+        Segment spare = mSpare.getAndSet(null);
+        Segment current = mCurrent.get();
+        mSealed.add(current);
+        sealSegments();
+        if (spare != null && spare != current) {
+            try {
+                spare.discard();
+            }
+            catch (IOException ex) {
+                BioteManager.mLogger.log(Level.WARNING,
+                        "Unable to close journal segment", ex);
+            }
+        }
+    }
+
+    /*
+     * Unmaps a buffer which nothing will touch again.  There is no public
+     * way to do this, so it goes through the JDK's cleaner.  If that is not
+     * reachable the buffer is left for the garbage collector.
+     */
+    private static void unmap(final MappedByteBuffer aBuffer) {
+        try {
+            // Java 9 and later.
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), aBuffer);
+            return;
+        }
+        catch (Exception ex) {
+        }
+        try {
+            // Java 8.
+            Method cleanerMethod = aBuffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(aBuffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Exception ex) {
+        }
+    }
+
+    private void sealSegments() {
+        Segment segment = mSealed.poll();
+        while (segment != null) {
+            try {
+                segment.seal();
+            }
+            catch (IOException ex) {
+                BioteManager.mLogger.log(Level.WARNING,
+                        "Unable to close journal segment", ex);
+            }
+            segment = mSealed.poll();
+        }
+    }
+
+    /*
+     * Maps a spare segment unless there already is one.
+     */
+    private synchronized Segment createSpare() {
+        Segment spare = mSpare.get();
+        if (spare == null && mRunning) {
+            try {
+                spare = newSegment();
+                mSpare.set(spare);
+            }
+            catch (IOException ex) {
+                BioteManager.mLogger.log(Level.SEVERE,
+                        "Unable to create journal segment", ex);
+            }
+        }
+        return spare;
+    }
+
+    private Segment newSegment() throws IOException {
+        File file = new File(mDirectory,
+                String.format("%s%08d%s", SEGMENT_PREFIX, mNextSegment, SEGMENT_SUFFIX));
+        mNextSegment++;
+        return new Segment(file, mSegmentBytes);
+    }
+
+    /*
+     * Returns the segment files in the given directory, in the order they
+     * were written.
+     */
+    static File[] segmentFiles(final File aDirectory) {
+        File[] files = aDirectory.listFiles(new FilenameFilter() {
+            public boolean accept(final File aDir, final String aName) {
+                return aName.startsWith(SEGMENT_PREFIX) && aName.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int segmentNumber(final File aFile) {
+        String name = aFile.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.json.JSONStringSerializer;
+
+/**
+ * This class reads back an {@link org.ensor.threads.biote.EventJournal EventJournal}
+ * and can replay it into a Biote manager.  Run from the command line with
+ * the journal directory as its argument, it prints every record.
+ *
+ * @author Jon
+ */
+public class EventJournalReader {
+
+    /**
+     * One event read from the journal.
+     */
+    public static final class Record {
+        private final long      mTimeMillis;
+        private final long      mSourceBioteId;
+        private final long      mTargetBioteId;
+        private final byte      mFlags;
+        private final Event     mEvent;
+
+        Record(
+                final long aTimeMillis,
+                final long aSourceBioteId,
+                final long aTargetBioteId,
+                final byte aFlags,
+                final Event aEvent) {
+            mTimeMillis = aTimeMillis;
+            mSourceBioteId = aSourceBioteId;
+            mTargetBioteId = aTargetBioteId;
+            mFlags = aFlags;
+            mEvent = aEvent;
+        }
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+        public long getSourceBioteId() {
+            return mSourceBioteId;
+        }
+        public long getTargetBioteId() {
+            return mTargetBioteId;
+        }
+        public Event getEvent() {
+            return mEvent;
+        }
+        /**
+         * Returns true if the event was sent by a timer.
+         * @return True for timer events.
+         */
+        public boolean isTimerEvent() {
+            return (mFlags & JournalCodec.FLAG_TIMER) != 0;
+        }
+        /**
+         * Returns true if the event's payload could not be recorded because
+         * it was not a dictionary.  Such events are read back without data.
+         * @return True if the payload is missing.
+         */
+        public boolean isPayloadMissing() {
+            return (mFlags & JournalCodec.FLAG_OPAQUE_PAYLOAD) != 0;
+        }
+    }
+
+    private final File[]        mFiles;
+    private int                 mNextFile;
+    private ByteBuffer          mBuffer;
+
+    /**
+     * Opens the journal in the given directory.
+     * @param aDirectory The directory holding the segment files.
+     */
+    public EventJournalReader(final File aDirectory) {
+        mFiles = EventJournal.segmentFiles(aDirectory);
+        mNextFile = 0;
+        mBuffer = null;
+    }
+
+    /**
+     * Reads the next record.
+     * @return The record, or null at the end of the journal.
+     * @throws Exception If a segment cannot be read.
+     */
+    public Record next() throws Exception {
+        while (true) {
+            if (mBuffer != null && mBuffer.remaining() >= JournalCodec.HEADER_BYTES) {
+                int start = mBuffer.position();
+                int length = mBuffer.getInt();
+                if (length >= JournalCodec.HEADER_BYTES &&
+                        length <= mBuffer.remaining() + 4) {
+                    byte flags = mBuffer.get();
+                    long time = mBuffer.getLong();
+                    long source = mBuffer.getLong();
+                    long target = mBuffer.getLong();
+                    String name = JournalCodec.getString(mBuffer);
+                    DictionaryAtom data = DictionaryAtom.newAtom();
+                    JournalCodec.getDictionary(mBuffer, data);
+                    mBuffer.position(start + length);
+                    return new Record(time, source, target, flags,
+                            new Event(name, data));
+                }
+            }
+            // The rest of this segment was never written.
+            if (mNextFile >= mFiles.length) {
+                return null;
+            }
+            mBuffer = map(mFiles[mNextFile++]);
+        }
+    }
+
+    private static ByteBuffer map(final File aFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(aFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Sends every remaining event in the journal to the given Biote manager,
+     * as it was originally sent.  Events are spaced out as they originally
+     * were, divided by the given speed, so that a speed of 2 replays twice
+     * as fast.  A speed of zero sends the events as fast as possible.
+     * @param aBioteManager The Biote manager to send the events to.
+     * @param aSpeed How much faster than the original to replay.
+     * @param aIncludeTimers False to leave out events sent by timers, for
+     *                       Biotes which start the same timers again.
+     * @return The number of events sent.
+     * @throws Exception If the journal cannot be read.
+     */
+    public int replay(
+            final BioteManager aBioteManager,
+            final double aSpeed,
+            final boolean aIncludeTimers) throws Exception {
+        long start = System.nanoTime();
+        long firstTime = -1;
+        int count = 0;
+        for (Record r = next(); r != null; r = next()) {
+            if (firstTime < 0) {
+                firstTime = r.getTimeMillis();
+            }
+            if (aSpeed > 0) {
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(
+                        r.getTimeMillis() - firstTime) / aSpeed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            count += send(aBioteManager, r, aIncludeTimers);
+        }
+        return count;
+    }
+
+    /**
+     * Sends every remaining event in the journal to a Biote manager running
+     * on virtual time.  The executor's clock is advanced to the original
+     * spacing of the events, so the replay takes no longer than the Biotes
+     * need to handle the events.
+     * @param aBioteManager The Biote manager to send the events to.
+     * @param aVirtualTime The executor driving the Biote manager.
+     * @param aIncludeTimers False to leave out events sent by timers.
+     * @return The number of events sent.
+     * @throws Exception If the journal cannot be read.
+     */
+    public int replay(
+            final BioteManager aBioteManager,
+            final VirtualTimeExecutor aVirtualTime,
+            final boolean aIncludeTimers) throws Exception {
+        long previousTime = -1;
+        int count = 0;
+        for (Record r = next(); r != null; r = next()) {
+            if (previousTime >= 0 && r.getTimeMillis() > previousTime) {
+                aVirtualTime.runFor(r.getTimeMillis() - previousTime);
+            }
+            previousTime = r.getTimeMillis();
+            count += send(aBioteManager, r, aIncludeTimers);
+        }
+        aVirtualTime.runFor(0);
+        return count;
+    }
+
+    private static int send(
+            final BioteManager aBioteManager,
+            final Record aRecord,
+            final boolean aIncludeTimers) {
+        if (!aIncludeTimers && aRecord.isTimerEvent()) {
+            return 0;
+        }
+        aBioteManager.sendStimulus(aRecord.getTargetBioteId(),
+                aRecord.getEvent(), aRecord.getSourceBioteId());
+        return 1;
+    }
+
+    /**
+     * Prints every record of the journal in the given directory.
+     * @param args The journal directory.
+     * @throws Exception If the journal cannot be read.
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: EventJournalReader <journal directory>");
+            System.exit(1);
+        }
+        EventJournalReader reader = new EventJournalReader(new File(args[0]));
+        for (Record r = reader.next(); r != null; r = reader.next()) {
+            System.out.println(r.getTimeMillis() + " " +
+                    r.getSourceBioteId() + "->" + r.getTargetBioteId() + " " +
+                    r.getEvent().getEventName() +
+                    (r.isTimerEvent() ? " (timer) " : " ") +
+                    JSONStringSerializer.instance().serializeTo(
+                            r.getEvent().getDictionary()));
+        }
+    }
+}
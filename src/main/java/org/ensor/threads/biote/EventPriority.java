@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration gives the priority class of an event.  A Biote
+ * registers the priority of an event name when it subscribes to the
+ * event or through {@link Biote#setEventPriority setEventPriority}.
+ * Events with no registered priority are {@link #NORMAL}.
+ * @author Jon
+ */
+public enum EventPriority {
+    /**
+     * The event is handled in the order in which it was sent, behind any
+     * other events already waiting for the Biote.
+     */
+    NORMAL,
+    /**
+     * The event is handled ahead of any waiting normal events, and a Biote
+     * with such an event waiting is scheduled ahead of Biotes which only
+     * have normal events waiting.  This is meant for control events such
+     * as an emergency stop whose latency must not depend on how many
+     * other events are queued.
+     */
+    HIGH
+}
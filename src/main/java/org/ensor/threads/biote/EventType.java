@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An EventType is the interned identity of an event name.  There is exactly
+ * one EventType for each name, so event types can be compared by
+ * reference, and each one has a small integer ID which Biotes use to
+ * index their handler, routing and priority tables instead of hashing
+ * the name for every event.
+ *
+ * Event types live for the life of the process, so they should be created
+ * for a fixed set of names, typically held in constants:
+ * <pre>
+ * private static final EventType TICK_EVENT = EventType.get("Mover-Tick");
+ * </pre>
+ *
+ * @author Jon
+ */
+public final class EventType {
+    private static final ConcurrentMap<String, EventType>   mTypes =
+            new ConcurrentHashMap<String, EventType>();
+    private static final AtomicInteger                      mTypeIds =
+            new AtomicInteger(0);
+    private static volatile EventType[]                     mTypesById =
+            new EventType[0];
+
+    private final int       mId;
+    private final String    mName;
+
+    private EventType(final int aId, final String aName) {
+        mId = aId;
+        mName = aName;
+    }
+
+    /**
+     * Returns the event type with the given name, creating it if this is
+     * the first time the name is used.
+     * @param aName Name of the event.
+     * @return The event type for that name.
+     */
+    public static EventType get(final String aName) {
+        EventType type = mTypes.get(aName);
+        if (type != null) {
+            return type;
+        }
+        synchronized (mTypes) {
+            type = mTypes.get(aName);
+            if (type == null) {
+                type = new EventType(mTypeIds.getAndIncrement(), aName);
+                EventType[] typesById = Arrays.copyOf(mTypesById, type.mId + 1);
+                typesById[type.mId] = type;
+                mTypesById = typesById;
+                mTypes.put(aName, type);
+            }
+            return type;
+        }
+    }
+
+    /**
+     * Returns the event type with the given ID.
+     * @param aId The ID of an existing event type.
+     * @return The event type with that ID.
+     */
+    public static EventType forId(final int aId) {
+        return mTypesById[aId];
+    }
+
+    /**
+     * Returns the ID of this event type.  IDs are handed out densely
+     * starting from zero.
+     * @return The ID of this event type.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the name of this event type.
+     * @return The name of this event type.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
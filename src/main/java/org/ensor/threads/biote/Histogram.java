@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is a histogram of non-negative values with logarithmic buckets.
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so
+ * a value is recorded with a relative error of at most 1 / SUB_BUCKETS
+ * whatever its size, using a fixed, small number of buckets.
+ *
+ * Recording a value never allocates or locks.  The buckets are striped
+ * over several arrays, and each thread records into the stripe chosen by
+ * its thread ID, so threads rarely contend for the same counter.  A
+ * snapshot drains the stripes bucket by bucket while other threads keep
+ * recording; a value recorded during the snapshot lands in either this
+ * snapshot or the next one.
+ *
+ * @author Jon
+ */
+class Histogram {
+    private static final int    SUB_BUCKET_BITS = 3;
+    static final int            SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int            BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray[]     mStripes;
+    private final int                   mStripeMask;
+
+    Histogram() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = Math.min(Integer.highestOneBit(Math.max(processors, 1)),
+                Constants.STAT_MAX_STRIPES);
+        mStripes = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mStripeMask = stripes - 1;
+    }
+
+    /**
+     * Returns the bucket which holds the given value.
+     * @param aValue A non-negative value.
+     * @return The index of the bucket.
+     */
+    static int bucketOf(final long aValue) {
+        if (aValue < SUB_BUCKETS) {
+            return (int) Math.max(aValue, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(aValue);
+        int sub = (int) (aValue >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the smallest value which falls in the given bucket.
+     * @param aBucket The index of the bucket.
+     * @return The lower bound of the bucket.
+     */
+    static long lowerBoundOf(final int aBucket) {
+        if (aBucket < SUB_BUCKETS) {
+            return aBucket;
+        }
+        int exponent = aBucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = aBucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Records one value.
+     * @param aValue The value to record.  Negative values are recorded
+     *               as zero.
+     */
+    void record(final long aValue) {
+        int stripe = (int) Thread.currentThread().getId() & mStripeMask;
+        mStripes[stripe].getAndIncrement(bucketOf(aValue));
+    }
+
+    /**
+     * Takes the counts recorded since the last snapshot and resets them.
+     * @return The number of values recorded in each bucket.
+     */
+    long[] snapshotAndReset() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : mStripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                if (stripe.get(i) != 0) {
+                    counts[i] += stripe.getAndSet(i, 0);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded
+     * values fall.
+     * @param aCounts Bucket counts as returned by {@link #snapshotAndReset}.
+     * @param aFraction A fraction between zero and one.
+     * @return The lower bound of the bucket holding that value, or zero if
+     *         no values were recorded.
+     */
+    static long percentile(final long[] aCounts, final double aFraction) {
+        long total = 0;
+        for (long c : aCounts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * aFraction);
+        long seen = 0;
+        for (int i = 0; i < aCounts.length; i++) {
+            seen += aCounts[i];
+            if (seen >= rank && aCounts[i] != 0) {
+                return lowerBoundOf(i);
+            }
+        }
+        return lowerBoundOf(aCounts.length - 1);
+    }
+}
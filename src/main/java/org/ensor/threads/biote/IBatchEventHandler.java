@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.List;
+
+/**
+ * This is the handler for a batch of events with the same name.  A Biote
+ * which can handle several events at once more cheaply than one at a
+ * time subscribes with a batch handler.  All of the consecutive events of
+ * that name waiting in the Biote's queue are then delivered in one call.
+ *
+ * <pre>
+ *
+ * subscribeBatch("Net-Out", new IBatchEventHandler() {
+ *         public void process(List&lt;Event&gt; msgs) throws Exception {
+ *              onNetOut(msgs);
+ *          }
+ *       });
+ *
+ * </pre>
+ * @author Jon
+ */
+public interface IBatchEventHandler {
+    /**
+     * This method is the handler for a batch of events.  The list is only
+     * valid for the duration of the call and must not be kept.
+     * @param msgs The events to be handled, in the order they were sent.
+     * @throws Exception Any exceptions thrown by the handler will be
+     *                   caught and logged by the Biote manager.
+     */
+    void process(List<Event> msgs) throws Exception;
+};
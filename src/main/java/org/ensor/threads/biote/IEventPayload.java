@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import org.ensor.data.atom.DictionaryAtom;
+
+/**
+ * An event payload is a plain Java object carried by an
+ * {@link Event} in place of a dictionary.  Biotes which understand the
+ * payload read its fields directly through
+ * {@link Event#getPayload(java.lang.Class) getPayload}, and the payload is
+ * only converted into a dictionary if something asks for the event's data,
+ * for example when the event is serialized to a client.
+ * <pre>
+ * class PositionUpdate implements IEventPayload {
+ *     final double x;
+ *     final double y;
+ *     ...
+ *     public DictionaryAtom toDictionary() {
+ *         DictionaryAtom dict = DictionaryAtom.newAtom();
+ *         dict.setReal("x", x);
+ *         dict.setReal("y", y);
+ *         return dict;
+ *     }
+ * }
+ * </pre>
+ * A payload should not be changed after the event carrying it is sent.
+ *
+ * @author Jon
+ */
+public interface IEventPayload {
+    /**
+     * Converts the payload into a dictionary.
+     * @return A dictionary holding the values of the payload.
+     */
+    DictionaryAtom toDictionary();
+}
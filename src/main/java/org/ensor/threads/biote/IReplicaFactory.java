@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This creates the replicas of a {@link RouterBiote RouterBiote}.  It is
+ * usually an anonymous class, as in the following:
+ *
+ * <pre>
+ *
+ * new RouterBiote(bioteManager, RoutingStrategy.ROUND_ROBIN, 2, 8,
+ *         new IReplicaFactory() {
+ *             public Biote newReplica(BioteManager aBioteManager) throws Exception {
+ *                 return new DecoderBiote(aBioteManager);
+ *             }
+ *         });
+ *
+ * </pre>
+ * @author Jon
+ */
+public interface IReplicaFactory {
+    /**
+     * This method creates a new replica.  The router adds it to the Biote
+     * manager.
+     * @param aBioteManager The Biote manager the replica belongs to.
+     * @return The new replica.
+     * @throws Exception If the replica could not be created.
+     */
+    Biote newReplica(BioteManager aBioteManager) throws Exception;
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.ensor.data.atom.Atom;
+import org.ensor.data.atom.BoolAtom;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.IDictionaryVisitable;
+import org.ensor.data.atom.IDictionaryVisitor;
+import org.ensor.data.atom.IListVisitable;
+import org.ensor.data.atom.IListVisitor;
+import org.ensor.data.atom.IntAtom;
+import org.ensor.data.atom.ListAtom;
+import org.ensor.data.atom.RealAtom;
+
+/**
+ * This class encodes journal records into a buffer which is reused by the
+ * thread owning the codec, and decodes them again.  A record is laid out
+ * as follows, in big endian order:
+ * <pre>
+ *   int    length of the whole record, written last
+ *   byte   flags
+ *   long   time in milliseconds
+ *   long   source Biote ID
+ *   long   target Biote ID
+ *   string event name
+ *   dict   event data
+ * </pre>
+ * A string is an int byte count followed by UTF-8 bytes.  A dictionary
+ * is an entry count followed by each key and value, and a list is an
+ * element count followed by each value.  A value is its
+ * {@link org.ensor.data.atom.Atom Atom} type followed by its data.
+ *
+ * @author Jon
+ */
+class JournalCodec {
+    static final int                    HEADER_BYTES = 4 + 1 + 8 + 8 + 8;
+    static final byte                   FLAG_TIMER = 1;
+    static final byte                   FLAG_OPAQUE_PAYLOAD = 2;
+
+    private static final Charset        UTF8 = Charset.forName("UTF-8");
+    private static final int            INITIAL_SIZE = 4096;
+
+    private ByteBuffer                  mBuffer;
+
+    JournalCodec() {
+        mBuffer = ByteBuffer.allocate(INITIAL_SIZE);
+    }
+
+    /**
+     * Encodes a record.  The buffer returned is only valid until this
+     * codec encodes its next record.  An event whose payload is not a
+     * dictionary is recorded without its data.
+     * @return The record, from its start to its end.
+     * @throws IllegalArgumentException If the data of the event cannot be
+     *                                  encoded.
+     */
+    ByteBuffer encode(
+            final long aTimeMillis,
+            final long aSourceBioteId,
+            final long aTargetBioteId,
+            final Event aEvent,
+            final byte aFlags) {
+        byte flags = aFlags;
+        start(aTimeMillis, aSourceBioteId, aTargetBioteId, aEvent);
+        if (aEvent.hasDictionary()) {
+            try {
+                putDictionary(aEvent.getDictionary());
+            }
+            catch (Exception ex) {
+                throw new IllegalArgumentException("Unable to encode the data of event '" +
+                        aEvent.getEventName() + "'", ex);
+            }
+        }
+        else {
+            // Only the event itself is recorded.
+            flags |= FLAG_OPAQUE_PAYLOAD;
+            ensure(4);
+            mBuffer.putInt(0);
+        }
+        mBuffer.put(4, flags);
+        mBuffer.putInt(0, mBuffer.position());
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    private void start(
+            final long aTimeMillis,
+            final long aSourceBioteId,
+            final long aTargetBioteId,
+            final Event aEvent) {
+        mBuffer.clear();
+        ensure(HEADER_BYTES);
+        mBuffer.putInt(0);
+        mBuffer.put((byte) 0);
+        mBuffer.putLong(aTimeMillis);
+        mBuffer.putLong(aSourceBioteId);
+        mBuffer.putLong(aTargetBioteId);
+        putString(aEvent.getEventName());
+    }
+
+    private void putDictionary(final IDictionaryVisitable aDict) throws Exception {
+        ensure(4);
+        int countAt = mBuffer.position();
+        mBuffer.putInt(0);
+        final int[] count = new int[1];
+        aDict.visitPairs(new IDictionaryVisitor() {
+            public void visit(final String aKey, final Atom aValue) throws Exception {
+                putString(aKey);
+                putValue(aValue);
+                count[0]++;
+            }
+        });
+        mBuffer.putInt(countAt, count[0]);
+    }
+
+    private void putList(final IListVisitable aList) throws Exception {
+        ensure(4);
+        int countAt = mBuffer.position();
+        mBuffer.putInt(0);
+        final int[] count = new int[1];
+        aList.visitAtoms(new IListVisitor() {
+            public void visit(final Atom aValue) throws Exception {
+                putValue(aValue);
+                count[0]++;
+            }
+        });
+        mBuffer.putInt(countAt, count[0]);
+    }
+
+    private void putValue(final Atom aValue) throws Exception {
+        ensure(9);
+        mBuffer.put((byte) aValue.getType());
+        switch (aValue.getType()) {
+            case Atom.ATOM_TYPE_BOOLEAN:
+                mBuffer.put(((BoolAtom) aValue).getValue() ? (byte) 1 : (byte) 0);
+                break;
+            case Atom.ATOM_TYPE_INT:
+                mBuffer.putLong(((IntAtom) aValue).getValue());
+                break;
+            case Atom.ATOM_TYPE_REAL:
+                mBuffer.putDouble(((RealAtom) aValue).getValue());
+                break;
+            case Atom.ATOM_TYPE_STRING:
+                putString(aValue.toString());
+                break;
+            case Atom.ATOM_TYPE_DICTIONARY:
+                putDictionary((IDictionaryVisitable) aValue);
+                break;
+            case Atom.ATOM_TYPE_LIST:
+                putList((IListVisitable) aValue);
+                break;
+            default:
+                throw new Exception("Unknown Atom type " + aValue.getType());
+        }
+    }
+
+    private void putString(final String aValue) {
+        byte[] bytes = aValue.getBytes(UTF8);
+        ensure(4 + bytes.length);
+        mBuffer.putInt(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    private void ensure(final int aBytes) {
+        if (mBuffer.remaining() < aBytes) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(mBuffer.capacity() * 2, mBuffer.position() + aBytes));
+            mBuffer.flip();
+            larger.put(mBuffer);
+            mBuffer = larger;
+        }
+    }
+
+    /**
+     * Reads a string written by this codec.  The byte count is checked
+     * against the bytes left in the buffer before anything is allocated.
+     */
+    static String getString(final ByteBuffer aBuffer) {
+        int length = aBuffer.getInt();
+        if (length < 0 || length > aBuffer.remaining()) {
+            throw new IllegalArgumentException("A string of " + length +
+                    " bytes does not fit in the " + aBuffer.remaining() +
+                    " bytes left in the record.");
+        }
+        byte[] bytes = new byte[length];
+        aBuffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads a dictionary written by this codec into the given dictionary.
+     */
+    static void getDictionary(final ByteBuffer aBuffer, final DictionaryAtom aDict)
+            throws Exception {
+        int count = aBuffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = getString(aBuffer);
+            int type = aBuffer.get();
+            switch (type) {
+                case Atom.ATOM_TYPE_BOOLEAN:
+                    aDict.setBoolean(key, aBuffer.get() != 0);
+                    break;
+                case Atom.ATOM_TYPE_INT:
+                    aDict.setInt(key, aBuffer.getLong());
+                    break;
+                case Atom.ATOM_TYPE_REAL:
+                    aDict.setReal(key, aBuffer.getDouble());
+                    break;
+                case Atom.ATOM_TYPE_STRING:
+                    aDict.setString(key, getString(aBuffer));
+                    break;
+                case Atom.ATOM_TYPE_DICTIONARY:
+                    getDictionary(aBuffer, aDict.newDictionary(key));
+                    break;
+                case Atom.ATOM_TYPE_LIST:
+                    getList(aBuffer, aDict.newList(key));
+                    break;
+                default:
+                    throw new Exception("Unknown Atom type " + type);
+            }
+        }
+    }
+
+    private static void getList(final ByteBuffer aBuffer, final ListAtom aList)
+            throws Exception {
+        int count = aBuffer.getInt();
+        for (int i = 0; i < count; i++) {
+            int type = aBuffer.get();
+            switch (type) {
+                case Atom.ATOM_TYPE_BOOLEAN:
+                    aList.append(aBuffer.get() != 0);
+                    break;
+                case Atom.ATOM_TYPE_INT:
+                    aList.append(aBuffer.getLong());
+                    break;
+                case Atom.ATOM_TYPE_REAL:
+                    aList.append(aBuffer.getDouble());
+                    break;
+                case Atom.ATOM_TYPE_STRING:
+                    aList.append(getString(aBuffer));
+                    break;
+                case Atom.ATOM_TYPE_DICTIONARY:
+                    getDictionary(aBuffer, aList.newDictionary());
+                    break;
+                case Atom.ATOM_TYPE_LIST:
+                    getList(aBuffer, aList.newList());
+                    break;
+                default:
+                    throw new Exception("Unknown Atom type " + type);
+            }
+        }
+    }
+}
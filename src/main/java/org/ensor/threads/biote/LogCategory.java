@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration names the categories of diagnostic logging done by the
+ * Biote framework.  Each category is switched on and off at runtime with
+ * {@link BioteManager#setLogEnabled setLogEnabled}.  A category starts out
+ * switched on or off according to the matching logging constant in
+ * {@link Constants}.
+ * @author Jon
+ */
+public enum LogCategory {
+    /**
+     * Sending events and the lifecycle of the Biote manager's threads.
+     */
+    BIOTE_MANAGER(Constants.LOG_BIOTE_MANAGER),
+    /**
+     * Handling events and the lifecycle of each Biote.
+     */
+    BIOTE_CORE(Constants.LOG_BIOTE_CORE),
+    /**
+     * Changes to boolean sets.
+     */
+    BOOLEAN_SET(Constants.LOG_BOOLEAN_SET),
+    /**
+     * The init Biote.
+     */
+    INIT_BIOTE(Constants.LOG_INIT_BIOTE);
+
+    private final boolean mEnabledByDefault;
+
+    LogCategory(final boolean aEnabledByDefault) {
+        mEnabledByDefault = aEnabledByDefault;
+    }
+
+    /**
+     * Returns true if this category is switched on when a Biote manager
+     * is created.
+     * @return True if the category is on by default.
+     */
+    public boolean isEnabledByDefault() {
+        return mEnabledByDefault;
+    }
+
+    int mask() {
+        return 1 << ordinal();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import org.ensor.data.atom.Atom;
+import org.ensor.data.atom.log.AtomLogger;
+
+/**
+ * This hands log messages from the threads of a Biote manager to a thread
+ * of its own, which formats them and writes them to the logger.  The
+ * threads handling events never format a message, never take a lock and
+ * never wait for the logger.
+ *
+ * Once the sink is closed, messages are written by the thread logging
+ * them.
+ *
+ * The messages go into a ring of entries which are all allocated up
+ * front.  A thread claims the next entry with a compare and set, fills it
+ * in with the message template and its arguments, and then publishes it.
+ * The log thread takes the entries in order, and parks without a timeout
+ * when the ring is empty.  Before parking it raises a flag, and a thread
+ * which publishes an entry while the flag is up wakes it, so an idle
+ * manager costs no timer wakeups.  When the ring is full the
+ * message is dropped and counted rather than making the thread wait; the
+ * log thread reports the number of dropped messages.
+ *
+ * A template marks the place of each argument with "{}".  The arguments
+ * are turned into strings on the log thread, so they should not be
+ * changed after they are logged.  Atoms are copied when they are logged.
+ *
+ * @author Jon
+ */
+class LogSink implements Runnable {
+    private final Logger        mLogger;
+    private final String        mPrefix;
+    private final Entry[]       mEntries;
+    private final int           mMask;
+    private final AtomicLong    mClaimed;
+    private final AtomicLong    mConsumed;
+    private final AtomicLong    mDropped;
+    private final Thread        mThread;
+    private long                mReportedDropped;
+    private volatile boolean    mRunning;
+    private volatile boolean    mParked;
+
+    LogSink(final Logger aLogger, final String aPrefix, final int aCapacity) {
+        mLogger = aLogger;
+        mPrefix = aPrefix;
+        int capacity = Integer.highestOneBit(Math.max(aCapacity, 2) * 2 - 1);
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry(i - capacity);
+        }
+        mMask = capacity - 1;
+        mClaimed = new AtomicLong(0);
+        mConsumed = new AtomicLong(0);
+        mDropped = new AtomicLong(0);
+        mRunning = true;
+        mThread = new Thread(this, aPrefix + ":log");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Adds a message to the ring.  Any of the arguments may be null.
+     * @param aBioteId The Biote the message is about.
+     * @param aTemplate The message, with "{}" marking each argument.
+     * @param aArg1 The first argument.
+     * @param aArg2 The second argument.
+     * @param aArg3 The third argument.
+     * @param aAtom An atom to dump after the message.
+     */
+    void append(
+            final long aBioteId,
+            final String aTemplate,
+            final Object aArg1,
+            final Object aArg2,
+            final Object aArg3,
+            final Atom aAtom) {
+        if (!mRunning) {
+            // The log thread has stopped, so write the message here.
+            write(mPrefix + ":[" + Thread.currentThread().getId() + "][" + aBioteId + "]" +
+                    format(aTemplate, aArg1, aArg2, aArg3), aAtom);
+            return;
+        }
+        long sequence;
+        do {
+            sequence = mClaimed.get();
+            if (sequence - mConsumed.get() >= mEntries.length) {
+                mDropped.incrementAndGet();
+                return;
+            }
+        } while (!mClaimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = mEntries[(int) sequence & mMask];
+        entry.mBioteId = aBioteId;
+        entry.mThreadId = Thread.currentThread().getId();
+        entry.mTemplate = aTemplate;
+        entry.mArg1 = aArg1;
+        entry.mArg2 = aArg2;
+        entry.mArg3 = aArg3;
+        // The dumper wants mutable atoms, so take a mutable copy of an
+        // immutable copy.
+        entry.mAtom = aAtom == null ? null : aAtom.getImmutable().getMutable();
+        // A full volatile write, so that either the log thread sees the
+        // entry before it parks or this thread sees that it is parked.
+        entry.mPublished.set(sequence);
+        if (mParked) {
+            mParked = false;
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring was full.
+     * @return The number of dropped messages.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Writes out the messages still in the ring and stops the log thread.
+     */
+    void close() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join(TimeUnit.SECONDS.toMillis(1));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            boolean running = mRunning;
+            int written = drain();
+            if (!running) {
+                break;
+            }
+            if (written == 0) {
+                mParked = true;
+                // Look once more, in case an entry was published before the
+                // flag went up.
+                Entry next = mEntries[(int) mConsumed.get() & mMask];
+                if (next.mPublished.get() != mConsumed.get() && mRunning) {
+                    LockSupport.park(this);
+                }
+                mParked = false;
+            }
+        }
+    }
+
+    private int drain() {
+        int written = 0;
+        long sequence = mConsumed.get();
+        while (true) {
+            Entry entry = mEntries[(int) sequence & mMask];
+            if (entry.mPublished.get() != sequence) {
+                break;
+            }
+            String message = mPrefix + ":[" + entry.mThreadId + "][" + entry.mBioteId + "]" +
+                    format(entry.mTemplate, entry.mArg1, entry.mArg2, entry.mArg3);
+            Atom atom = entry.mAtom;
+            entry.mTemplate = null;
+            entry.mArg1 = null;
+            entry.mArg2 = null;
+            entry.mArg3 = null;
+            entry.mAtom = null;
+            sequence++;
+            mConsumed.lazySet(sequence);
+            write(message, atom);
+            written++;
+        }
+        long dropped = mDropped.get();
+        if (dropped != mReportedDropped) {
+            mLogger.warning(mPrefix + ":" + (dropped - mReportedDropped) +
+                    " log messages were dropped because the log ring was full");
+            mReportedDropped = dropped;
+        }
+        return written;
+    }
+
+    private void write(final String aMessage, final Atom aAtom) {
+        try {
+            if (aAtom == null) {
+                mLogger.info(aMessage);
+            }
+            else {
+                AtomLogger.dump(mLogger, aMessage, aAtom);
+            }
+        }
+        catch (Exception ex) {
+            mLogger.warning(mPrefix + ":Failed to write a log message: " + ex.toString());
+        }
+    }
+
+    /*
+     * Replaces each "{}" in the template with the next argument.
+     */
+    static String format(
+            final String aTemplate,
+            final Object aArg1,
+            final Object aArg2,
+            final Object aArg3) {
+        if (aTemplate.indexOf("{}") < 0) {
+            return aTemplate;
+        }
+        StringBuilder out = new StringBuilder(aTemplate.length() + 32);
+        int arg = 0;
+        int start = 0;
+        int mark;
+        while ((mark = aTemplate.indexOf("{}", start)) >= 0) {
+            out.append(aTemplate, start, mark);
+            out.append(arg == 0 ? aArg1 : arg == 1 ? aArg2 : aArg3);
+            start = mark + 2;
+            if (++arg == 3) {
+                break;
+            }
+        }
+        out.append(aTemplate, start, aTemplate.length());
+        return out.toString();
+    }
+
+    private static final class Entry {
+        private final AtomicLong    mPublished;
+        private long                mBioteId;
+        private long                mThreadId;
+        private String              mTemplate;
+        private Object              mArg1;
+        private Object              mArg2;
+        private Object              mArg3;
+        private Atom                mAtom;
+
+        private Entry(final long aPublished) {
+            mPublished = new AtomicLong(aPublished);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * This is the queue of events waiting to be handled by a Biote.  Any number
+ * of threads may add events to the mailbox concurrently without taking a
+ * lock.  Events are normally removed by the thread which is currently
+ * processing the Biote, but a producer may also remove the oldest event to
+ * make room in a full mailbox.
+ *
+ * The mailbox is a linked list with a dummy node at its head.  A producer
+ * swaps its new node into the tail with a single atomic exchange and then
+ * links the previous tail to it.  Between those two steps the new node is
+ * not yet reachable from the head, so the mailbox may briefly look empty
+ * to the consumer; the producer always completes the link before it tries
+ * to schedule the Biote, so no event is lost.  Removing an event moves the
+ * head forward with a compare and set, so the consumer and a producer
+ * dropping the oldest event never both take the same event.
+ *
+ * The mailbox keeps a count of its events so that a capacity can be
+ * enforced.  A producer reserves its place in the count before it links
+ * its node.  Each node also records when it was added, and the time each
+ * event spent waiting is sampled when the consumer takes it.
+ *
+ * An event with a conflation key replaces the event waiting in the node
+ * registered for that key, if that event has not been taken yet.  The
+ * node keeps its place in the queue and the count does not change.  The
+ * event of a node is swapped with a compare and set, and taken with an
+ * atomic exchange, so an event is either replaced or handled but never
+ * both.
+ *
+ * @author Jon
+ */
+class Mailbox {
+
+    static final class Node {
+        private static final AtomicReferenceFieldUpdater<Node, Event> EVENT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Event.class, "mEvent");
+
+        private volatile Event  mEvent;
+        private volatile Node   mNext;
+        private final long      mEnqueueTime;
+
+        Node(final Event aEvent, final long aEnqueueTime) {
+            mEvent = aEvent;
+            mEnqueueTime = aEnqueueTime;
+        }
+
+        boolean replaceEvent(final Event aWaiting, final Event aEvent) {
+            return EVENT.compareAndSet(this, aWaiting, aEvent);
+        }
+
+        Event takeEvent() {
+            return EVENT.getAndSet(this, null);
+        }
+    }
+
+    private final AtomicReference<Node>             mHead;
+    private final AtomicReference<Node>             mTail;
+    private final AtomicInteger                     mSize;
+    private final ConcurrentHashMap<String, Node>   mConflated;
+    private final BioteStats                        mStats;
+
+    /**
+     * Creates an empty mailbox.
+     * @param aStats The statistics in which to record how long each event
+     *               waited before it was taken.
+     */
+    Mailbox(final BioteStats aStats) {
+        Node stub = new Node(null, 0);
+        mStats = aStats;
+        mHead = new AtomicReference<Node>(stub);
+        mTail = new AtomicReference<Node>(stub);
+        mSize = new AtomicInteger(0);
+        mConflated = new ConcurrentHashMap<String, Node>();
+    }
+
+    /**
+     * Replaces the waiting event with the same conflation key as the
+     * given event.  This may be called from any thread.
+     * @param aEvent The new event.
+     * @return True if a waiting event was replaced, or false if the event
+     *         has no conflation key or no event with that key is waiting.
+     */
+    boolean replace(final Event aEvent) {
+        String key = aEvent.getConflationKey();
+        if (key == null) {
+            return false;
+        }
+        Node node = mConflated.get(key);
+        if (node == null) {
+            return false;
+        }
+        Event waiting = node.mEvent;
+        return waiting != null && node.replaceEvent(waiting, aEvent);
+    }
+
+    /**
+     * Adds an event to the end of the mailbox.  This may be called from
+     * any thread.
+     * @param aEvent The event to add.
+     */
+    void offer(final Event aEvent) {
+        mSize.incrementAndGet();
+        link(newNode(aEvent, System.nanoTime()));
+    }
+
+    /**
+     * Adds an event to the end of the mailbox if the mailbox holds fewer
+     * than the given number of events.  This may be called from any
+     * thread.
+     * @param aEvent The event to add.
+     * @param aCapacity The maximum number of events in the mailbox.
+     * @return True if the event was added.
+     */
+    boolean offer(final Event aEvent, final int aCapacity) {
+        while (true) {
+            int size = mSize.get();
+            if (size >= aCapacity) {
+                return false;
+            }
+            if (mSize.compareAndSet(size, size + 1)) {
+                break;
+            }
+        }
+        link(newNode(aEvent, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Adds a batch of events to the end of the mailbox with a single
+     * atomic exchange.  Events which replace a waiting event with the
+     * same conflation key are not added.  This may be called from any
+     * thread.
+     * @param aEvents The events to add, in order.
+     * @return The number of waiting events which were replaced.
+     */
+    int offerAll(final List<Event> aEvents) {
+        Node first = null;
+        Node last = null;
+        int added = 0;
+        long now = System.nanoTime();
+        for (Event e : aEvents) {
+            if (replace(e)) {
+                continue;
+            }
+            Node node = newNode(e, now);
+            added++;
+            if (last == null) {
+                first = node;
+            }
+            else {
+                last.mNext = node;
+            }
+            last = node;
+        }
+        if (last == null) {
+            return aEvents.size();
+        }
+        mSize.addAndGet(added);
+        Node previous = mTail.getAndSet(last);
+        previous.mNext = first;
+        return aEvents.size() - added;
+    }
+
+    private Node newNode(final Event aEvent, final long aEnqueueTime) {
+        Node node = new Node(aEvent, aEnqueueTime);
+        String key = aEvent.getConflationKey();
+        if (key != null) {
+            mConflated.put(key, node);
+        }
+        return node;
+    }
+
+    private void link(final Node aNode) {
+        Node previous = mTail.getAndSet(aNode);
+        previous.mNext = aNode;
+    }
+
+    /**
+     * Removes the oldest event from the mailbox.  This may only be called
+     * by the thread processing the Biote.
+     * @return The oldest event or null if the mailbox is empty.
+     */
+    Event poll() {
+        return take(null, true);
+    }
+
+    /**
+     * Removes the oldest event from the mailbox in order to drop it.  This
+     * may be called from any thread.
+     * @return The oldest event or null if the mailbox is empty.
+     */
+    Event evict() {
+        return take(null, false);
+    }
+
+    /**
+     * Removes the oldest event from the mailbox if it has the given type.
+     * @param aEventType The type of the event to remove, or null to
+     *                   remove the oldest event whatever its type.
+     * @return The oldest event or null if the mailbox is empty or the
+     *         oldest event has a different type.
+     */
+    Event pollType(final EventType aEventType) {
+        return take(aEventType, true);
+    }
+
+    private Event take(final EventType aEventType, final boolean aHandled) {
+        while (true) {
+            Node head = mHead.get();
+            Node next = head.mNext;
+            if (next == null) {
+                return null;
+            }
+            // Once the head has moved, the winner takes the event of the
+            // new head node, which may have been replaced in the meantime.
+            Event event = next.mEvent;
+            if (event == null) {
+                continue;
+            }
+            if (aEventType != null && aEventType != event.getEventType()) {
+                return null;
+            }
+            if (mHead.compareAndSet(head, next)) {
+                event = next.takeEvent();
+                String key = event.getConflationKey();
+                if (key != null) {
+                    mConflated.remove(key, next);
+                }
+                mSize.decrementAndGet();
+                if (aHandled) {
+                    mStats.recordWait(System.nanoTime() - next.mEnqueueTime);
+                }
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there are no events in the mailbox which the
+     * consumer can see.
+     * @return True if the mailbox is empty.
+     */
+    boolean isEmpty() {
+        return mHead.get().mNext == null;
+    }
+
+    /**
+     * Returns the number of events in the mailbox.  This includes events
+     * whose producers have reserved their place but not yet linked them.
+     * @return The number of events in the mailbox.
+     */
+    int size() {
+        return mSize.get();
+    }
+}
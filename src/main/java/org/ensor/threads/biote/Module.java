@@ -24,7 +24,10 @@
 
 package org.ensor.threads.biote;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Properties;
+import java.util.logging.Level;
 import org.ensor.robots.os.IModule;
 import org.ensor.robots.os.IModuleManager;
 
@@ -34,10 +37,27 @@ import org.ensor.robots.os.IModuleManager;
  */
 public class Module implements IModule {
 
+    /**
+     * The system property naming the directory to journal events to.
+     */
+    public static final String JOURNAL_PROPERTY = "biote.journal";
+
     private BioteManager mBioteManager;
+    private final BlockingExecutionMode mBlockingExecutionMode;
     
     public Module() {
+        this(BlockingExecutionMode.POOLED);
+    }
+
+    /**
+     * Creates the module.  The Biote manager it starts runs blocking
+     * Biotes in the given mode.
+     * @param aBlockingExecutionMode How the events of blocking Biotes
+     *                               are run.
+     */
+    public Module(final BlockingExecutionMode aBlockingExecutionMode) {
         mBioteManager = null;
+        mBlockingExecutionMode = aBlockingExecutionMode;
     }
     
     public Class[] getDependencies() {
@@ -48,11 +68,30 @@ public class Module implements IModule {
     }
 
     public void start(IModuleManager aManager) {
-        mBioteManager = new BioteManager("rootInstance");
+        mBioteManager = new BioteManager("rootInstance", 4, 1,
+                SchedulerMode.WAKE_ON_ENQUEUE, mBlockingExecutionMode);
+        // Every event is journaled if a journal directory is given.
+        String journalDirectory = System.getProperty(JOURNAL_PROPERTY);
+        if (journalDirectory != null) {
+            try {
+                mBioteManager.setJournal(new EventJournal(
+                        new File(journalDirectory),
+                        Constants.JOURNAL_SEGMENT_BYTES));
+            }
+            catch (IOException ex) {
+                BioteManager.mLogger.log(Level.SEVERE,
+                        "Unable to open event journal in " + journalDirectory, ex);
+            }
+        }
     }
 
     public void shutdown(IModuleManager aManager) {
         mBioteManager.shutdown();
+        EventJournal journal = mBioteManager.getJournal();
+        if (journal != null) {
+            mBioteManager.setJournal(null);
+            journal.close();
+        }
     }
     
     public BioteManager getBioteManager() {
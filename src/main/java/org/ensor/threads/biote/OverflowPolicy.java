@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration selects what happens when an event is sent to a Biote
+ * whose mailbox is full.  The capacity and policy are set with
+ * {@link Biote#setMailboxCapacity setMailboxCapacity}.
+ * @author Jon
+ */
+public enum OverflowPolicy {
+    /**
+     * The oldest waiting event is dropped to make room for the new one.
+     * This suits streams such as position updates where only the latest
+     * values matter.
+     */
+    DROP_OLDEST,
+    /**
+     * The new event is dropped and the waiting events are kept.
+     */
+    DROP_NEWEST,
+    /**
+     * The sender waits for room in the mailbox for up to the configured
+     * timeout and the event is dropped if none becomes available.  A
+     * sender which cannot wait, such as the receiving Biote itself or
+     * the timer thread, drops the new event right away.
+     */
+    BLOCK,
+    /**
+     * The new event is refused and the sender is told so through the
+     * {@link DeliveryStatus} returned when sending it.
+     */
+    REJECT
+}
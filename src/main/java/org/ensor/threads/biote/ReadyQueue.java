@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is the scheduler data structure shared by the threads of one
+ * thread pool.  Biotes in this structure are ready to be processed because
+ * they have pending events.
+ *
+ * Every thread of the pool owns a local deque.  A Biote remembers the
+ * thread which last processed it and is scheduled back onto that
+ * thread's deque so that its state stays in that thread's cache.  A
+ * Biote which has never been processed goes to a shared queue.  A thread
+ * serves its own deque first (oldest first), then the shared queue, and
+ * finally steals the most recently scheduled Biote from another thread's
+ * deque.
+ *
+ * Biotes with {@link EventPriority#HIGH high priority} events waiting are
+ * placed on a separate urgent queue which every thread serves before any
+ * other work.  Such a Biote may also still be sitting on an ordinary
+ * deque; whichever entry is taken first processes the Biote and the other
+ * one is skipped because the Biote is no longer queued.
+ *
+ * In {@link SchedulerMode#WAKE_ON_ENQUEUE} mode a thread which finds no
+ * work spins for a short while and then parks itself.  Scheduling a Biote
+ * unparks the owning thread if it is parked, or otherwise an idle thread
+ * which can steal the Biote.  A thread marks itself as idle before
+ * checking for work one last time, so a Biote scheduled while the thread
+ * is going to sleep is never missed.
+ *
+ * @author Jon
+ */
+class ReadyQueue {
+    private static final int                        NO_WORKER = -1;
+    private static final int                        BUSY = 0;
+    private static final int                        IDLE = 1;
+
+    private final LocalDeque[]                      mLocalBiotes;
+    private final ConcurrentLinkedQueue<Biote>      mSharedBiotes;
+    private final ConcurrentLinkedQueue<Biote>      mUrgentBiotes;
+    private final AtomicReferenceArray<Thread>      mWorkers;
+    private final AtomicIntegerArray                mWorkerStates;
+    private final SchedulerMode                     mMode;
+    private final AtomicBoolean                     mRunning;
+
+    /**
+     * The deque owned by one worker thread.  This is a named class so
+     * that the deques can be kept in a plain array.
+     */
+    private static final class LocalDeque extends ConcurrentLinkedDeque<Biote> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    ReadyQueue(
+            final int aWorkerCount,
+            final SchedulerMode aMode,
+            final AtomicBoolean aRunning) {
+        mLocalBiotes = new LocalDeque[aWorkerCount];
+        for (int i = 0; i < aWorkerCount; i++) {
+            mLocalBiotes[i] = new LocalDeque();
+        }
+        mSharedBiotes = new ConcurrentLinkedQueue<Biote>();
+        mUrgentBiotes = new ConcurrentLinkedQueue<Biote>();
+        mWorkers = new AtomicReferenceArray<Thread>(aWorkerCount);
+        mWorkerStates = new AtomicIntegerArray(aWorkerCount);
+        mMode = aMode;
+        mRunning = aRunning;
+    }
+
+    /**
+     * Returns the number of worker threads served by this queue.
+     * @return The number of worker threads.
+     */
+    int getWorkerCount() {
+        return mLocalBiotes.length;
+    }
+
+    /**
+     * Registers the calling thread as the thread serving the given
+     * worker slot.
+     * @param aWorker The worker slot of the calling thread.
+     */
+    void register(final int aWorker) {
+        mWorkers.set(aWorker, Thread.currentThread());
+    }
+
+    /**
+     * Schedules the Biote.  It is placed on the deque of the worker
+     * which last processed it, or on the shared queue if it has not been
+     * processed yet.
+     * @param aBiote The Biote which has pending events.
+     */
+    void add(final Biote aBiote) {
+        add(aBiote, false);
+    }
+
+    /**
+     * Schedules the Biote.  An urgent Biote is placed on the urgent queue
+     * and handed to an idle thread right away, preferring the thread
+     * which last processed it.
+     * @param aBiote The Biote which has pending events.
+     * @param aUrgent True if the Biote has high priority events pending.
+     */
+    void add(final Biote aBiote, final boolean aUrgent) {
+        int owner = aBiote.getWorkerAffinity();
+        if (aUrgent) {
+            mUrgentBiotes.add(aBiote);
+            if (owner == NO_WORKER || owner >= mLocalBiotes.length ||
+                    !wakeWorker(owner)) {
+                wakeIdleWorker();
+            }
+            return;
+        }
+        if (owner == NO_WORKER || owner >= mLocalBiotes.length) {
+            mSharedBiotes.add(aBiote);
+            wakeIdleWorker();
+            return;
+        }
+
+        boolean backlog = !mLocalBiotes[owner].isEmpty();
+        mLocalBiotes[owner].addLast(aBiote);
+
+        // A Biote rescheduling itself is picked up by its own thread as soon
+        // as it returns, so we only need help if work is piling up there.
+        if (Thread.currentThread() == mWorkers.get(owner)) {
+            if (backlog) {
+                wakeIdleWorker();
+            }
+        }
+        else if (!wakeWorker(owner)) {
+            wakeIdleWorker();
+        }
+    }
+
+    /**
+     * Returns the next ready Biote for the given worker.  If there is
+     * none, the calling thread waits according to the scheduler mode and
+     * null is returned if still nothing became ready in the meantime.
+     * @param aWorker The worker slot of the calling thread.
+     * @return The next ready Biote or null.
+     */
+    Biote take(final int aWorker) {
+        Biote b = findWork(aWorker);
+        if (b != null) {
+            return b;
+        }
+        if (mMode == SchedulerMode.POLLING) {
+            try {
+                Thread.sleep(Constants.SCHEDULER_POLL_MILLISECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        for (int i = 0; i < Constants.SCHEDULER_SPIN_COUNT; i++) {
+            b = findWork(aWorker);
+            if (b != null) {
+                return b;
+            }
+            Thread.yield();
+        }
+
+        mWorkerStates.set(aWorker, IDLE);
+        b = findWork(aWorker);
+        if (b == null && mRunning.get()) {
+            LockSupport.parkNanos(this, Constants.SCHEDULER_PARK_NANOSECONDS);
+            b = findWork(aWorker);
+        }
+        mWorkerStates.set(aWorker, BUSY);
+        return b;
+    }
+
+    /**
+     * Wakes up every parked thread.  This is used during shutdown so that
+     * the threads notice that the Biote manager is no longer running.
+     */
+    void wakeAll() {
+        for (int i = 0; i < mLocalBiotes.length; i++) {
+            Thread t = mWorkers.get(i);
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    private Biote findWork(final int aWorker) {
+        Biote b = mUrgentBiotes.poll();
+        if (b != null) {
+            return b;
+        }
+        b = mLocalBiotes[aWorker].pollFirst();
+        if (b != null) {
+            return b;
+        }
+        b = mSharedBiotes.poll();
+        if (b != null) {
+            return b;
+        }
+        int workers = mLocalBiotes.length;
+        for (int i = 1; i < workers; i++) {
+            b = mLocalBiotes[(aWorker + i) % workers].pollLast();
+            if (b != null) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private boolean wakeWorker(final int aWorker) {
+        if (mMode != SchedulerMode.WAKE_ON_ENQUEUE) {
+            return false;
+        }
+        if (mWorkerStates.compareAndSet(aWorker, IDLE, BUSY)) {
+            LockSupport.unpark(mWorkers.get(aWorker));
+            return true;
+        }
+        return false;
+    }
+
+    private void wakeIdleWorker() {
+        for (int i = 0; i < mLocalBiotes.length; i++) {
+            if (wakeWorker(i)) {
+                return;
+            }
+        }
+    }
+}
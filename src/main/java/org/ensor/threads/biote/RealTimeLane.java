@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is the thread of a real time Biote.  The thread runs at maximum
+ * priority, runs no other Biote and never looks at the shared ready
+ * queues, so the Biote's events are handled as soon as they arrive no
+ * matter how busy the other Biotes are.  Timer events reach it straight
+ * from the timer thread.
+ *
+ * Scheduling the Biote records the time and wakes the thread.  Nothing is
+ * allocated or locked on the way.  The time from being scheduled until
+ * the thread starts handling the events is kept in the histogram
+ * statistic "RealTimeLane.java:wakeup:" followed by the Biote's class
+ * name, in microseconds.
+ *
+ * @author Jon
+ */
+class RealTimeLane implements Runnable {
+    private static final long       NOT_SCHEDULED = 0;
+
+    private final Biote             mBiote;
+    private final BioteManager      mBioteManager;
+    private final SystemStat        mWakeupStat;
+    private final AtomicLong        mScheduledAt;
+    private final Thread            mThread;
+    private volatile boolean        mRunning;
+
+    RealTimeLane(final BioteManager aBioteManager, final Biote aBiote) {
+        mBiote = aBiote;
+        mBioteManager = aBioteManager;
+        mWakeupStat = aBioteManager.getStat(
+                "RealTimeLane.java:wakeup:" + aBiote.getClass().getSimpleName(), true);
+        mScheduledAt = new AtomicLong(NOT_SCHEDULED);
+        mRunning = true;
+        mThread = new Thread(this, "realtime:" + aBiote.getClass().getSimpleName() +
+                ":" + aBiote.getBioteId());
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Marks the Biote as ready and wakes the thread.  This may be called
+     * from any thread.
+     */
+    void schedule() {
+        // Keep the earliest time if the Biote is scheduled again before
+        // the thread gets to it.
+        mScheduledAt.compareAndSet(NOT_SCHEDULED, System.nanoTime());
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Stops the thread once it has finished with the Biote.
+     */
+    void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    public void run() {
+        int spins = 0;
+        while (mRunning) {
+            long scheduledAt = mScheduledAt.getAndSet(NOT_SCHEDULED);
+            if (scheduledAt == NOT_SCHEDULED) {
+                // Spin briefly, since control loops often get their next
+                // event right away, then sleep until scheduled.
+                if (spins++ < Constants.SCHEDULER_SPIN_COUNT) {
+                    Thread.yield();
+                }
+                else {
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+            spins = 0;
+            mWakeupStat.sample(
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledAt));
+            BioteThread.processBiote(mBiote, mBioteManager);
+        }
+    }
+}
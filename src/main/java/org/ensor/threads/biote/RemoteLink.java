@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.ensor.data.atom.DictionaryAtom;
+
+/**
+ * This is the connection between this node and one other node.  All the
+ * events between the two nodes, in both directions, travel over this one
+ * connection.
+ *
+ * Sending an event only adds it to a queue and wakes the writer thread if
+ * it was idle, so it never waits for the network.  The writer takes as
+ * many events as are waiting, encodes them into one frame and writes the
+ * frame in one go.  Events are never acknowledged, so while one frame is
+ * on its way the next is already being written.  A frame is laid out as
+ * follows, in big endian order:
+ * <pre>
+ *   int    length of the records in bytes
+ *   int    number of records
+ *   ...    the records, encoded by {@link JournalCodec JournalCodec}
+ * </pre>
+ * The reader thread reads whole frames and delivers their events to the
+ * local Biote manager.  Everything read is checked before it is used: a
+ * frame longer than {@link Constants#REMOTE_MAX_FRAME_BYTES
+ * REMOTE_MAX_FRAME_BYTES}, a record count or length which does not fit the
+ * frame, or an event for a Biote on another node closes the connection.
+ * An event too large for a frame is dropped by the sender.
+ *
+ * Only the data of an event is sent.  An event whose payload cannot be
+ * turned into a dictionary arrives without data, and an event whose data
+ * cannot be encoded is dropped.  When the connection fails, the events
+ * still waiting are dropped and the link is closed.
+ *
+ * @author Jon
+ */
+class RemoteLink {
+    static final int                            FRAME_HEADER_BYTES = 8;
+
+    private final BioteNode                     mNode;
+    private final int                           mRemoteNodeId;
+    private final int                           mInitiatorNodeId;
+    private final SocketChannel                 mChannel;
+    private final ConcurrentLinkedQueue<Outgoing> mQueue;
+    private final AtomicInteger                 mQueued;
+    private final AtomicLong                    mDropped;
+    private final Thread                        mWriter;
+    private final Thread                        mReader;
+    private volatile boolean                    mRunning;
+
+    RemoteLink(final BioteNode aNode, final int aRemoteNodeId,
+            final int aInitiatorNodeId, final SocketChannel aChannel) {
+        mNode = aNode;
+        mRemoteNodeId = aRemoteNodeId;
+        mInitiatorNodeId = aInitiatorNodeId;
+        mChannel = aChannel;
+        mQueue = new ConcurrentLinkedQueue<Outgoing>();
+        mQueued = new AtomicInteger(0);
+        mDropped = new AtomicLong(0);
+        mRunning = true;
+        String name = "node:" + aNode.getNodeId() + "->" + aRemoteNodeId;
+        mWriter = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, name + ":write");
+        mWriter.setDaemon(true);
+        mReader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, name + ":read");
+        mReader.setDaemon(true);
+    }
+
+    void start() {
+        mWriter.start();
+        mReader.start();
+    }
+
+    int getRemoteNodeId() {
+        return mRemoteNodeId;
+    }
+
+    /**
+     * Returns the number of the node which made the connection.
+     */
+    int getInitiatorNodeId() {
+        return mInitiatorNodeId;
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    boolean isOpen() {
+        return mRunning;
+    }
+
+    /**
+     * Queues an event for the other node.  This may be called from any
+     * thread.
+     */
+    DeliveryStatus send(final long aTargetBioteId, final Event aEvent, final long aSourceBioteId) {
+        if (!mRunning) {
+            return DeliveryStatus.NO_SUCH_BIOTE;
+        }
+        if (mQueued.get() >= Constants.REMOTE_QUEUE_CAPACITY) {
+            mDropped.incrementAndGet();
+            return DeliveryStatus.DROPPED;
+        }
+        mQueue.offer(new Outgoing(aTargetBioteId, aEvent, aSourceBioteId));
+        // Only the event which finds the queue empty needs to wake the
+        // writer; while there is a backlog the writer is not parked.
+        if (mQueued.getAndIncrement() == 0) {
+            LockSupport.unpark(mWriter);
+        }
+        return DeliveryStatus.DELIVERED;
+    }
+
+    void close() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mWriter);
+        try {
+            mChannel.close();
+        }
+        catch (IOException ex) {
+        }
+        mNode.linkClosed(this);
+    }
+
+    private void write() {
+        JournalCodec codec = new JournalCodec();
+        ByteBuffer frame = ByteBuffer.allocateDirect(Constants.REMOTE_FRAME_BYTES);
+        try {
+            while (mRunning) {
+                Outgoing next = mQueue.poll();
+                if (next == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                frame.clear();
+                frame.position(FRAME_HEADER_BYTES);
+                int count = 0;
+                long now = System.currentTimeMillis();
+                while (next != null) {
+                    ByteBuffer record;
+                    try {
+                        record = codec.encode(now, next.mSourceBioteId,
+                                next.mTargetBioteId, next.mEvent, (byte) 0);
+                    }
+                    catch (IllegalArgumentException ex) {
+                        mNode.getBioteManager().logString(true, next.mSourceBioteId,
+                                "Dropping event: '" + next.mEvent.getEventName() +
+                                "' which cannot be encoded: " + ex.getCause());
+                        mDropped.incrementAndGet();
+                        mQueued.decrementAndGet();
+                        next = mQueue.poll();
+                        continue;
+                    }
+                    if (record.remaining() > frame.remaining()) {
+                        if (count > 0) {
+                            flush(frame, count);
+                            frame.clear();
+                            frame.position(FRAME_HEADER_BYTES);
+                            count = 0;
+                        }
+                        if (record.remaining() > Constants.REMOTE_MAX_FRAME_BYTES) {
+                            // The other node would refuse it.
+                            mNode.getBioteManager().logString(true, next.mSourceBioteId,
+                                    "Dropping event: '" + next.mEvent.getEventName() + "' of " +
+                                    record.remaining() + " bytes, which is too large to send.");
+                            mDropped.incrementAndGet();
+                            mQueued.decrementAndGet();
+                            next = mQueue.poll();
+                            continue;
+                        }
+                        if (record.remaining() > frame.remaining()) {
+                            // Larger than a whole frame, so it goes on its own.
+                            ByteBuffer large = ByteBuffer.allocate(
+                                    FRAME_HEADER_BYTES + record.remaining());
+                            large.position(FRAME_HEADER_BYTES);
+                            large.put(record);
+                            flush(large, 1);
+                            mQueued.decrementAndGet();
+                            next = mQueue.poll();
+                            continue;
+                        }
+                    }
+                    frame.put(record);
+                    count++;
+                    mQueued.decrementAndGet();
+                    next = mQueue.poll();
+                }
+                flush(frame, count);
+            }
+        }
+        catch (IOException ex) {
+            if (mRunning) {
+                mNode.getBioteManager().logString(true, 0, "Connection to node " +
+                        mRemoteNodeId + " failed: " + ex.toString());
+            }
+        }
+        finally {
+            close();
+            int dropped = 0;
+            while (mQueue.poll() != null) {
+                dropped++;
+            }
+            mDropped.addAndGet(dropped);
+        }
+    }
+
+    private void flush(final ByteBuffer aFrame, final int aCount) throws IOException {
+        if (aCount == 0) {
+            return;
+        }
+        aFrame.putInt(0, aFrame.position() - FRAME_HEADER_BYTES);
+        aFrame.putInt(4, aCount);
+        aFrame.flip();
+        while (aFrame.hasRemaining()) {
+            mChannel.write(aFrame);
+        }
+    }
+
+    private void read() {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        ByteBuffer frame = ByteBuffer.allocate(Constants.REMOTE_FRAME_BYTES);
+        BioteManager bioteManager = mNode.getBioteManager();
+        try {
+            while (mRunning) {
+                header.clear();
+                readFully(header);
+                int length = header.getInt(0);
+                int count = header.getInt(4);
+                if (length < 0 || length > Constants.REMOTE_MAX_FRAME_BYTES ||
+                        count < 0 || count > length / JournalCodec.HEADER_BYTES) {
+                    throw new IOException("Bad frame of " + length + " bytes holding " +
+                            count + " records");
+                }
+                if (length > frame.capacity()) {
+                    frame = ByteBuffer.allocate(length);
+                }
+                frame.clear();
+                frame.limit(length);
+                readFully(frame);
+                frame.flip();
+                for (int i = 0; i < count; i++) {
+                    int start = frame.position();
+                    int recordLength = frame.getInt();
+                    if (recordLength < JournalCodec.HEADER_BYTES ||
+                            recordLength > frame.limit() - start) {
+                        throw new IOException("Bad record of " + recordLength + " bytes");
+                    }
+                    // Decode the record within its own bounds.
+                    int end = frame.limit();
+                    frame.limit(start + recordLength);
+                    frame.get();
+                    frame.getLong();
+                    long source = frame.getLong();
+                    long target = frame.getLong();
+                    int targetNode = BioteNode.nodeOf(target);
+                    if (targetNode != 0 && targetNode != mNode.getNodeId()) {
+                        throw new IOException("Event for biote " + target +
+                                " on node " + targetNode + " is not for this node");
+                    }
+                    String name = JournalCodec.getString(frame);
+                    DictionaryAtom data = DictionaryAtom.newAtom();
+                    JournalCodec.getDictionary(frame, data);
+                    frame.limit(end);
+                    frame.position(start + recordLength);
+                    bioteManager.deliverStimulus(target, new Event(name, data), source);
+                }
+            }
+        }
+        catch (Exception ex) {
+            if (mRunning) {
+                bioteManager.logString(true, 0, "Connection from node " +
+                        mRemoteNodeId + " failed: " + ex.toString());
+            }
+        }
+        finally {
+            close();
+        }
+    }
+
+    private void readFully(final ByteBuffer aBuffer) throws IOException {
+        while (aBuffer.hasRemaining()) {
+            if (mChannel.read(aBuffer) < 0) {
+                throw new EOFException("The connection was closed");
+            }
+        }
+    }
+
+    private static final class Outgoing {
+        private final long      mTargetBioteId;
+        private final Event     mEvent;
+        private final long      mSourceBioteId;
+
+        private Outgoing(final long aTargetBioteId, final Event aEvent, final long aSourceBioteId) {
+            mTargetBioteId = aTargetBioteId;
+            mEvent = aEvent;
+            mSourceBioteId = aSourceBioteId;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.ensor.data.atom.DictionaryAtom;
+
+/**
+ * A router spreads the events sent to it among a number of replica Biotes
+ * so that work which does not depend on shared state, such as decoding
+ * incoming messages, can use more than one thread.  Each replica still
+ * handles one event at a time.
+ *
+ * The replica is chosen by the Biote manager on the sending thread, so the
+ * router itself never handles the routed events and does not become a
+ * bottleneck.  Only the init and finalize events and the router's own
+ * scaling timer reach the router.  How the replica is chosen is set by the
+ * {@link RoutingStrategy RoutingStrategy}.  Consistent hashing needs a
+ * routing key for each event, which a subclass provides by overriding
+ * {@link #getRoutingKey getRoutingKey}.
+ *
+ * The router starts with the minimum number of replicas, created by the
+ * given {@link IReplicaFactory IReplicaFactory}.  A few times a second it
+ * looks at the events waiting for its replicas.  It adds a replica while
+ * more than {@link Constants#ROUTER_SCALE_UP_DEPTH ROUTER_SCALE_UP_DEPTH}
+ * events are waiting per replica, up to the maximum, and removes one when
+ * its replicas have been idle for a while, down to the minimum.  A removed
+ * replica gets no new events and is finalized once the events already sent
+ * to it have been handled.  Finalizing the router finalizes its replicas.
+ *
+ * A subclass which overrides {@link #onInit onInit} or
+ * {@link #onFinalize onFinalize} must call the router's version.
+ *
+ * @author Jon
+ */
+public class RouterBiote extends Biote {
+    private static final EventType  INIT_EVENT = EventType.get("Event-Init");
+    private static final EventType  FINALIZE_EVENT = EventType.get("Event-Finalize");
+    private static final EventType  SCALE_EVENT = EventType.get("Event-Router-Scale");
+
+    private final RoutingStrategy   mStrategy;
+    private final IReplicaFactory   mFactory;
+    private final int               mMinReplicas;
+    private final int               mMaxReplicas;
+    private final AtomicInteger     mNext;
+    private volatile int            mScaleUpDepth;
+    private volatile int            mScaleDownPeriods;
+
+    // The replicas are read by any thread sending to the router and are
+    // replaced by a modified copy whenever they change.
+    private volatile Replicas       mReplicas;
+
+    // These are only used by the thread processing the router.
+    private final List<Biote>       mRetiring;
+    private int                     mIdlePeriods;
+    private int                     mScaleTimerId;
+
+    /**
+     * Creates a router and its first replicas.
+     * @param aBioteManager The Biote manager the router belongs to.
+     * @param aStrategy How events are spread among the replicas.
+     * @param aMinReplicas The number of replicas to start with and to keep
+     *                     at the least.
+     * @param aMaxReplicas The largest number of replicas to scale up to.
+     * @param aFactory Creates the replicas.
+     * @throws Exception If a replica could not be created.
+     */
+    public RouterBiote(
+            final BioteManager aBioteManager,
+            final RoutingStrategy aStrategy,
+            final int aMinReplicas,
+            final int aMaxReplicas,
+            final IReplicaFactory aFactory) throws Exception {
+        super(aBioteManager, false);
+        if (aMinReplicas < 1 || aMaxReplicas < aMinReplicas) {
+            throw new IllegalArgumentException("A router needs between 1 and " +
+                    aMaxReplicas + " replicas, not " + aMinReplicas);
+        }
+        mStrategy = aStrategy;
+        mFactory = aFactory;
+        mMinReplicas = aMinReplicas;
+        mMaxReplicas = aMaxReplicas;
+        mNext = new AtomicInteger(0);
+        mScaleUpDepth = Constants.ROUTER_SCALE_UP_DEPTH;
+        mScaleDownPeriods = Constants.ROUTER_SCALE_DOWN_PERIODS;
+        mReplicas = new Replicas(new Biote[0]);
+        mRetiring = new ArrayList<Biote>();
+        for (int i = 0; i < aMinReplicas; i++) {
+            addReplica();
+        }
+        subscribe(SCALE_EVENT, new IEventHandler() {
+            public void process(Event msg) throws Exception {
+                onScale();
+            }
+        });
+    }
+
+    @Override
+    protected void onInit(final Event message) throws Exception {
+        mScaleTimerId = startTimer((int) Constants.ROUTER_SCALE_PERIOD_MILLISECONDS,
+                new Event(SCALE_EVENT), true);
+    }
+
+    @Override
+    protected void onFinalize(final Event message) throws Exception {
+        cancelTimer(mScaleTimerId);
+        Biote[] replicas = mReplicas.mBiotes;
+        mReplicas = new Replicas(new Biote[0]);
+        for (Biote replica : replicas) {
+            retire(replica);
+        }
+        for (Biote replica : mRetiring) {
+            sendStimulus(replica.getBioteId(), new Event(FINALIZE_EVENT));
+        }
+        mRetiring.clear();
+    }
+
+    /**
+     * Returns the routing key of an event for consistent hashing.  This is
+     * called on the thread sending the event, so it must not use the state
+     * of the router.
+     * @param msg The event being sent.
+     * @return The key, or null to send the event round robin.
+     */
+    protected Object getRoutingKey(final Event msg) {
+        return null;
+    }
+
+    /**
+     * Returns how events are spread among the replicas.
+     * @return The routing strategy.
+     */
+    public RoutingStrategy getRoutingStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Returns the number of replicas events are currently sent to.
+     * @return The number of replicas.
+     */
+    public int getReplicaCount() {
+        return mReplicas.mBiotes.length;
+    }
+
+    /**
+     * Sets when replicas are added and removed.
+     * @param aScaleUpDepth The number of waiting events per replica above
+     *                      which another replica is added.
+     * @param aIdlePeriods The number of scaling periods in a row without
+     *                     waiting events after which a replica is removed.
+     */
+    public void setScaling(final int aScaleUpDepth, final int aIdlePeriods) {
+        mScaleUpDepth = aScaleUpDepth;
+        mScaleDownPeriods = aIdlePeriods;
+    }
+
+    /*
+     * Returns the replica the given event should go to, or null if it is
+     * for the router itself.  This may be called from any thread.
+     */
+    Biote selectReplica(final Event msg) {
+        EventType eventType = msg.getEventType();
+        if (eventType == INIT_EVENT || eventType == FINALIZE_EVENT || eventType == SCALE_EVENT) {
+            return null;
+        }
+        Replicas replicas = mReplicas;
+        Biote[] biotes = replicas.mBiotes;
+        if (biotes.length == 0) {
+            return null;
+        }
+        switch (mStrategy) {
+            case LEAST_QUEUE_DEPTH:
+                // Start the search at a different replica each time so that
+                // ties are spread out.
+                int start = next(biotes.length);
+                Biote best = biotes[start];
+                int bestDepth = best.getMailboxDepth();
+                for (int i = 1; i < biotes.length && bestDepth > 0; i++) {
+                    Biote b = biotes[(start + i) % biotes.length];
+                    int depth = b.getMailboxDepth();
+                    if (depth < bestDepth) {
+                        best = b;
+                        bestDepth = depth;
+                    }
+                }
+                return best;
+            case CONSISTENT_HASH:
+                Object key = getRoutingKey(msg);
+                if (key != null) {
+                    return replicas.lookup(key.hashCode());
+                }
+                return biotes[next(biotes.length)];
+            default:
+                return biotes[next(biotes.length)];
+        }
+    }
+
+    @Override
+    void snapshotStats(final DictionaryAtom dict) {
+        super.snapshotStats(dict);
+        dict.setString("routingStrategy", mStrategy.name());
+        dict.setInt("replicas", mReplicas.mBiotes.length);
+    }
+
+    private int next(final int aCount) {
+        return (mNext.getAndIncrement() & Integer.MAX_VALUE) % aCount;
+    }
+
+    private void onScale() throws Exception {
+        // Replicas removed on the previous pass have been sent their last
+        // events by now.
+        for (Biote replica : mRetiring) {
+            sendStimulus(replica.getBioteId(), new Event(FINALIZE_EVENT));
+        }
+        mRetiring.clear();
+
+        Biote[] biotes = mReplicas.mBiotes;
+        long depth = 0;
+        for (Biote b : biotes) {
+            depth += b.getMailboxDepth();
+        }
+        if (depth > (long) mScaleUpDepth * biotes.length) {
+            mIdlePeriods = 0;
+            if (biotes.length < mMaxReplicas) {
+                addReplica();
+                log(LogCategory.BIOTE_CORE, "Router scaled up to {} replicas", mReplicas.mBiotes.length);
+            }
+        }
+        else if (depth == 0) {
+            if (++mIdlePeriods >= mScaleDownPeriods && biotes.length > mMinReplicas) {
+                mIdlePeriods = 0;
+                retire(biotes[biotes.length - 1]);
+                mReplicas = new Replicas(Arrays.copyOf(biotes, biotes.length - 1));
+                log(LogCategory.BIOTE_CORE, "Router scaled down to {} replicas", mReplicas.mBiotes.length);
+            }
+        }
+        else {
+            mIdlePeriods = 0;
+        }
+    }
+
+    private void addReplica() throws Exception {
+        Biote replica = mFactory.newReplica(getBioteManager());
+        getBioteManager().createBiote(replica);
+        Biote[] biotes = mReplicas.mBiotes;
+        Biote[] grown = Arrays.copyOf(biotes, biotes.length + 1);
+        grown[biotes.length] = replica;
+        mReplicas = new Replicas(grown);
+    }
+
+    private void retire(final Biote aReplica) {
+        mRetiring.add(aReplica);
+    }
+
+    /*
+     * The replicas of a router and the hash ring used to find the replica
+     * of a routing key.  Each replica owns a number of points on the ring
+     * which depend only on its Biote ID, and a key belongs to the first
+     * point at or after the hash of the key.
+     */
+    private static final class Replicas {
+        private final Biote[]   mBiotes;
+        private final int[]     mPoints;
+        private final Biote[]   mOwners;
+
+        private Replicas(final Biote[] aBiotes) {
+            mBiotes = aBiotes;
+            int count = aBiotes.length * Constants.ROUTER_HASH_POINTS;
+            // Sort the points together with their owners by packing both
+            // into one long.
+            long[] ring = new long[count];
+            int n = 0;
+            for (int i = 0; i < aBiotes.length; i++) {
+                long base = aBiotes[i].getBioteId() * Constants.ROUTER_HASH_POINTS;
+                for (int p = 0; p < Constants.ROUTER_HASH_POINTS; p++) {
+                    int point = mix((int) (base + p) ^ (int) ((base + p) >>> 32));
+                    ring[n++] = ((long) point << 32) | i;
+                }
+            }
+            Arrays.sort(ring);
+            mPoints = new int[count];
+            mOwners = new Biote[count];
+            for (int i = 0; i < count; i++) {
+                mPoints[i] = (int) (ring[i] >> 32);
+                mOwners[i] = aBiotes[(int) ring[i]];
+            }
+        }
+
+        private Biote lookup(final int aKeyHash) {
+            int i = Arrays.binarySearch(mPoints, mix(aKeyHash));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return mOwners[i == mOwners.length ? 0 : i];
+        }
+
+        /*
+         * Spreads the bits of a hash code, as in the finalizer of MurmurHash3.
+         */
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+}
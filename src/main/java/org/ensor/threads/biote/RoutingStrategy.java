@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+/**
+ * This enumeration selects how a {@link RouterBiote RouterBiote} spreads
+ * the events sent to it among its replicas.
+ * @author Jon
+ */
+public enum RoutingStrategy {
+    /**
+     * Each event goes to the next replica in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Each event goes to the replica with the fewest events waiting.
+     * This suits events which take very different times to handle.
+     */
+    LEAST_QUEUE_DEPTH,
+    /**
+     * Events with the same routing key always go to the same replica, so
+     * they are handled in the order they were sent.  The key comes from
+     * {@link RouterBiote#getRoutingKey getRoutingKey}.  Adding or removing a
+     * replica only moves the keys of that replica.  Events without a key
+     * are sent round robin.
+     */
+    CONSISTENT_HASH
+}
@@ -0,0 +1,409 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ListAtom;
+
+/**
+ * This watches the threads which handle Biote events and reports the
+ * handlers which hold on to a thread for too long, such as a handler
+ * doing a blocking read or writing a log file on a worker thread.
+ *
+ * Each thread which runs Biotes owns a slot.  The thread counts the
+ * handlers it starts and finishes in the slot and records the Biote and
+ * event being handled.  This costs a couple of ordered writes per event;
+ * the thread never reads the clock for the watchdog.  The watchdog
+ * thread looks at every slot a few times per threshold while a handler
+ * is running anywhere.  When every thread is idle the watchdog parks
+ * without a timeout, and the next thread to start a handler wakes it, so
+ * an idle manager costs no timer wakeups.  A handler which
+ * is still running after the threshold has passed is stalled, and from
+ * then on every look also takes the thread's stack, so the report shows
+ * where the handler spent its time.
+ *
+ * When the stalled handler finishes, the watchdog logs the event, the
+ * Biote, how long the handler ran and the frames seen most often above
+ * the handler call.  A handler which does not finish is reported every
+ * {@link Constants#LONG_EVENT_SECONDS LONG_EVENT_SECONDS} while it runs.
+ * The durations, in microseconds, are kept in the histogram statistic
+ * "StallWatchdog.java:stall" and the last few reports are kept for
+ * {@link BioteManager#getStallReports() getStallReports}.  The times
+ * are only as precise as the sampling interval.
+ *
+ * @author Jon
+ */
+class StallWatchdog implements Runnable {
+    private final BioteManager          mBioteManager;
+    private final ConcurrentLinkedQueue<Slot> mSlots;
+    private final ThreadLocal<Slot>     mSlot;
+    private final ArrayDeque<DictionaryAtom> mReports;
+    private final SystemStat            mStallStat;
+    private final long                  mSampleNanos;
+    private final Thread                mThread;
+    private volatile long               mThresholdNanos;
+    private volatile boolean            mRunning;
+    private volatile boolean            mIdle;
+
+    StallWatchdog(final BioteManager aBioteManager, final String aName) {
+        mBioteManager = aBioteManager;
+        mSlots = new ConcurrentLinkedQueue<Slot>();
+        mSlot = new ThreadLocal<Slot>() {
+            @Override
+            protected Slot initialValue() {
+                Slot slot = new Slot(StallWatchdog.this, Thread.currentThread());
+                mSlots.add(slot);
+                return slot;
+            }
+        };
+        mReports = new ArrayDeque<DictionaryAtom>();
+        mStallStat = aBioteManager.getStat("StallWatchdog.java:stall", true);
+        mSampleNanos = Constants.WATCHDOG_SAMPLE_NANOSECONDS;
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+                Constants.WATCHDOG_STALL_THRESHOLD_MILLISECONDS);
+        mRunning = true;
+        mThread = new Thread(this, aName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns the slot of the calling thread, creating it on first use.
+     * @return The slot of the calling thread.
+     */
+    Slot slot() {
+        return mSlot.get();
+    }
+
+    /**
+     * Gives up the slot of the calling thread.  A thread which only runs
+     * one batch, such as a thread of a thread-per-batch executor, calls
+     * this when the batch is done.  The watchdog forgets the slot the next
+     * time it sees it idle, and the thread gets a new slot if it runs
+     * handlers again.
+     */
+    void release() {
+        Slot slot = mSlot.get();
+        mSlot.remove();
+        slot.mReleased = true;
+        wake();
+    }
+
+    int getSlotCount() {
+        return mSlots.size();
+    }
+
+    /**
+     * Sets how long a handler may run before it counts as stalled.
+     * @param aMillis The threshold in milliseconds.
+     */
+    void setThresholdMillis(final long aMillis) {
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(aMillis);
+    }
+
+    long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mThresholdNanos);
+    }
+
+    /**
+     * Returns the most recent stall reports, oldest first.
+     * @return A list of report dictionaries.
+     */
+    ListAtom getReports() {
+        ListAtom reports = ListAtom.newAtom();
+        synchronized (mReports) {
+            for (DictionaryAtom report : mReports) {
+                reports.append(report);
+            }
+        }
+        return reports;
+    }
+
+    void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    public void run() {
+        while (mRunning) {
+            long now = System.nanoTime();
+            boolean busy = false;
+            for (Slot slot : mSlots) {
+                busy |= check(slot, now);
+            }
+            if (busy) {
+                LockSupport.parkNanos(this, mSampleNanos);
+                continue;
+            }
+            // Every thread is idle.  Announce that the watchdog is going to
+            // sleep, then look once more so that a handler which started
+            // before the announcement is not missed.  A handler starting
+            // after it sees the flag and wakes the watchdog.
+            mIdle = true;
+            for (Slot slot : mSlots) {
+                busy |= (slot.mSequence.get() & 1) != 0;
+            }
+            if (!busy && mRunning) {
+                LockSupport.park(this);
+            }
+            mIdle = false;
+        }
+    }
+
+    /*
+     * Wakes the watchdog if it is parked because every thread was idle.
+     */
+    private void wake() {
+        if (mIdle) {
+            mIdle = false;
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /*
+     * Looks at one slot and returns true if a handler is running in it.
+     */
+    private boolean check(final Slot aSlot, final long aNow) {
+        // A released slot's sequence no longer changes once this is seen.
+        boolean released = aSlot.mReleased;
+        long sequence = aSlot.mSequence.get();
+        if (sequence != aSlot.mSeenSequence) {
+            // The thread has moved on since the last look.
+            if (aSlot.mStall != null) {
+                finish(aSlot.mStall, aNow, true);
+                aSlot.mStall = null;
+            }
+            aSlot.mSeenSequence = sequence;
+            aSlot.mSeenAt = aNow;
+            if ((sequence & 1) != 0) {
+                return true;
+            }
+        }
+        if ((sequence & 1) == 0) {
+            // Idle.  Threads of blocking biotes may come and go.
+            if (released || !aSlot.mThread.isAlive()) {
+                mSlots.remove(aSlot);
+            }
+            return false;
+        }
+        long seenAt = aSlot.mSeenAt;
+        if (aNow - seenAt < mThresholdNanos) {
+            return true;
+        }
+        // Read what the thread is doing before checking the sequence again,
+        // as with a seqlock.  The thread overwrites these when it starts its
+        // next handler, so they only belong to this handler if the sequence
+        // has not moved since it was read above.
+        Biote biote = aSlot.mBiote.get();
+        EventType eventType = aSlot.mEventType.get();
+        StackTraceElement[] stack = aSlot.mThread.getStackTrace();
+        if (aSlot.mSequence.get() != sequence || biote == null || eventType == null) {
+            // The handler returned while its stack was being taken, so the
+            // stack may show whatever the thread went on to do.
+            return true;
+        }
+        Stall stall = aSlot.mStall;
+        if (stall == null) {
+            stall = new Stall(biote, eventType, seenAt);
+            aSlot.mStall = stall;
+        }
+        stall.sample(stack);
+        if (aNow - stall.mReportedAt >= TimeUnit.SECONDS.toNanos((long) Constants.LONG_EVENT_SECONDS)) {
+            finish(stall, aNow, false);
+            stall.mReportedAt = aNow;
+        }
+        return true;
+    }
+
+    private void finish(final Stall aStall, final long aNow, final boolean aDone) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(aNow - aStall.mStart);
+        DictionaryAtom report = DictionaryAtom.newAtom();
+        report.setString("event", aStall.mEventType.getName());
+        report.setInt("bioteId", aStall.mBioteId);
+        report.setString("bioteType", aStall.mBioteType);
+        report.setInt("micros", micros);
+        report.setInt("samples", aStall.mSamples);
+        report.setBoolean("finished", aDone);
+        ListAtom frames = report.newList("frames");
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Handler for %s in %s %s for %d ms (%d stack samples):",
+                aStall.mEventType.getName(), aStall.mBioteType,
+                aDone ? "ran" : "has been running", micros / 1000, aStall.mSamples));
+        for (FrameCount frame : aStall.top(Constants.WATCHDOG_TOP_FRAMES)) {
+            DictionaryAtom entry = frames.newDictionary();
+            entry.setString("frame", frame.mFrame);
+            entry.setInt("count", frame.mCount);
+            text.append(String.format("%n  %5d %s", frame.mCount, frame.mFrame));
+        }
+        mBioteManager.logString(true, aStall.mBioteId, text.toString());
+        if (aDone) {
+            mStallStat.sample(micros);
+        }
+        synchronized (mReports) {
+            if (mReports.size() == Constants.WATCHDOG_MAX_REPORTS) {
+                mReports.removeFirst();
+            }
+            mReports.addLast(report);
+        }
+    }
+
+    /**
+     * What the watchdog knows about one thread.  The sequence is odd while
+     * a handler runs.  The Biote and event are written, in order, before
+     * the sequence becomes odd.  The watchdog reads the sequence, then the
+     * Biote and event, then the sequence again, and only trusts what it
+     * read if the sequence did not change in between.  Starting a handler is a full volatile write, so that
+     * either the watchdog sees the odd sequence before it parks or the
+     * thread sees that the watchdog is parked and wakes it.  The remaining
+     * fields belong to the watchdog thread.
+     */
+    static final class Slot {
+        private final StallWatchdog mWatchdog;
+        private final Thread        mThread;
+        private final AtomicLong    mSequence;
+        private final AtomicReference<Biote> mBiote;
+        private final AtomicReference<EventType> mEventType;
+        private volatile boolean    mReleased;
+
+        private long                mSeenSequence;
+        private long                mSeenAt;
+        private Stall               mStall;
+
+        private Slot(final StallWatchdog aWatchdog, final Thread aThread) {
+            mWatchdog = aWatchdog;
+            mThread = aThread;
+            mSequence = new AtomicLong(0);
+            mBiote = new AtomicReference<Biote>();
+            mEventType = new AtomicReference<EventType>();
+        }
+
+        void begin(final Biote aBiote, final EventType aEventType) {
+            mBiote.lazySet(aBiote);
+            mEventType.lazySet(aEventType);
+            mSequence.set(mSequence.get() + 1);
+            mWatchdog.wake();
+        }
+
+        void end() {
+            mSequence.lazySet(mSequence.get() + 1);
+        }
+    }
+
+    /*
+     * The stack samples of one stalled handler.  Each frame above the
+     * handler call is counted once per sample it appears in.
+     */
+    private static final class Stall {
+        private final long                      mBioteId;
+        private final String                    mBioteType;
+        private final EventType                 mEventType;
+        private final long                      mStart;
+        private final Map<String, FrameCount>   mFrames;
+        private int                             mSamples;
+        private long                            mReportedAt;
+
+        private Stall(final Biote aBiote, final EventType aEventType, final long aStart) {
+            mBioteId = aBiote.getBioteId();
+            mBioteType = aBiote.getClass().getSimpleName();
+            mEventType = aEventType;
+            mStart = aStart;
+            mFrames = new HashMap<String, FrameCount>();
+            mReportedAt = aStart;
+        }
+
+        private void sample(final StackTraceElement[] aStack) {
+            mSamples++;
+            int depth = handlerDepth(aStack);
+            Set<String> seen = new HashSet<String>();
+            for (int i = 0; i < depth; i++) {
+                String frame = aStack[i].toString();
+                if (!seen.add(frame)) {
+                    continue;
+                }
+                FrameCount count = mFrames.get(frame);
+                if (count == null) {
+                    count = new FrameCount(frame, i);
+                    mFrames.put(frame, count);
+                }
+                count.mCount++;
+            }
+        }
+
+        /*
+         * Returns the frames seen most often, the frames nearest the top of
+         * the stack first among those seen equally often.
+         */
+        private List<FrameCount> top(final int aLimit) {
+            List<FrameCount> frames = new ArrayList<FrameCount>(mFrames.values());
+            Collections.sort(frames, new Comparator<FrameCount>() {
+                public int compare(FrameCount a, FrameCount b) {
+                    if (a.mCount != b.mCount) {
+                        return a.mCount > b.mCount ? -1 : 1;
+                    }
+                    return a.mDepth < b.mDepth ? -1 : a.mDepth == b.mDepth ? 0 : 1;
+                }
+            });
+            return frames.size() > aLimit ? frames.subList(0, aLimit) : frames;
+        }
+
+        /*
+         * Returns the number of frames above the call into the handlers.
+         */
+        private static int handlerDepth(final StackTraceElement[] aStack) {
+            for (int i = 0; i < aStack.length; i++) {
+                if (Biote.class.getName().equals(aStack[i].getClassName()) &&
+                        aStack[i].getMethodName().startsWith("stimulate")) {
+                    return i;
+                }
+            }
+            return aStack.length;
+        }
+    }
+
+    private static final class FrameCount {
+        private final String    mFrame;
+        private final int       mDepth;
+        private int             mCount;
+
+        private FrameCount(final String aFrame, final int aDepth) {
+            mFrame = aFrame;
+            mDepth = aDepth;
+        }
+    }
+}
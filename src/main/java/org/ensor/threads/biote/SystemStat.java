@@ -24,34 +24,90 @@
 
 package org.ensor.threads.biote;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ListAtom;
+
 /**
+ * This is one named statistic kept by the
+ * {@link org.ensor.threads.biote.BioteManager BioteManager}.  It counts the
+ * samples taken and keeps their total, minimum and maximum, and optionally
+ * a {@link Histogram} of the sampled values.
+ *
+ * Taking a sample neither allocates nor locks, so statistics can be kept
+ * on the hottest paths.  The code which samples a statistic looks it up
+ * once and keeps the reference.  Flushing the statistic takes the values
+ * sampled so far and resets them while other threads keep sampling.
  *
  * @author Jon
  */
 
 class SystemStat {
-    public String mName;
-    public int mMin;
-    public int mMax;
-    public int mTotal;
-    public int mSamples;
-    public SystemStat(String name) {
+    private final String        mName;
+    private final LongAdder     mSamples;
+    private final LongAdder     mTotal;
+    private final AtomicLong    mMin;
+    private final AtomicLong    mMax;
+    private final Histogram     mHistogram;
+
+    SystemStat(String name, boolean histogram) {
         mName = name;
-        mMin = 0;
-        mMax = 0;
-        mTotal = 0;
-        mSamples = 0;
+        mSamples = new LongAdder();
+        mTotal = new LongAdder();
+        mMin = new AtomicLong(Long.MAX_VALUE);
+        mMax = new AtomicLong(Long.MIN_VALUE);
+        mHistogram = histogram ? new Histogram() : null;
+    }
+    String getName() {
+        return mName;
+    }
+    boolean hasHistogram() {
+        return mHistogram != null;
+    }
+    void sample() {
+        sample(1);
+    }
+    void sample(long value) {
+        mSamples.increment();
+        mTotal.add(value);
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+        if (mHistogram != null) {
+            mHistogram.record(value);
+        }
     }
-    public void sample(int value) {
-        mTotal += value;
-        if (mSamples == 0) {
-            mMin = value;
-            mMax = value;
+    /**
+     * Adds the values sampled since the last flush to the given list and
+     * resets them.  Nothing is added if there were no samples.
+     * @param aStats The list to add a dictionary for this statistic to.
+     */
+    void flush(ListAtom aStats) {
+        long samples = mSamples.sumThenReset();
+        long total = mTotal.sumThenReset();
+        long min = mMin.getAndSet(Long.MAX_VALUE);
+        long max = mMax.getAndSet(Long.MIN_VALUE);
+        long[] counts = mHistogram == null ? null : mHistogram.snapshotAndReset();
+        if (samples == 0) {
+            return;
         }
-        else {
-            if (mMin > value) mMin = value;
-            if (mMax < value) mMax = value;
+        DictionaryAtom statDict = aStats.newDictionary();
+        statDict.setString("name", mName);
+        statDict.setInt("samples", samples);
+        statDict.setInt("min", min);
+        statDict.setInt("max", max);
+        statDict.setInt("total", total);
+        if (counts != null) {
+            statDict.setInt("p50", Histogram.percentile(counts, 0.5));
+            statDict.setInt("p90", Histogram.percentile(counts, 0.9));
+            statDict.setInt("p99", Histogram.percentile(counts, 0.99));
+            statDict.setInt("p999", Histogram.percentile(counts, 0.999));
         }
-        mSamples++;
     }
 };
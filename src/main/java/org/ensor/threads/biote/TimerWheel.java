@@ -0,0 +1,468 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is a hashed timing wheel which runs the timers of a
+ * {@link org.ensor.threads.biote.BioteManager BioteManager} on a single
+ * thread.  Time is divided into ticks of a fixed length and each tick
+ * maps onto one bucket of a circular array.  A timer is placed into the
+ * bucket of the tick in which it expires, together with the number of
+ * whole revolutions of the wheel remaining before it is due.
+ *
+ * Scheduling and cancelling a timer are O(1) and never block: both only
+ * add the timer to a queue which the timer thread drains on its next pass.
+ * The buckets themselves are only ever touched by the timer thread.
+ *
+ * Tick boundaries are computed from the time the wheel was started, not
+ * from the time the previous tick was processed, so the wheel does not
+ * drift.  Repeating timers run at a fixed rate: the next expiration is the
+ * previous deadline plus the period.  If the timer thread fell behind by
+ * more than a whole period, the missed expirations are skipped rather
+ * than fired in a burst.
+ *
+ * All timers expiring in one pass are handed to the Biote manager as one
+ * batch.
+ *
+ * A wheel driven by a {@link VirtualTimeExecutor VirtualTimeExecutor} has
+ * no thread.  It reads the executor's virtual clock, and the executor
+ * asks it for the next expiration and advances it to that time.
+ *
+ * @author Jon
+ */
+class TimerWheel implements Runnable {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    /**
+     * A single timer in the wheel.
+     */
+    static final class Timeout {
+        private final int               mTimerId;
+        private final long              mBioteId;
+        private final Event             mEvent;
+        private final long              mPeriod;
+        private final AtomicInteger     mState;
+
+        // These members are owned by the timer thread.
+        private long                    mDeadline;
+        private long                    mRemainingRounds;
+        private long                    mLateness;
+        private int                     mMissed;
+        private Bucket                  mBucket;
+        private Timeout                 mPrevious;
+        private Timeout                 mNext;
+
+        Timeout(
+                final int aTimerId,
+                final long aBioteId,
+                final Event aEvent,
+                final long aDeadline,
+                final long aPeriod) {
+            mTimerId = aTimerId;
+            mBioteId = aBioteId;
+            mEvent = aEvent;
+            mDeadline = aDeadline;
+            mPeriod = aPeriod;
+            mState = new AtomicInteger(STATE_PENDING);
+        }
+        int getTimerId() {
+            return mTimerId;
+        }
+        long getBioteId() {
+            return mBioteId;
+        }
+        Event getEvent() {
+            return mEvent;
+        }
+        boolean isRepeating() {
+            return mPeriod > 0;
+        }
+        /**
+         * Returns how late (in nanoseconds) the most recent expiration of
+         * this timer was handed over.
+         */
+        long getLateness() {
+            return mLateness;
+        }
+        /**
+         * Returns the number of expirations skipped by the most recent
+         * expiration because the timer thread fell behind.
+         */
+        int getMissed() {
+            return mMissed;
+        }
+    }
+
+    /**
+     * One slot of the wheel.  Timers are kept in a doubly linked list so
+     * that a cancelled timer can be unlinked in constant time.
+     */
+    static final class Bucket {
+        private Timeout mHead;
+        private Timeout mTail;
+
+        void add(final Timeout aTimeout) {
+            aTimeout.mBucket = this;
+            aTimeout.mPrevious = mTail;
+            aTimeout.mNext = null;
+            if (mTail == null) {
+                mHead = aTimeout;
+            }
+            else {
+                mTail.mNext = aTimeout;
+            }
+            mTail = aTimeout;
+        }
+
+        void remove(final Timeout aTimeout) {
+            if (aTimeout.mPrevious == null) {
+                mHead = aTimeout.mNext;
+            }
+            else {
+                aTimeout.mPrevious.mNext = aTimeout.mNext;
+            }
+            if (aTimeout.mNext == null) {
+                mTail = aTimeout.mPrevious;
+            }
+            else {
+                aTimeout.mNext.mPrevious = aTimeout.mPrevious;
+            }
+            aTimeout.mBucket = null;
+            aTimeout.mPrevious = null;
+            aTimeout.mNext = null;
+        }
+
+        boolean isEmpty() {
+            return mHead == null;
+        }
+    }
+
+    /**
+     * The receiver of expired timers.
+     */
+    interface IExpirationHandler {
+        /**
+         * Called on the timer thread with every timer which expired in
+         * one pass of the wheel, in order of expiration.
+         * @param aExpired The timers which expired.
+         */
+        void expire(List<Timeout> aExpired);
+    }
+
+    private final Bucket[]                          mWheel;
+    private final int                               mMask;
+    private final long                              mTickNanos;
+    private final ConcurrentLinkedQueue<Timeout>    mPendingTimeouts;
+    private final ConcurrentLinkedQueue<Timeout>    mCancelledTimeouts;
+    private final IExpirationHandler                mHandler;
+    private final List<Timeout>                     mExpired;
+    private final List<Timeout>                     mRescheduled;
+    private final Thread                            mThread;
+    private final VirtualTimeExecutor               mVirtualTime;
+    private final long                              mStartTime;
+    private volatile boolean                        mRunning;
+    private volatile long                           mWakeupTime;
+    private long                                    mTick;
+    private int                                     mTimeoutCount;
+
+    /**
+     * Creates a timer wheel and starts its thread.
+     * @param aName Name of the timer thread.
+     * @param aTickNanos Length of one tick in nanoseconds.
+     * @param aWheelSize Number of buckets.  This is rounded up to a power
+     *                   of two.
+     * @param aHandler The receiver of expired timers.
+     * @param aVirtualTime The executor whose clock drives the wheel, or null
+     *                     for a wheel running on its own thread and the
+     *                     system clock.
+     */
+    TimerWheel(
+            final String aName,
+            final long aTickNanos,
+            final int aWheelSize,
+            final IExpirationHandler aHandler,
+            final VirtualTimeExecutor aVirtualTime) {
+        int size = 1;
+        while (size < aWheelSize) {
+            size <<= 1;
+        }
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mTickNanos = aTickNanos;
+        mPendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        mCancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        mHandler = aHandler;
+        mExpired = new ArrayList<Timeout>();
+        mRescheduled = new ArrayList<Timeout>();
+        mVirtualTime = aVirtualTime;
+        mStartTime = aVirtualTime == null ? System.nanoTime() : 0;
+        mWakeupTime = Long.MAX_VALUE;
+        mTick = 0;
+        mTimeoutCount = 0;
+        mRunning = true;
+        if (aVirtualTime == null) {
+            mThread = new Thread(this, aName);
+            mThread.start();
+        }
+        else {
+            mThread = null;
+        }
+    }
+
+    /*
+     * Returns the time in nanoseconds since the wheel was started.
+     */
+    private long now() {
+        return mVirtualTime == null ?
+                System.nanoTime() - mStartTime : mVirtualTime.nanoTime();
+    }
+
+    /**
+     * Creates a timer for this wheel.  The timer does not run until it is
+     * passed to {@link #schedule schedule}.  This may be called from any
+     * thread.
+     * @param aTimerId Id of the timer.
+     * @param aBioteId Biote to stimulate when the timer expires.
+     * @param aEvent Event to send to the Biote.
+     * @param aDelayNanos Delay before the first expiration.
+     * @param aPeriodNanos Period of a repeating timer or zero for a timer
+     *                     which expires only once.
+     * @return The new timer.
+     */
+    Timeout newTimeout(
+            final int aTimerId,
+            final long aBioteId,
+            final Event aEvent,
+            final long aDelayNanos,
+            final long aPeriodNanos) {
+        long deadline = now() + aDelayNanos;
+        return new Timeout(aTimerId, aBioteId, aEvent, deadline, aPeriodNanos);
+    }
+
+    /**
+     * Schedules a timer.  This may be called from any thread.
+     * @param aTimeout A timer created by {@link #newTimeout newTimeout}.
+     */
+    void schedule(final Timeout aTimeout) {
+        mPendingTimeouts.add(aTimeout);
+        // Only wake the timer thread if it is sleeping past this deadline.
+        if (mThread != null && aTimeout.mDeadline < mWakeupTime) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Cancels a timer.  This may be called from any thread.  A timer which
+     * has already been handed over for expiration is not recalled.
+     * @param aTimeout The timer to cancel.
+     */
+    void cancel(final Timeout aTimeout) {
+        if (aTimeout.mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+            mCancelledTimeouts.add(aTimeout);
+        }
+    }
+
+    /**
+     * Returns true if the calling thread is the timer thread.
+     * @return True if called from the timer thread.
+     */
+    boolean isTimerThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Stops the timer thread.  Pending timers are discarded.
+     */
+    void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    public void run() {
+        while (mRunning) {
+            if (advance(now())) {
+                continue;
+            }
+
+            // Sleep until the next tick with anything in its bucket.  A
+            // timer scheduled in the meantime with an earlier deadline
+            // wakes us up.
+            mWakeupTime = nextWakeupTime();
+            if (mPendingTimeouts.isEmpty() && mCancelledTimeouts.isEmpty()) {
+                long sleep = mWakeupTime - now();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+            }
+            mWakeupTime = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Expires every timer due by the given time and hands them over.  This
+     * is called by the timer thread, or by the virtual time executor for a
+     * wheel without a thread.
+     * @param aNow The time since the wheel was started, in nanoseconds.
+     * @return True if any timers expired.
+     */
+    boolean advance(final long aNow) {
+        transferPendingTimeouts();
+        removeCancelledTimeouts();
+
+        if (mTimeoutCount == 0) {
+            // Nothing is in the wheel, so there are no rounds to count
+            // down and we can jump straight to the current tick.
+            mTick = Math.max(mTick, aNow / mTickNanos);
+        }
+        while ((mTick + 1) * mTickNanos <= aNow) {
+            expireBucket(mTick, aNow);
+            mTick++;
+        }
+        for (Timeout t : mRescheduled) {
+            place(t);
+        }
+        mRescheduled.clear();
+
+        if (mExpired.isEmpty()) {
+            return false;
+        }
+        try {
+            mHandler.expire(mExpired);
+        }
+        catch (Exception ex) {
+            BioteManager.mLogger.severe("TimerWheel:Exception -> " + ex.toString());
+        }
+        mExpired.clear();
+        return true;
+    }
+
+    /**
+     * Returns the time at which the wheel next has to be advanced, or
+     * Long.MAX_VALUE if there are no timers.  This is only used by the
+     * virtual time executor.
+     * @return The time since the wheel was started, in nanoseconds.
+     */
+    long nextExpirationTime() {
+        transferPendingTimeouts();
+        removeCancelledTimeouts();
+        if (mTimeoutCount == 0) {
+            return Long.MAX_VALUE;
+        }
+        return nextWakeupTime();
+    }
+
+    private long nextWakeupTime() {
+        if (mTimeoutCount == 0) {
+            return (mTick + mWheel.length) * mTickNanos;
+        }
+        for (int i = 0; i < mWheel.length; i++) {
+            if (!mWheel[(int) ((mTick + i) & mMask)].isEmpty()) {
+                return (mTick + i + 1) * mTickNanos;
+            }
+        }
+        return (mTick + mWheel.length) * mTickNanos;
+    }
+
+    private void place(final Timeout aTimeout) {
+        // A bucket is expired once its tick has ended, so a timer goes into
+        // the last tick ending at or after its deadline.  A deadline on a
+        // tick boundary then expires exactly on time.
+        long calculated = (aTimeout.mDeadline - 1) / mTickNanos;
+        long ticks = Math.max(calculated, mTick);
+        aTimeout.mRemainingRounds = (ticks - mTick) / mWheel.length;
+        mWheel[(int) (ticks & mMask)].add(aTimeout);
+        mTimeoutCount++;
+    }
+
+    private void transferPendingTimeouts() {
+        Timeout t = mPendingTimeouts.poll();
+        while (t != null) {
+            if (t.mState.get() == STATE_PENDING) {
+                place(t);
+            }
+            t = mPendingTimeouts.poll();
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout t = mCancelledTimeouts.poll();
+        while (t != null) {
+            if (t.mBucket != null) {
+                t.mBucket.remove(t);
+                mTimeoutCount--;
+            }
+            t = mCancelledTimeouts.poll();
+        }
+    }
+
+    private void expireBucket(final long aTick, final long aNow) {
+        Bucket bucket = mWheel[(int) (aTick & mMask)];
+        Timeout t = bucket.mHead;
+        while (t != null) {
+            Timeout next = t.mNext;
+            if (t.mRemainingRounds > 0) {
+                t.mRemainingRounds--;
+            }
+            else if (t.mDeadline <= aNow) {
+                bucket.remove(t);
+                mTimeoutCount--;
+                if (t.mState.get() == STATE_PENDING) {
+                    t.mLateness = aNow - t.mDeadline;
+                    t.mMissed = 0;
+                    if (t.isRepeating()) {
+                        // Fixed rate: the next deadline follows the previous
+                        // deadline, skipping any periods we have already missed.
+                        t.mDeadline += t.mPeriod;
+                        if (t.mDeadline <= aNow) {
+                            long missed = (aNow - t.mDeadline) / t.mPeriod + 1;
+                            t.mDeadline += missed * t.mPeriod;
+                            t.mMissed = (int) missed;
+                        }
+                        mRescheduled.add(t);
+                    }
+                    else {
+                        t.mState.compareAndSet(STATE_PENDING, STATE_EXPIRED);
+                    }
+                    mExpired.add(t);
+                }
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.util.Arrays;
+
+/**
+ * This is the list of Biotes subscribed to one topic of a
+ * {@link org.ensor.threads.biote.BioteManager BioteManager}.  The list is
+ * read on every publish and changes rarely, so it is kept as an array
+ * which is replaced by a modified copy whenever a Biote subscribes or
+ * unsubscribes.  Publishing reads the current array without locking.
+ *
+ * @author Jon
+ */
+class Topic {
+    private static final long[]     NO_SUBSCRIBERS = new long[0];
+
+    private final String            mName;
+    private volatile long[]         mSubscribers;
+
+    Topic(final String aName) {
+        mName = aName;
+        mSubscribers = NO_SUBSCRIBERS;
+    }
+
+    /**
+     * Returns the name of this topic.
+     * @return The name of the topic.
+     */
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the IDs of the Biotes subscribed to this topic.  The array
+     * returned is never modified and must not be modified by the caller.
+     * @return The subscribed Biote IDs.
+     */
+    long[] getSubscribers() {
+        return mSubscribers;
+    }
+
+    /**
+     * Subscribes a Biote to this topic.
+     * @param aBioteId The ID of the Biote.
+     * @return False if the Biote was already subscribed.
+     */
+    synchronized boolean add(final long aBioteId) {
+        long[] subscribers = mSubscribers;
+        if (indexOf(subscribers, aBioteId) >= 0) {
+            return false;
+        }
+        subscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+        subscribers[subscribers.length - 1] = aBioteId;
+        mSubscribers = subscribers;
+        return true;
+    }
+
+    /**
+     * Unsubscribes a Biote from this topic.
+     * @param aBioteId The ID of the Biote.
+     * @return False if the Biote was not subscribed.
+     */
+    synchronized boolean remove(final long aBioteId) {
+        long[] subscribers = mSubscribers;
+        int index = indexOf(subscribers, aBioteId);
+        if (index < 0) {
+            return false;
+        }
+        if (subscribers.length == 1) {
+            mSubscribers = NO_SUBSCRIBERS;
+            return true;
+        }
+        long[] remaining = new long[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, remaining, 0, index);
+        System.arraycopy(subscribers, index + 1, remaining, index,
+                remaining.length - index);
+        mSubscribers = remaining;
+        return true;
+    }
+
+    private static int indexOf(final long[] aSubscribers, final long aBioteId) {
+        for (int i = 0; i < aSubscribers.length; i++) {
+            if (aSubscribers[i] == aBioteId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This executor runs a {@link org.ensor.threads.biote.BioteManager BioteManager}
+ * on a virtual clock instead of on thread pools and the system clock.
+ * Nothing happens until {@link #runFor runFor} is called.  The calling
+ * thread then runs every ready Biote and, whenever no Biote is ready,
+ * moves the clock straight to the next timer and expires it.  A scenario
+ * which takes minutes of real time therefore runs as fast as the Biotes
+ * can handle their events.
+ *
+ * When several Biotes are ready, the next one to run is picked at random
+ * using the seed given to the executor, and each Biote handles one event
+ * (or one batch) before another is picked.  Given the same seed and the
+ * same events from outside, every run interleaves the Biotes' events in
+ * the same order.  Different seeds explore different interleavings.
+ *
+ * The executor and its Biote manager must only be used from one thread.
+ * Biotes should read the time with
+ * {@link org.ensor.threads.biote.BioteManager#currentTimeMillis currentTimeMillis}
+ * rather than from the system clock.  A sender blocked by a full mailbox
+ * is never waited for, because nothing else would empty the mailbox.
+ *
+ * @author Jon
+ */
+public class VirtualTimeExecutor {
+    private final Random                mRandom;
+    private final ArrayList<Biote>      mReady;
+    private final ArrayList<Biote>      mUrgent;
+    private BioteManager                mBioteManager;
+    private TimerWheel                  mTimerWheel;
+    private long                        mNanoTime;
+    private long                        mRunCount;
+
+    /**
+     * Creates an executor whose clock starts at zero.
+     * @param aSeed The seed which decides the order in which ready Biotes
+     *              are run.
+     */
+    public VirtualTimeExecutor(final long aSeed) {
+        mRandom = new Random(aSeed);
+        mReady = new ArrayList<Biote>();
+        mUrgent = new ArrayList<Biote>();
+        mNanoTime = 0;
+        mRunCount = 0;
+    }
+
+    /*
+     * Called by the Biote manager this executor drives, once it has created
+     * its timer wheel.
+     */
+    void attach(final BioteManager aBioteManager, final TimerWheel aTimerWheel) {
+        if (mBioteManager != null) {
+            throw new IllegalStateException(
+                    "This executor already drives a biote manager.");
+        }
+        mBioteManager = aBioteManager;
+        mTimerWheel = aTimerWheel;
+    }
+
+    /*
+     * Places a Biote with pending events on the ready list.  Biotes with
+     * high priority events are run before any others.
+     */
+    void schedule(final Biote aBiote, final boolean aUrgent) {
+        if (aUrgent) {
+            mUrgent.add(aBiote);
+        }
+        else {
+            mReady.add(aBiote);
+        }
+    }
+
+    /**
+     * Returns the virtual time in nanoseconds since the executor was
+     * created.
+     * @return The virtual time in nanoseconds.
+     */
+    public long nanoTime() {
+        return mNanoTime;
+    }
+
+    /**
+     * Returns the virtual time in milliseconds since the executor was
+     * created.
+     * @return The virtual time in milliseconds.
+     */
+    public long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mNanoTime);
+    }
+
+    /**
+     * Returns the number of times a Biote was run to handle its events.
+     * @return The number of Biote runs.
+     */
+    public long getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * Runs the Biotes and timers for the given amount of virtual time.  This
+     * returns once no Biote is ready and the next timer is due after the end
+     * of the period.  The clock is then at the end of the period.
+     * @param aMillis The virtual time to run for, in milliseconds.
+     */
+    public void runFor(final long aMillis) {
+        if (mBioteManager == null) {
+            throw new IllegalStateException(
+                    "This executor does not drive a biote manager.");
+        }
+        long end = mNanoTime + TimeUnit.MILLISECONDS.toNanos(aMillis);
+        while (mBioteManager.isRunning()) {
+            runReadyBiotes();
+            long next = mTimerWheel.nextExpirationTime();
+            if (next > end) {
+                break;
+            }
+            mNanoTime = Math.max(mNanoTime, next);
+            mTimerWheel.advance(mNanoTime);
+        }
+        mNanoTime = end;
+    }
+
+    private void runReadyBiotes() {
+        while (mBioteManager.isRunning() &&
+                (!mUrgent.isEmpty() || !mReady.isEmpty())) {
+            ArrayList<Biote> ready = mUrgent.isEmpty() ? mReady : mUrgent;
+            // Take a random Biote, moving the last one into its place.
+            int index = mRandom.nextInt(ready.size());
+            Biote b = ready.get(index);
+            ready.set(index, ready.get(ready.size() - 1));
+            ready.remove(ready.size() - 1);
+            mRunCount++;
+            BioteThread.processBiote(b, mBioteManager);
+        }
+    }
+}
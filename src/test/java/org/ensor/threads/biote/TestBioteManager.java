@@ -24,6 +24,8 @@
 
 package org.ensor.threads.biote;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.ensor.data.atom.Atom;
 import org.ensor.data.atom.DictionaryAtom;
 import org.ensor.data.atom.ListAtom;
@@ -223,4 +225,1220 @@ public class TestBioteManager {
         
     }
     
+    class PingBiote extends Biote {
+        private final long[] mLatencies;
+        private int mReceived;
+
+        public PingBiote(BioteManager aBioteManager, int aPings) {
+            super(aBioteManager, false);
+            mLatencies = new long[aPings];
+            mReceived = 0;
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            this.subscribe("ping", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    long now = System.nanoTime();
+                    synchronized (mLatencies) {
+                        mLatencies[mReceived++] =
+                                now - msg.getData().getInt("sent");
+                        mLatencies.notifyAll();
+                    }
+                }
+            });
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+        public long getMedianLatency() throws InterruptedException {
+            synchronized (mLatencies) {
+                while (mReceived < mLatencies.length) {
+                    mLatencies.wait(1000);
+                }
+            }
+            long[] sorted = mLatencies.clone();
+            java.util.Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+    };
+
+    private long measureLatency(SchedulerMode aMode) throws Exception {
+        final int pings = 20;
+        BioteManager bioteManager = new BioteManager("latency", 4, 1, aMode);
+        PingBiote ping = new PingBiote(bioteManager, pings);
+        int pingId = bioteManager.createBiote(ping);
+        for (int i = 0; i < pings; i++) {
+            // Give the event threads time to go idle before each ping.
+            Thread.sleep(20);
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setInt("sent", System.nanoTime());
+            bioteManager.sendStimulus(pingId, new Event("ping", dict), 0);
+        }
+        long medianLatency = ping.getMedianLatency();
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+        return medianLatency;
+    }
+
+    /**
+     * This method compares the time it takes for an event sent to an
+     * idle Biote manager to be handled when the event threads poll the
+     * ready queue and when they are woken up by the enqueue.
+     * @throws Exception
+     */
+    @Test
+    public void testSchedulerLatency() throws Exception {
+        long polling = measureLatency(SchedulerMode.POLLING);
+        long wake = measureLatency(SchedulerMode.WAKE_ON_ENQUEUE);
+        BioteManager.mLogger.info(String.format(
+                "Median idle wake-up latency: polling %.1f us, "
+                        + "wake-on-enqueue %.1f us",
+                polling / 1000.0, wake / 1000.0));
+        Assert.assertTrue(wake < polling);
+    }
+
+    class CountingBiote extends Biote {
+        private final int mExpected;
+        private int mReceived;
+
+        public CountingBiote(BioteManager aBioteManager, int aExpected) {
+            super(aBioteManager, false);
+            mExpected = aExpected;
+            mReceived = 0;
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            this.subscribe("count", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mReceived++;
+                    if (mReceived == mExpected) {
+                        getBioteManager().shutdown();
+                    }
+                }
+            });
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+        public int getReceived() {
+            return mReceived;
+        }
+    };
+
+    /**
+     * This method sends events to a single Biote from many threads at
+     * once and checks that every event is handled exactly once.
+     * @throws Exception
+     */
+    @Test
+    public void testManyProducers() throws Exception {
+        final int producers = 8;
+        final int eventsPerProducer = 10000;
+        final BioteManager bioteManager = new BioteManager("producers");
+        CountingBiote counter = new CountingBiote(bioteManager,
+                producers * eventsPerProducer);
+        final int counterId = bioteManager.createBiote(counter);
+        final Event count = new Event("count");
+
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < eventsPerProducer; j++) {
+                        bioteManager.sendStimulus(counterId, count, 0);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        bioteManager.waitForShutdown();
+        Assert.assertEquals(producers * eventsPerProducer,
+                counter.getReceived());
+    }
+
+    class SlowBiote extends Biote {
+        private final java.util.concurrent.CountDownLatch mDone;
+        private long mNext;
+        private boolean mInOrder;
+
+        public SlowBiote(BioteManager aBioteManager,
+                java.util.concurrent.CountDownLatch aDone) {
+            super(aBioteManager, true);
+            mDone = aDone;
+            mNext = 0;
+            mInOrder = true;
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            this.subscribe("slow", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    // Pretend to wait on a serial port.
+                    Thread.sleep(50);
+                    if (msg.getData().getInt("sequence") != mNext) {
+                        mInOrder = false;
+                    }
+                    mNext++;
+                    mDone.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+        public boolean isInOrder() {
+            return mInOrder;
+        }
+    };
+
+    /**
+     * This method runs many blocking Biotes whose handlers sleep, with each
+     * batch on a thread of its own.  With a single blocking thread this
+     * would take several seconds.  Each Biote must still see its own
+     * events in order.
+     * @throws Exception
+     */
+    @Test
+    public void testThreadPerBatch() throws Exception {
+        final int biotes = 40;
+        final int eventsPerBiote = 4;
+        BioteManager bioteManager = new BioteManager("per-batch", 4, 1,
+                SchedulerMode.WAKE_ON_ENQUEUE,
+                BlockingExecutionMode.THREAD_PER_BATCH);
+        java.util.concurrent.CountDownLatch done =
+                new java.util.concurrent.CountDownLatch(biotes * eventsPerBiote);
+        SlowBiote[] slow = new SlowBiote[biotes];
+        int[] ids = new int[biotes];
+        for (int i = 0; i < biotes; i++) {
+            slow[i] = new SlowBiote(bioteManager, done);
+            ids[i] = bioteManager.createBiote(slow[i]);
+        }
+        long start = System.nanoTime();
+        for (int j = 0; j < eventsPerBiote; j++) {
+            for (int i = 0; i < biotes; i++) {
+                DictionaryAtom dict = DictionaryAtom.newAtom();
+                dict.setInt("sequence", j);
+                bioteManager.sendStimulus(ids[i], new Event("slow", dict), 0);
+            }
+        }
+        Assert.assertTrue(done.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // Each batch ran on a thread of its own; their watchdog slots go
+        // away with them, leaving at most one per worker thread.
+        for (int i = 0; i < 500 && bioteManager.getWatchdogSlotCount() > 4; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(bioteManager.getWatchdogSlotCount() <= 4);
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+
+        for (SlowBiote b : slow) {
+            Assert.assertTrue(b.isInOrder());
+        }
+        // One blocking thread would need biotes * eventsPerBiote * 50ms.
+        Assert.assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 4000);
+    }
+
+    class BatchBiote extends Biote {
+        private int mBatches;
+        private int mEvents;
+        private int mSingles;
+
+        public BatchBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            this.subscribeBatch("telemetry", new IBatchEventHandler() {
+                public void process(List<Event> msgs) throws Exception {
+                    mBatches++;
+                    mEvents += msgs.size();
+                }
+            });
+            this.subscribe("telemetry", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mSingles++;
+                }
+            });
+            this.subscribe("done", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    getBioteManager().shutdown();
+                }
+            });
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method queues a burst of events for a Biote with a batch
+     * handler and checks that they arrive in batches, while the ordinary
+     * handler still sees every event.
+     * @throws Exception
+     */
+    @Test
+    public void testBatchDelivery() throws Exception {
+        final int events = 100;
+        BioteManager bioteManager = new BioteManager("batch");
+        BatchBiote batch = new BatchBiote(bioteManager);
+        int batchId = bioteManager.createBiote(batch);
+
+        List<Event> burst = new ArrayList<Event>();
+        for (int i = 0; i < events; i++) {
+            burst.add(new Event("telemetry"));
+        }
+        burst.add(new Event("done"));
+        bioteManager.sendStimuli(batchId, burst, 0);
+        bioteManager.waitForShutdown();
+
+        Assert.assertEquals(events, batch.mEvents);
+        Assert.assertEquals(events, batch.mSingles);
+        Assert.assertTrue(batch.mBatches < events);
+    }
+
+    class StopBiote extends Biote {
+        private int mBulkHandled;
+        private int mBulkHandledAtStop = -1;
+
+        public StopBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("bulk", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mBulkHandled++;
+                }
+            });
+            this.subscribe("stop", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mBulkHandledAtStop = mBulkHandled;
+                }
+            }, EventPriority.HIGH);
+            this.subscribe("done", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    getBioteManager().shutdown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method queues a high priority event behind a backlog of normal
+     * events and checks that it is handled before any of them.  The biote
+     * runs under virtual time so that it cannot start on the backlog while
+     * the backlog is still being queued.
+     * @throws Exception
+     */
+    @Test
+    public void testPriorityEvent() throws Exception {
+        final int events = 1000;
+        VirtualTimeExecutor executor = new VirtualTimeExecutor(1);
+        BioteManager bioteManager = new BioteManager("priority", executor);
+        StopBiote stop = new StopBiote(bioteManager);
+        int stopId = bioteManager.createBiote(stop);
+        executor.runFor(1);
+
+        List<Event> burst = new ArrayList<Event>();
+        for (int i = 0; i < events; i++) {
+            burst.add(new Event("bulk"));
+        }
+        burst.add(new Event("stop"));
+        burst.add(new Event("done"));
+        bioteManager.sendStimuli(stopId, burst, 0);
+        executor.runFor(1);
+        bioteManager.waitForShutdown();
+
+        Assert.assertEquals(events, stop.mBulkHandled);
+        Assert.assertEquals(0, stop.mBulkHandledAtStop);
+    }
+
+    /**
+     * This method sends a burst of high priority events to a biote which is
+     * already waiting in the ready queue and checks that the biote is placed
+     * on the urgent queue only once.
+     * @throws Exception
+     */
+    @Test
+    public void testUrgentScheduledOnce() throws Exception {
+        final int events = 50;
+        VirtualTimeExecutor executor = new VirtualTimeExecutor(1);
+        BioteManager bioteManager = new BioteManager("urgent-once", executor);
+        StopBiote stop = new StopBiote(bioteManager);
+        int stopId = bioteManager.createBiote(stop);
+        executor.runFor(1);
+
+        long runs = executor.getRunCount();
+        bioteManager.sendStimulus(stopId, new Event("bulk"), 0);
+        for (int i = 0; i < events; i++) {
+            bioteManager.sendStimulus(stopId, new Event("stop"), 0);
+        }
+        executor.runFor(1);
+
+        // Virtual time handles one event per run.  Besides those runs only
+        // the ordinary entry, which is stale by then, is taken.
+        Assert.assertEquals(events + 2, executor.getRunCount() - runs);
+        Assert.assertEquals(1, stop.mBulkHandled);
+        Assert.assertEquals(0, stop.mBulkHandledAtStop);
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method finalizes a biote from outside while it is queued with
+     * events still in its mailbox, and checks that the biote is removed
+     * and that its stale ready queue entry does nothing.
+     * @throws Exception
+     */
+    @Test
+    public void testFinalizeQueuedBiote() throws Exception {
+        VirtualTimeExecutor executor = new VirtualTimeExecutor(1);
+        BioteManager bioteManager = new BioteManager("finalize-queued", executor);
+        StopBiote stop = new StopBiote(bioteManager);
+        bioteManager.createBiote(stop);
+        executor.runFor(1);
+        int count = bioteManager.getBioteCount();
+
+        for (int i = 0; i < 10; i++) {
+            bioteManager.sendStimulus(stop.getBioteId(), new Event("bulk"), 0);
+        }
+        stop.shutdown(true);
+        Assert.assertEquals(count - 1, bioteManager.getBioteCount());
+
+        executor.runFor(1);
+        Assert.assertEquals(0, stop.mBulkHandled);
+        Assert.assertEquals(count - 1, bioteManager.getBioteCount());
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class GateBiote extends Biote {
+        private final java.util.concurrent.CountDownLatch mEntered =
+                new java.util.concurrent.CountDownLatch(1);
+        private final java.util.concurrent.CountDownLatch mRelease =
+                new java.util.concurrent.CountDownLatch(1);
+        private final java.util.concurrent.CountDownLatch mFilled;
+        private final List<Integer> mHandled = new ArrayList<Integer>();
+
+        public GateBiote(BioteManager aBioteManager, int aExpected) {
+            super(aBioteManager, false);
+            mFilled = new java.util.concurrent.CountDownLatch(aExpected);
+            this.subscribe("hold", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mEntered.countDown();
+                    mRelease.await();
+                }
+            });
+            this.subscribe("fill", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mHandled.add((int) msg.getData().getInt("sequence"));
+                    mFilled.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    private DeliveryStatus[] fillGate(BioteManager bioteManager,
+            GateBiote gate, int events) throws Exception {
+        int gateId = bioteManager.createBiote(gate);
+        bioteManager.sendStimulus(gateId, new Event("hold"), 0);
+        Assert.assertTrue(gate.mEntered.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        DeliveryStatus[] status = new DeliveryStatus[events];
+        for (int i = 0; i < events; i++) {
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setInt("sequence", i);
+            status[i] = bioteManager.deliverStimulus(gateId, new Event("fill", dict), 0);
+        }
+        return status;
+    }
+
+    /**
+     * This method fills the mailboxes of Biotes which are busy handling
+     * an event and checks that each overflow policy keeps the mailbox
+     * within its capacity.
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedMailbox() throws Exception {
+        final int capacity = 10;
+        final int events = 20;
+        BioteManager bioteManager = new BioteManager("bounded");
+
+        // The newest events survive and the oldest are dropped.
+        GateBiote dropOldest = new GateBiote(bioteManager, capacity);
+        dropOldest.setMailboxCapacity(capacity, OverflowPolicy.DROP_OLDEST);
+        DeliveryStatus[] status = fillGate(bioteManager, dropOldest, events);
+        for (int i = 0; i < events; i++) {
+            Assert.assertEquals(DeliveryStatus.DELIVERED, status[i]);
+        }
+        Assert.assertEquals(capacity, dropOldest.getMailboxDepth());
+        Assert.assertEquals(events - capacity, dropOldest.getDroppedEventCount());
+        dropOldest.mRelease.countDown();
+        Assert.assertTrue(dropOldest.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        for (int i = 0; i < capacity; i++) {
+            Assert.assertEquals(events - capacity + i, dropOldest.mHandled.get(i).intValue());
+        }
+
+        // The sender is told that the events did not fit.
+        GateBiote reject = new GateBiote(bioteManager, capacity);
+        reject.setMailboxCapacity(capacity, OverflowPolicy.REJECT);
+        status = fillGate(bioteManager, reject, events);
+        for (int i = 0; i < events; i++) {
+            Assert.assertEquals(i < capacity ? DeliveryStatus.DELIVERED :
+                    DeliveryStatus.REJECTED, status[i]);
+        }
+        Assert.assertEquals(events - capacity, reject.getRejectedEventCount());
+        reject.mRelease.countDown();
+        Assert.assertTrue(reject.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        // The sender waits for the timeout before the event is dropped.
+        GateBiote block = new GateBiote(bioteManager, capacity);
+        block.setMailboxCapacity(capacity, OverflowPolicy.BLOCK, 50);
+        fillGate(bioteManager, block, capacity);
+        long start = System.nanoTime();
+        Assert.assertEquals(DeliveryStatus.DROPPED,
+                bioteManager.deliverStimulus(block.getBioteId(), new Event("fill"), 0));
+        long waitedMillis = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue(waitedMillis >= 40);
+        Assert.assertEquals(1, block.getDroppedEventCount());
+        block.mRelease.countDown();
+        Assert.assertTrue(block.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method queues several events with the same conflation key
+     * behind a busy Biote and checks that only the latest one is handled,
+     * in the place of the first one.
+     * @throws Exception
+     */
+    @Test
+    public void testConflation() throws Exception {
+        BioteManager bioteManager = new BioteManager("conflation");
+        GateBiote gate = new GateBiote(bioteManager, 2);
+        fillGate(bioteManager, gate, 0);
+
+        String[] keys = new String[] {"state", null, "state", "state"};
+        for (int i = 0; i < keys.length; i++) {
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setInt("sequence", i);
+            Assert.assertEquals(DeliveryStatus.DELIVERED,
+                    bioteManager.deliverStimulus(gate.getBioteId(),
+                            new Event("fill", dict, keys[i]), 0));
+        }
+        Assert.assertEquals(2, gate.getMailboxDepth());
+        gate.mRelease.countDown();
+        Assert.assertTrue(gate.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertEquals(3, gate.mHandled.get(0).intValue());
+        Assert.assertEquals(1, gate.mHandled.get(1).intValue());
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method checks that event types are interned and that an event
+     * routed by type reaches the biote it is routed to.
+     * @throws Exception
+     */
+    @Test
+    public void testEventTypeRouting() throws Exception {
+        EventType routed = EventType.get("routed");
+        Assert.assertSame(routed, EventType.get("routed"));
+        Assert.assertSame(routed, new Event("routed").getEventType());
+
+        BioteManager bioteManager = new BioteManager("routing");
+        GateBiote source = new GateBiote(bioteManager, 0);
+        GateBiote target = new GateBiote(bioteManager, 1);
+        int sourceId = bioteManager.createBiote(source);
+        int targetId = bioteManager.createBiote(target);
+        source.setMessageRoute(EventType.get("fill"), targetId);
+        Assert.assertEquals(targetId, source.getTargetBioteId("fill"));
+        Assert.assertEquals(sourceId, source.getTargetBioteId(routed));
+
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 7);
+        bioteManager.sendStimulus(sourceId, new Event("fill", dict), 0);
+        Assert.assertTrue(target.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertEquals(7, target.mHandled.get(0).intValue());
+        Assert.assertTrue(source.mHandled.isEmpty());
+
+        source.setMessageRoute("fill", null);
+        Assert.assertEquals(sourceId, source.getTargetBioteId("fill"));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class Position implements IEventPayload {
+        private final double mX;
+        private final double mY;
+
+        Position(double aX, double aY) {
+            mX = aX;
+            mY = aY;
+        }
+        public DictionaryAtom toDictionary() {
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setReal("x", mX);
+            dict.setReal("y", mY);
+            return dict;
+        }
+    };
+
+    /**
+     * This method checks that an event hands over its payload without
+     * copying it and converts a typed payload only when asked for its data.
+     * @throws Exception
+     */
+    @Test
+    public void testEventPayload() throws Exception {
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 3);
+        Event dictEvent = new Event("fill", dict);
+        Assert.assertSame(dict, dictEvent.getDictionary());
+        Assert.assertEquals(3, dictEvent.getData().getInt("sequence"));
+        Assert.assertSame(dictEvent.getData(), dictEvent.getData());
+
+        Position position = new Position(1.5, 2.5);
+        Event typedEvent = new Event(EventType.get("position"), position);
+        Assert.assertSame(position, typedEvent.getPayload(Position.class));
+        Assert.assertEquals(2.5, typedEvent.getData().getReal("y"), 0);
+        Assert.assertEquals(0, new Event("empty").getData().size());
+    }
+
+    /**
+     * This method checks that the per-biote statistics report the waiting
+     * events and the handler times by event type.
+     * @throws Exception
+     */
+    @Test
+    public void testBioteStats() throws Exception {
+        BioteManager bioteManager = new BioteManager("biote-stats");
+        GateBiote gate = new GateBiote(bioteManager, 3);
+        fillGate(bioteManager, gate, 3);
+
+        DictionaryAtom waiting = findBiote(bioteManager.getBioteStats(), gate.getBioteId());
+        Assert.assertEquals(3, waiting.getInt("mailboxDepth"));
+
+        gate.mRelease.countDown();
+        Assert.assertTrue(gate.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        DictionaryAtom done = findBiote(bioteManager.getBioteStats(), gate.getBioteId());
+        Assert.assertEquals(0, done.getInt("mailboxDepth"));
+        Assert.assertEquals("GateBiote", done.getString("type"));
+        Assert.assertTrue(done.getInt("waitCount") >= 5);
+        long fillCount = 0;
+        for (Atom a : done.getList("handlers")) {
+            DictionaryAtom handler = (DictionaryAtom) a;
+            if (handler.getString("event").equals("fill")) {
+                fillCount = handler.getInt("count");
+            }
+        }
+        Assert.assertEquals(3, fillCount);
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    private DictionaryAtom findBiote(ListAtom stats, long bioteId) {
+        for (Atom a : stats) {
+            DictionaryAtom d = (DictionaryAtom) a;
+            if (d.getInt("bioteId") == bioteId) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method creates a biote with an ID beyond the end of the biote
+     * table and checks that it can be reached and that its ID cannot be
+     * taken twice.
+     * @throws Exception
+     */
+    @Test
+    public void testBioteRegistry() throws Exception {
+        final int bioteId = 1000;
+        BioteManager bioteManager = new BioteManager("registry");
+        GateBiote gate = new GateBiote(bioteManager, 1);
+        bioteManager.createBiote(gate, bioteId);
+        Assert.assertEquals(bioteId, gate.getBioteId());
+        Assert.assertEquals(1, bioteManager.getBioteCount());
+
+        try {
+            bioteManager.createBiote(new GateBiote(bioteManager, 0), bioteId);
+            Assert.fail("A second biote was created with the same ID.");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 1);
+        Assert.assertTrue(bioteManager.sendStimulus(bioteId, new Event("fill", dict), 0));
+        Assert.assertFalse(bioteManager.sendStimulus(bioteId + 1, new Event("fill", dict), 0));
+        Assert.assertTrue(gate.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method creates and destroys a thousand biotes and checks that
+     * the biote table shrinks back once they are gone, while a biote which
+     * lives on stays reachable.
+     * @throws Exception
+     */
+    @Test
+    public void testBioteTableShrinks() throws Exception {
+        final int biotes = 1000;
+        BioteManager bioteManager = new BioteManager("registry-shrink");
+        GateBiote survivor = new GateBiote(bioteManager, 1);
+        int survivorId = bioteManager.createBiote(survivor);
+        int[] ids = new int[biotes];
+        for (int i = 0; i < biotes; i++) {
+            ids[i] = bioteManager.createBiote(new GateBiote(bioteManager, 0));
+        }
+        int grown = bioteManager.getBioteTableSize();
+        Assert.assertTrue("table of " + grown, grown > biotes);
+
+        for (int i = 0; i < biotes; i++) {
+            bioteManager.sendStimulus(ids[i], new Event("Event-Finalize"), 0);
+        }
+        for (int i = 0; i < 500 && bioteManager.getBioteCount() > 1; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, bioteManager.getBioteCount());
+        Assert.assertTrue(bioteManager.getBioteTableSize() < grown / 8);
+
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 1);
+        Assert.assertTrue(bioteManager.sendStimulus(survivorId, new Event("fill", dict), 0));
+        Assert.assertFalse(bioteManager.sendStimulus(ids[0], new Event("fill", dict), 0));
+        Assert.assertTrue(survivor.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method publishes events to a topic with several subscribers and
+     * checks that each subscriber receives the same event, and that
+     * unsubscribed and destroyed biotes stop receiving them.
+     * @throws Exception
+     */
+    @Test
+    public void testPublish() throws Exception {
+        BioteManager bioteManager = new BioteManager("publish");
+        GateBiote first = new GateBiote(bioteManager, 2);
+        GateBiote second = new GateBiote(bioteManager, 1);
+        int firstId = bioteManager.createBiote(first);
+        int secondId = bioteManager.createBiote(second);
+
+        Assert.assertEquals(0, bioteManager.publish("telemetry", new Event("fill"), 0));
+        Assert.assertTrue(bioteManager.subscribeTopic("telemetry", firstId));
+        Assert.assertTrue(bioteManager.subscribeTopic("telemetry", secondId));
+        Assert.assertFalse(bioteManager.subscribeTopic("telemetry", secondId));
+        Assert.assertEquals(2, bioteManager.getSubscriberCount("telemetry"));
+
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 0);
+        Assert.assertEquals(2, bioteManager.publish("telemetry", new Event("fill", dict), 0));
+        Assert.assertTrue(second.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        Assert.assertTrue(bioteManager.unsubscribeTopic("telemetry", secondId));
+        dict = DictionaryAtom.newAtom();
+        dict.setInt("sequence", 1);
+        Assert.assertEquals(1, bioteManager.publish("telemetry", new Event("fill", dict), 0));
+        Assert.assertTrue(first.mFilled.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertEquals(2, first.mHandled.size());
+        Assert.assertEquals(1, second.mHandled.size());
+
+        bioteManager.sendStimulus(firstId, new Event("Event-Finalize"), 0);
+        for (int i = 0; i < 500 && bioteManager.getSubscriberCount("telemetry") != 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, bioteManager.getSubscriberCount("telemetry"));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class EchoBiote extends Biote {
+        public EchoBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("echo", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    reply(msg, new Event("echo-reply", msg.getData()));
+                }
+            });
+            this.subscribe("ignore", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method sends requests with ask and checks that they are answered,
+     * time out, or fail when the target biote does not exist.
+     * @throws Exception
+     */
+    @Test
+    public void testAsk() throws Exception {
+        BioteManager bioteManager = new BioteManager("ask");
+        int echoId = bioteManager.createBiote(new EchoBiote(bioteManager));
+
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("value", 42);
+        Event reply = bioteManager.ask(echoId, new Event("echo", dict), 5000, 0)
+                .get(5, java.util.concurrent.TimeUnit.SECONDS);
+        Assert.assertEquals("echo-reply", reply.getEventName());
+        Assert.assertEquals(42, reply.getData().getInt("value"));
+
+        try {
+            bioteManager.ask(echoId, new Event("ignore"), 50, 0)
+                    .get(5, java.util.concurrent.TimeUnit.SECONDS);
+            Assert.fail("The request was answered.");
+        }
+        catch (java.util.concurrent.ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof java.util.concurrent.TimeoutException);
+        }
+
+        try {
+            bioteManager.ask(echoId + 1, new Event("echo"), 5000, 0)
+                    .get(5, java.util.concurrent.TimeUnit.SECONDS);
+            Assert.fail("The request was answered.");
+        }
+        catch (java.util.concurrent.ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        Assert.assertFalse(bioteManager.reply(new Event("echo"), new Event("echo-reply")));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class TickingBiote extends Biote {
+        private final java.util.concurrent.CountDownLatch mTicked;
+        private volatile String mThreadName;
+
+        public TickingBiote(BioteManager aBioteManager, int aTicks) {
+            super(aBioteManager, false, true);
+            mTicked = new java.util.concurrent.CountDownLatch(aTicks);
+            this.subscribe("tick", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mThreadName = Thread.currentThread().getName();
+                    mTicked.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            startTimer(10, new Event("tick"), true);
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method keeps every thread of the shared pool busy and checks that
+     * a real time biote keeps handling its timer events on its own thread.
+     * @throws Exception
+     */
+    @Test
+    public void testRealTimeBiote() throws Exception {
+        BioteManager bioteManager = new BioteManager("realtime", 2, 1);
+        GateBiote[] gates = new GateBiote[2];
+        for (int i = 0; i < gates.length; i++) {
+            gates[i] = new GateBiote(bioteManager, 0);
+            fillGate(bioteManager, gates[i], 0);
+        }
+
+        TickingBiote ticker = new TickingBiote(bioteManager, 10);
+        bioteManager.createBiote(ticker);
+        Assert.assertTrue(ticker.isRealTime());
+        Assert.assertTrue(ticker.mTicked.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertTrue(ticker.mThreadName, ticker.mThreadName.startsWith("realtime:"));
+
+        boolean found = false;
+        for (Atom a : bioteManager.flushStats()) {
+            DictionaryAtom d = (DictionaryAtom) a;
+            if (d.getString("name").equals("RealTimeLane.java:wakeup:TickingBiote")) {
+                found = d.getInt("samples") >= 10;
+            }
+        }
+        Assert.assertTrue(found);
+
+        for (GateBiote gate : gates) {
+            gate.mRelease.countDown();
+        }
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class StallingBiote extends Biote {
+        public StallingBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("stall", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    readSlowly();
+                }
+            });
+        }
+        private void readSlowly() throws InterruptedException {
+            Thread.sleep(150);
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method runs a handler which holds on to its worker thread and
+     * checks that the stall watchdog reports the event and where the
+     * handler spent its time.
+     * @throws Exception
+     */
+    @Test
+    public void testStallWatchdog() throws Exception {
+        BioteManager bioteManager = new BioteManager("watchdog");
+        bioteManager.setStallThreshold(20);
+        int id = bioteManager.createBiote(new StallingBiote(bioteManager));
+        bioteManager.sendStimulus(id, new Event("stall"), 0);
+
+        ListAtom reports = bioteManager.getStallReports();
+        for (int i = 0; i < 500 && reports.size() == 0; i++) {
+            Thread.sleep(10);
+            reports = bioteManager.getStallReports();
+        }
+        Assert.assertEquals(1, reports.size());
+        DictionaryAtom report = reports.getDictionary(0);
+        Assert.assertEquals("stall", report.getString("event"));
+        Assert.assertEquals(id, report.getInt("bioteId"));
+        Assert.assertEquals("StallingBiote", report.getString("bioteType"));
+        Assert.assertTrue(report.getBoolean("finished"));
+        Assert.assertTrue(report.getInt("micros") >= 100000);
+        Assert.assertTrue(report.getInt("samples") > 0);
+
+        boolean found = false;
+        ListAtom frames = report.getList("frames");
+        for (int i = 0; i < frames.size(); i++) {
+            String frame = frames.getDictionary(i).getString("frame");
+            Assert.assertFalse(frame, frame.contains("processEvents"));
+            if (frame.contains("readSlowly")) {
+                found = frames.getDictionary(i).getInt("count") == report.getInt("samples");
+            }
+        }
+        Assert.assertTrue(found);
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method checks that the stall watchdog sleeps without a timeout
+     * while no handler runs, and that a handler which stalls wakes it.
+     * @throws Exception
+     */
+    @Test
+    public void testStallWatchdogIdle() throws Exception {
+        BioteManager bioteManager = new BioteManager("watchdog-idle");
+        bioteManager.setStallThreshold(20);
+        Thread watchdog = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("watchdog-idle:watchdog")) {
+                watchdog = thread;
+            }
+        }
+        Assert.assertNotNull(watchdog);
+        for (int i = 0; i < 500 && watchdog.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Thread.State.WAITING, watchdog.getState());
+
+        int id = bioteManager.createBiote(new StallingBiote(bioteManager));
+        bioteManager.sendStimulus(id, new Event("stall"), 0);
+        ListAtom reports = bioteManager.getStallReports();
+        for (int i = 0; i < 500 && reports.size() == 0; i++) {
+            Thread.sleep(10);
+            reports = bioteManager.getStallReports();
+        }
+        Assert.assertEquals(1, reports.size());
+        for (int i = 0; i < 500 && watchdog.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Thread.State.WAITING, watchdog.getState());
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method switches a logging category on and off at runtime, checks
+     * that its messages reach the logger, and checks that logging to a
+     * category which is off does not allocate.
+     * @throws Exception
+     */
+    @Test
+    public void testLogCategories() throws Exception {
+        BioteManager bioteManager = new BioteManager("logging");
+        final List<String> messages = new java.util.concurrent.CopyOnWriteArrayList<String>();
+        java.util.logging.Handler handler = new java.util.logging.Handler() {
+            public void publish(java.util.logging.LogRecord record) {
+                if (record.getMessage().startsWith("logging:")) {
+                    messages.add(record.getMessage());
+                }
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        };
+        java.util.logging.Logger logger = java.util.logging.Logger.getLogger(BioteManager.class.getName());
+        logger.addHandler(handler);
+        try {
+            Assert.assertFalse(bioteManager.isLogEnabled(LogCategory.BIOTE_CORE));
+            bioteManager.setLogEnabled(LogCategory.BIOTE_CORE, true);
+            Assert.assertTrue(bioteManager.isLogEnabled(LogCategory.BIOTE_CORE));
+            int id = bioteManager.createBiote(new EchoBiote(bioteManager));
+            bioteManager.sendStimulus(id, new Event("ignore"), 0);
+
+            String expected = "[" + id + "]Biote.processEvents():ignore";
+            boolean found = false;
+            for (int i = 0; i < 500 && !found; i++) {
+                for (String message : messages) {
+                    found |= message.endsWith(expected);
+                }
+                if (!found) {
+                    Thread.sleep(10);
+                }
+            }
+            Assert.assertTrue(found);
+
+            bioteManager.setLogEnabled(LogCategory.BIOTE_CORE, false);
+            Assert.assertFalse(bioteManager.isLogEnabled(LogCategory.BIOTE_CORE));
+            java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+                long threadId = Thread.currentThread().getId();
+                String name = "ignore";
+                for (int i = 0; i < 100000; i++) {
+                    bioteManager.logString(LogCategory.BIOTE_CORE, id, "Biote.processEvents():{} {}", name, name);
+                }
+                long before = allocations.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < 100000; i++) {
+                    bioteManager.logString(LogCategory.BIOTE_CORE, id, "Biote.processEvents():{} {}", name, name);
+                }
+                long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+                Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+            }
+        }
+        finally {
+            logger.removeHandler(handler);
+        }
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method checks that the log thread sleeps without a timeout while
+     * there is nothing to write, and that logging a message wakes it.
+     * @throws Exception
+     */
+    @Test
+    public void testLogSinkIdle() throws Exception {
+        BioteManager bioteManager = new BioteManager("log-idle");
+        final List<String> messages = new java.util.concurrent.CopyOnWriteArrayList<String>();
+        java.util.logging.Handler handler = new java.util.logging.Handler() {
+            public void publish(java.util.logging.LogRecord record) {
+                if (record.getMessage().startsWith("log-idle:")) {
+                    messages.add(record.getMessage());
+                }
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        };
+        java.util.logging.Logger logger = java.util.logging.Logger.getLogger(BioteManager.class.getName());
+        logger.addHandler(handler);
+        try {
+            Thread sink = null;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("log-idle:log")) {
+                    sink = thread;
+                }
+            }
+            Assert.assertNotNull(sink);
+            for (int i = 0; i < 500 && sink.getState() != Thread.State.WAITING; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(Thread.State.WAITING, sink.getState());
+
+            bioteManager.logString(true, 0, "wake up");
+            for (int i = 0; i < 500 && messages.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, messages.size());
+            Assert.assertTrue(messages.get(0).endsWith("wake up"));
+        }
+        finally {
+            logger.removeHandler(handler);
+        }
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    class OffloadBiote extends Biote {
+        final java.util.concurrent.CountDownLatch mDone = new java.util.concurrent.CountDownLatch(2);
+        volatile long mSum;
+        volatile String mJobThread;
+        volatile String mResultThread;
+        volatile Exception mFailure;
+        public OffloadBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("sum", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    offload(new java.util.concurrent.Callable<Long>() {
+                        public Long call() throws Exception {
+                            mJobThread = Thread.currentThread().getName();
+                            long sum = 0;
+                            for (long i = 1; i <= 1000000; i++) {
+                                sum += i;
+                            }
+                            return sum;
+                        }
+                    }, "sum-result");
+                    offload(new java.util.concurrent.Callable<Long>() {
+                        public Long call() throws Exception {
+                            throw new IllegalArgumentException("bad input");
+                        }
+                    }, "sum-result", "sum-failed");
+                }
+            });
+            this.subscribe("sum-result", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mSum = msg.getPayload(Long.class);
+                    mResultThread = Thread.currentThread().getName();
+                    mDone.countDown();
+                }
+            });
+            this.subscribe("sum-failed", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mFailure = msg.getPayload(Exception.class);
+                    mDone.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method offloads a job to the compute pool and checks that its
+     * result, and the exception of a failing job, come back as events
+     * handled by the biote itself.
+     * @throws Exception
+     */
+    @Test
+    public void testOffload() throws Exception {
+        BioteManager bioteManager = new BioteManager("offload");
+        OffloadBiote biote = new OffloadBiote(bioteManager);
+        int id = bioteManager.createBiote(biote);
+        bioteManager.sendStimulus(id, new Event("sum"), 0);
+
+        Assert.assertTrue(biote.mDone.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertEquals(500000500000L, biote.mSum);
+        Assert.assertTrue(biote.mJobThread, biote.mJobThread.startsWith("offload:compute:"));
+        Assert.assertFalse(biote.mResultThread, biote.mResultThread.startsWith("offload:compute:"));
+        Assert.assertTrue(biote.mFailure instanceof IllegalArgumentException);
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method cancels an offloaded job while it is running and checks
+     * that its result is never sent to the biote.
+     * @throws Exception
+     */
+    @Test
+    public void testOffloadCancel() throws Exception {
+        BioteManager bioteManager = new BioteManager("offload-cancel");
+        final OffloadBiote biote = new OffloadBiote(bioteManager);
+        bioteManager.createBiote(biote);
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.Future<Long> future = bioteManager.offload(
+                new java.util.concurrent.Callable<Long>() {
+                    public Long call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return 1L;
+                    }
+                }, "sum-result", "sum-failed", biote.getBioteId());
+
+        Assert.assertTrue(started.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertTrue(future.isDone());
+        release.countDown();
+
+        // A job which has finished can no longer be cancelled.
+        java.util.concurrent.Future<Long> finished = bioteManager.offload(
+                new java.util.concurrent.Callable<Long>() {
+                    public Long call() throws Exception {
+                        return 2L;
+                    }
+                }, "sum-result", null, biote.getBioteId());
+        Assert.assertEquals(Long.valueOf(2), finished.get(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertFalse(finished.cancel(false));
+
+        // Only the second result arrives.
+        Assert.assertFalse(biote.mDone.await(200, java.util.concurrent.TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, biote.mDone.getCount());
+        Assert.assertEquals(2, biote.mSum);
+        try {
+            future.get();
+            Assert.fail("A cancelled job returned its result.");
+        }
+        catch (java.util.concurrent.CancellationException ex) {
+        }
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
 }
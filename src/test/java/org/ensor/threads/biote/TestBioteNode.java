@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ImmutableDict;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestBioteNode {
+
+    private static final int EVENT_COUNT = 10000;
+    private static final byte[] SECRET = "not very secret".getBytes();
+
+    /**
+     * Answers each "ping" event by sending a "pong" to the address in its
+     * "replyTo" field.
+     */
+    class EchoBiote extends Biote {
+        public EchoBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("ping", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    ImmutableDict data = msg.getData();
+                    sendStimulus(data.getInt("replyTo"), new Event("pong", data));
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * Counts the "pong" events it gets and checks that they arrive in the
+     * order they were sent.
+     */
+    class CountingBiote extends Biote {
+        final AtomicInteger mNext = new AtomicInteger(0);
+        final AtomicInteger mOutOfOrder = new AtomicInteger(0);
+        final CountDownLatch mDone = new CountDownLatch(EVENT_COUNT);
+        public CountingBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("pong", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    if (msg.getData().getInt("sequence") != mNext.getAndIncrement()) {
+                        mOutOfOrder.incrementAndGet();
+                    }
+                    mDone.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method links two nodes over the loopback interface and checks
+     * that a pipelined stream of events goes to the other node and back in
+     * order.
+     * @throws Exception
+     */
+    @Test
+    public void testLoopbackLink() throws Exception {
+        BioteManager first = new BioteManager("node-1");
+        BioteManager second = new BioteManager("node-2");
+        BioteNode firstNode = new BioteNode(first, 1, SECRET);
+        BioteNode secondNode = new BioteNode(second, 2, SECRET);
+        Assert.assertSame(firstNode, first.getNode());
+
+        int port = secondNode.listen(0);
+        firstNode.connect(2, "127.0.0.1", port);
+        Assert.assertTrue(firstNode.isConnected(2));
+        for (int i = 0; i < 500 && !secondNode.isConnected(1); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(secondNode.isConnected(1));
+
+        CountingBiote counter = new CountingBiote(first);
+        long counterAddress = firstNode.address(first.createBiote(counter));
+        long echoAddress = secondNode.address(second.createBiote(new EchoBiote(second)));
+        Assert.assertEquals(2, BioteNode.nodeOf(echoAddress));
+
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setInt("sequence", i);
+            dict.setInt("replyTo", counterAddress);
+            Assert.assertEquals(DeliveryStatus.DELIVERED,
+                    first.deliverStimulus(echoAddress, new Event("ping", dict), 0));
+        }
+        Assert.assertTrue(counter.mDone.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(0, counter.mOutOfOrder.get());
+
+        // An address on this node is delivered locally.
+        Assert.assertEquals(DeliveryStatus.NO_SUCH_BIOTE,
+                first.deliverStimulus(BioteNode.address(1, 12345), new Event("pong"), 0));
+        // There is no link to node 3.
+        Assert.assertEquals(DeliveryStatus.NO_SUCH_BIOTE,
+                first.deliverStimulus(BioteNode.address(3, 1), new Event("ping"), 0));
+
+        firstNode.close();
+        for (int i = 0; i < 500 && secondNode.isConnected(1); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(secondNode.isConnected(1));
+        secondNode.close();
+
+        first.shutdown();
+        second.shutdown();
+        first.waitForShutdown();
+        second.waitForShutdown();
+    }
+
+    /**
+     * This method makes two nodes connect to each other at the same time
+     * and checks that both end up on the connection made by node 1, and
+     * that events still go both ways over it.
+     * @throws Exception
+     */
+    @Test
+    public void testSimultaneousConnect() throws Exception {
+        BioteManager first = new BioteManager("node-1");
+        BioteManager second = new BioteManager("node-2");
+        final BioteNode firstNode = new BioteNode(first, 1, SECRET);
+        final BioteNode secondNode = new BioteNode(second, 2, SECRET);
+        final int firstPort = firstNode.listen(0);
+        final int secondPort = secondNode.listen(0);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger(0);
+        Thread[] connectors = {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        firstNode.connect(2, "127.0.0.1", secondPort);
+                    }
+                    catch (Exception ex) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }),
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        secondNode.connect(1, "127.0.0.1", firstPort);
+                    }
+                    catch (Exception ex) {
+                        failures.incrementAndGet();
+                    }
+                }
+            })
+        };
+        for (Thread connector : connectors) {
+            connector.start();
+        }
+        start.countDown();
+        for (Thread connector : connectors) {
+            connector.join();
+        }
+        Assert.assertEquals(0, failures.get());
+
+        for (int i = 0; i < 500 && !(isKept(firstNode, 2) && isKept(secondNode, 1)); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(isKept(firstNode, 2));
+        Assert.assertTrue(isKept(secondNode, 1));
+
+        CountingBiote counter = new CountingBiote(first);
+        long counterAddress = firstNode.address(first.createBiote(counter));
+        long echoAddress = secondNode.address(second.createBiote(new EchoBiote(second)));
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            DictionaryAtom dict = DictionaryAtom.newAtom();
+            dict.setInt("sequence", i);
+            dict.setInt("replyTo", counterAddress);
+            Assert.assertEquals(DeliveryStatus.DELIVERED,
+                    first.deliverStimulus(echoAddress, new Event("ping", dict), 0));
+        }
+        Assert.assertTrue(counter.mDone.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(0, counter.mOutOfOrder.get());
+
+        firstNode.close();
+        secondNode.close();
+        first.shutdown();
+        second.shutdown();
+        first.waitForShutdown();
+        second.waitForShutdown();
+    }
+
+    /*
+     * Returns true if the node's link to the other node is open and was
+     * made by node 1.
+     */
+    private static boolean isKept(BioteNode aNode, int aRemoteNodeId) {
+        RemoteLink link = aNode.getLink(aRemoteNodeId);
+        return link != null && link.isOpen() && link.getInitiatorNodeId() == 1;
+    }
+
+    /**
+     * This method checks that a node which does not know the secret cannot
+     * connect, in either direction.
+     * @throws Exception
+     */
+    @Test
+    public void testWrongSecret() throws Exception {
+        BioteManager first = new BioteManager("node-1");
+        BioteManager second = new BioteManager("node-2");
+        BioteNode firstNode = new BioteNode(first, 1, "wrong".getBytes());
+        BioteNode secondNode = new BioteNode(second, 2, SECRET);
+        int firstPort = firstNode.listen(InetAddress.getLoopbackAddress(), 0);
+        int secondPort = secondNode.listen(0);
+
+        try {
+            firstNode.connect(2, "127.0.0.1", secondPort);
+            Assert.fail("Connected without the secret");
+        }
+        catch (IOException ex) {
+        }
+        try {
+            secondNode.connect(1, "127.0.0.1", firstPort);
+            Assert.fail("Connected to a node without the secret");
+        }
+        catch (IOException ex) {
+        }
+        Thread.sleep(100);
+        Assert.assertFalse(firstNode.isConnected(2));
+        Assert.assertFalse(secondNode.isConnected(1));
+
+        firstNode.close();
+        secondNode.close();
+        first.shutdown();
+        second.shutdown();
+        first.waitForShutdown();
+        second.waitForShutdown();
+    }
+
+    /*
+     * Connects to a node as the given node, without a BioteNode, so that
+     * the test can write whatever it likes to the connection.
+     */
+    private static SocketChannel rawConnect(int aPort, int aNodeId) throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", aPort));
+        DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+        DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        byte[] challenge = new byte[16];
+        out.writeInt(0x42696f74);
+        out.writeInt(aNodeId);
+        out.write(challenge);
+        in.readInt();
+        in.readInt();
+        byte[] remoteChallenge = new byte[16];
+        in.readFully(remoteChallenge);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+        mac.update(remoteChallenge);
+        mac.update(challenge);
+        mac.update(ByteBuffer.allocate(4).putInt(aNodeId).array());
+        out.write(mac.doFinal());
+        in.readFully(new byte[32]);
+        return channel;
+    }
+
+    /*
+     * Returns true once the other end has closed the channel.
+     */
+    private static boolean isClosedByPeer(SocketChannel aChannel) throws Exception {
+        aChannel.socket().setSoTimeout(5000);
+        try {
+            return aChannel.socket().getInputStream().read() < 0;
+        } catch (SocketException e) {
+            // A reset is as good as a close here.
+            return true;
+        }
+    }
+
+    /**
+     * This method sends frames with impossible lengths and checks that the
+     * node drops the connection instead of allocating for them.
+     * @throws Exception
+     */
+    @Test
+    public void testBadFrame() throws Exception {
+        BioteManager bioteManager = new BioteManager("node-bad-frame");
+        BioteNode node = new BioteNode(bioteManager, 2, SECRET);
+        int port = node.listen(0);
+
+        int[][] headers = {
+            { -1, 1 },
+            { Integer.MAX_VALUE, 1 },
+            { 64, -5 },
+            { 64, 1000 }
+        };
+        for (int[] header : headers) {
+            SocketChannel channel = rawConnect(port, 7);
+            ByteBuffer frame = ByteBuffer.allocate(8 + 64);
+            frame.putInt(header[0]).putInt(header[1]);
+            frame.position(frame.capacity());
+            frame.flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            Assert.assertTrue(isClosedByPeer(channel));
+            channel.close();
+        }
+        for (int i = 0; i < 500 && node.isConnected(7); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(node.isConnected(7));
+
+        node.close();
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+}
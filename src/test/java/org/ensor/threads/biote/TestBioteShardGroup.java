@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestBioteShardGroup {
+
+    /**
+     * Counts the "hit" events it gets and answers "echo" requests.
+     */
+    class ShardBiote extends Biote {
+        final AtomicInteger mHits = new AtomicInteger(0);
+        volatile CountDownLatch mHit = new CountDownLatch(1);
+        public ShardBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+            this.subscribe("hit", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mHits.incrementAndGet();
+                    mHit.countDown();
+                }
+            });
+            this.subscribe("echo", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    reply(msg, new Event("echo-reply", msg.getData()));
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method creates a biote on each shard and checks that events,
+     * requests, topics and timers reach biotes owned by another shard.
+     * @throws Exception
+     */
+    @Test
+    public void testCrossShardDelivery() throws Exception {
+        BioteShardGroup group = new BioteShardGroup("shards", 3, 2, 1);
+        Assert.assertEquals(3, group.getShardCount());
+
+        ShardBiote[] biotes = new ShardBiote[3];
+        int[] ids = new int[3];
+        for (int i = 0; i < 3; i++) {
+            BioteManager shard = group.getShard(i);
+            Assert.assertEquals(i, shard.getShard());
+            Assert.assertSame(group, shard.getShardGroup());
+            biotes[i] = new ShardBiote(shard);
+            ids[i] = shard.createBiote(biotes[i]);
+            Assert.assertEquals(i, ids[i] >>> Constants.BIOTE_SHARD_SHIFT);
+            Assert.assertSame(shard, group.getShardOf(ids[i]));
+        }
+        Assert.assertEquals(3, group.getBioteCount());
+        Assert.assertNotEquals(ids[0], ids[1]);
+
+        // Plain events.
+        BioteManager first = group.getShard(0);
+        Assert.assertEquals(DeliveryStatus.DELIVERED,
+                first.deliverStimulus(ids[2], new Event("hit"), ids[0]));
+        Assert.assertTrue(biotes[2].mHit.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(DeliveryStatus.NO_SUCH_BIOTE,
+                first.deliverStimulus((5 << Constants.BIOTE_SHARD_SHIFT) | 2, new Event("hit"), 0));
+        Assert.assertEquals(DeliveryStatus.NO_SUCH_BIOTE,
+                first.deliverStimulus(ids[2] + 1, new Event("hit"), 0));
+
+        // Requests answered on another shard.
+        org.ensor.data.atom.DictionaryAtom dict = org.ensor.data.atom.DictionaryAtom.newAtom();
+        dict.setInt("value", 7);
+        Event reply = group.getShard(1).ask(ids[2], new Event("echo", dict), 5000, 0)
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(7, reply.getData().getInt("value"));
+
+        // Topics are shared by the shards.
+        biotes[1].mHit = new CountDownLatch(1);
+        first.subscribeTopic("shard-topic", ids[1]);
+        Assert.assertEquals(1, group.getShard(2).publish("shard-topic", new Event("hit"), 0));
+        Assert.assertTrue(biotes[1].mHit.await(5, TimeUnit.SECONDS));
+
+        // Timers fire on the shard which started them.
+        biotes[0].mHit = new CountDownLatch(1);
+        group.getShard(2).startTimer(ids[0], 10, new Event("hit"), false);
+        Assert.assertTrue(biotes[0].mHit.await(5, TimeUnit.SECONDS));
+
+        // A biote may be finalized from another shard.
+        first.sendStimulus(ids[2], new Event("Event-Finalize"), 0);
+        for (int i = 0; i < 500 && group.getBioteCount() > 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, group.getShard(2).getBioteCount());
+        Assert.assertEquals(1, group.getShard(1).getSubscriberCount("shard-topic"));
+
+        group.shutdown();
+        group.waitForShutdown();
+    }
+
+    /**
+     * This method checks that a shard refuses a biote ID which belongs to
+     * another shard.
+     * @throws Exception
+     */
+    @Test
+    public void testShardIds() throws Exception {
+        BioteShardGroup group = new BioteShardGroup("shard-ids", 2, 1, 1);
+        BioteManager second = group.getShard(1);
+        try {
+            second.createBiote(new ShardBiote(second), 1000);
+            Assert.fail("The biote was created.");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        second.createBiote(new ShardBiote(second), (1 << Constants.BIOTE_SHARD_SHIFT) | 1000);
+        Assert.assertEquals(1, second.getBioteCount());
+        Assert.assertSame(group.getShardFor("some key"), group.getShardFor("some key"));
+
+        group.shutdown();
+        group.waitForShutdown();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ListAtom;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestEventJournal {
+
+    private static final int SENDERS = 4;
+    private static final int EVENTS_PER_SENDER = 500;
+
+    class CountBiote extends Biote {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+        private final CountDownLatch mDone;
+
+        public CountBiote(BioteManager aBioteManager, int aExpected) {
+            super(aBioteManager, false);
+            mDone = new CountDownLatch(aExpected);
+            this.subscribe("sample", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mCount.incrementAndGet();
+                    mDone.countDown();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    private static Event sample(int aSender, int aSequence) {
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setInt("sender", aSender);
+        dict.setInt("sequence", aSequence);
+        dict.setString("name", "sample-" + aSequence);
+        dict.setBoolean("even", aSequence % 2 == 0);
+        dict.setReal("value", aSequence / 4.0);
+        ListAtom list = dict.newList("list");
+        list.append(aSequence);
+        list.newDictionary().setString("nested", "yes");
+        return new Event("sample", dict);
+    }
+
+    /**
+     * This method journals events sent from several threads into small
+     * segments, reads the journal back, and replays it into a fresh
+     * biote manager.
+     * @throws Exception
+     */
+    @Test
+    public void testJournal() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        EventJournal journal = new EventJournal(directory, 16 * 1024);
+        final BioteManager bioteManager = new BioteManager("journal");
+        bioteManager.setJournal(journal);
+        CountBiote counter = new CountBiote(bioteManager, SENDERS * EVENTS_PER_SENDER);
+        final int counterId = bioteManager.createBiote(counter);
+
+        Thread[] senders = new Thread[SENDERS];
+        for (int i = 0; i < SENDERS; i++) {
+            final int sender = i;
+            senders[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < EVENTS_PER_SENDER; j++) {
+                        bioteManager.sendStimulus(counterId, sample(sender, j), 100 + sender);
+                    }
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        Assert.assertTrue(counter.mDone.await(5, TimeUnit.SECONDS));
+        bioteManager.setJournal(null);
+        journal.close();
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+
+        Assert.assertEquals(0, journal.getDroppedCount());
+        Assert.assertTrue(EventJournal.segmentFiles(directory).length > 1);
+
+        // Every sender's events are read back in the order they were sent.
+        int[] next = new int[SENDERS];
+        int samples = 0;
+        EventJournalReader reader = new EventJournalReader(directory);
+        for (EventJournalReader.Record r = reader.next(); r != null; r = reader.next()) {
+            if (!r.getEvent().getEventName().equals("sample")) {
+                continue;
+            }
+            int sender = (int) r.getEvent().getData().getInt("sender");
+            int sequence = (int) r.getEvent().getData().getInt("sequence");
+            Assert.assertEquals(100 + sender, r.getSourceBioteId());
+            Assert.assertEquals(counterId, r.getTargetBioteId());
+            Assert.assertEquals(next[sender]++, sequence);
+            Assert.assertEquals("sample-" + sequence, r.getEvent().getData().getString("name"));
+            Assert.assertEquals(sequence % 2 == 0, r.getEvent().getData().getBoolean("even"));
+            Assert.assertEquals(sequence / 4.0, r.getEvent().getData().getReal("value"), 0.0);
+            Assert.assertEquals(sequence, r.getEvent().getData().getList("list").getInt(0));
+            samples++;
+        }
+        Assert.assertEquals(journal.getRecordCount(), samples + 1);
+        Assert.assertEquals(SENDERS * EVENTS_PER_SENDER, samples);
+
+        // Replaying the journal into a fresh biote manager delivers every
+        // event to the biote with the same ID.
+        BioteManager replayManager = new BioteManager("replay");
+        CountBiote replayed = new CountBiote(replayManager, SENDERS * EVENTS_PER_SENDER);
+        replayManager.createBiote(replayed, counterId);
+        int sent = new EventJournalReader(directory).replay(replayManager, 0, true);
+        Assert.assertEquals(samples + 1, sent);
+        Assert.assertTrue(replayed.mDone.await(5, TimeUnit.SECONDS));
+        replayManager.shutdown();
+        replayManager.waitForShutdown();
+
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * This method encodes a string longer than 64 KB and checks that it
+     * decodes intact, and that a record claiming a longer string than it
+     * holds is refused.
+     * @throws Exception
+     */
+    @Test
+    public void testLongString() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 70000) {
+            text.append("0123456789");
+        }
+        DictionaryAtom dict = DictionaryAtom.newAtom();
+        dict.setString("text", text.toString());
+        ByteBuffer record = new JournalCodec().encode(1, 2, 3, new Event("long", dict), (byte) 0);
+
+        record.position(JournalCodec.HEADER_BYTES);
+        Assert.assertEquals("long", JournalCodec.getString(record));
+        DictionaryAtom decoded = DictionaryAtom.newAtom();
+        JournalCodec.getDictionary(record, decoded);
+        Assert.assertEquals(text.toString(), decoded.getString("text"));
+        Assert.assertFalse(record.hasRemaining());
+
+        ByteBuffer truncated = ByteBuffer.allocate(8);
+        truncated.putInt(1 << 30).putInt(0).flip();
+        try {
+            JournalCodec.getString(truncated);
+            Assert.fail("A string longer than the record was read.");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * This method claims room for a record which is never finished, as a
+     * sender which failed half way would, and checks that the journal
+     * still closes and that the records before it can be read.
+     * @throws Exception
+     */
+    @Test
+    public void testUnfinishedRecord() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        EventJournal journal = new EventJournal(directory, 16 * 1024);
+        journal.append(1, 2, 3, sample(0, 0), false);
+        Assert.assertTrue(journal.getCurrentSegment().claim(64) >= 0);
+        journal.append(1, 2, 3, sample(0, 1), false);
+
+        long start = System.nanoTime();
+        journal.close();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("took " + elapsedMillis + "ms",
+                elapsedMillis < Constants.JOURNAL_SEAL_TIMEOUT_MILLISECONDS + 2000);
+
+        EventJournalReader reader = new EventJournalReader(directory);
+        EventJournalReader.Record r = reader.next();
+        Assert.assertNotNull(r);
+        Assert.assertEquals(0, r.getEvent().getData().getInt("sequence"));
+        Assert.assertNull(reader.next());
+
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * This method journals an event whose payload is not a dictionary and
+     * one whose payload fails to convert, and checks that the first is
+     * recorded without its data while the second is dropped.
+     * @throws Exception
+     */
+    @Test
+    public void testPayloadEncoding() throws Exception {
+        EventType type = EventType.get("payload");
+        Event opaque = new Event(type, new Object(), null);
+        ByteBuffer record = new JournalCodec().encode(1, 2, 3, opaque, (byte) 0);
+        Assert.assertEquals(JournalCodec.FLAG_OPAQUE_PAYLOAD, record.get(4));
+
+        Event broken = new Event(type, new IEventPayload() {
+            public DictionaryAtom toDictionary() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        try {
+            new JournalCodec().encode(1, 2, 3, broken, (byte) 0);
+            Assert.fail("A payload which failed to convert was encoded.");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+
+        File directory = Files.createTempDirectory("journal").toFile();
+        EventJournal journal = new EventJournal(directory, 16 * 1024);
+        journal.append(1, 2, 3, opaque, false);
+        journal.append(1, 2, 3, broken, false);
+        journal.close();
+        Assert.assertEquals(1, journal.getRecordCount());
+        Assert.assertEquals(1, journal.getDroppedCount());
+
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import org.ensor.data.atom.Atom;
+import org.ensor.data.atom.DictionaryAtom;
+import org.ensor.data.atom.ListAtom;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestHistogram {
+
+    /**
+     * This method checks that every value falls in a bucket whose lower
+     * bound is within one sub-bucket of the value.
+     */
+    @Test
+    public void testBuckets() {
+        long[] values = new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE};
+        for (long v : values) {
+            int bucket = Histogram.bucketOf(v);
+            long lower = Histogram.lowerBoundOf(bucket);
+            Assert.assertTrue(bucket < Histogram.BUCKETS);
+            Assert.assertTrue(lower <= v);
+            Assert.assertTrue(v - lower <= lower / Histogram.SUB_BUCKETS);
+        }
+    }
+
+    /**
+     * This method samples a statistic and checks the flushed percentiles
+     * and that flushing resets it.
+     * @throws Exception
+     */
+    @Test
+    public void testFlush() throws Exception {
+        SystemStat stat = new SystemStat("latency", true);
+        for (int i = 1; i <= 1000; i++) {
+            stat.sample(i);
+        }
+        ListAtom stats = ListAtom.newAtom();
+        stat.flush(stats);
+        DictionaryAtom d = null;
+        for (Atom a : stats) {
+            d = (DictionaryAtom) a;
+        }
+        Assert.assertNotNull(d);
+        Assert.assertEquals(1000, d.getInt("samples"));
+        Assert.assertEquals(1, d.getInt("min"));
+        Assert.assertEquals(1000, d.getInt("max"));
+        Assert.assertEquals(500500, d.getInt("total"));
+        Assert.assertEquals(500, d.getInt("p50"), 500 / Histogram.SUB_BUCKETS);
+        Assert.assertEquals(990, d.getInt("p99"), 990 / Histogram.SUB_BUCKETS);
+
+        ListAtom empty = ListAtom.newAtom();
+        stat.flush(empty);
+        Assert.assertEquals(0, empty.size());
+    }
+}
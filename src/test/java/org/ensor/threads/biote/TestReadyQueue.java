@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestReadyQueue {
+
+    class IdleBiote extends Biote {
+        public IdleBiote(BioteManager aBioteManager) {
+            super(aBioteManager, false);
+        }
+        @Override
+        protected void onInit(Event message) throws Exception {
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * This method checks that a Biote is handed back to the worker which
+     * last processed it, that new Biotes can be taken by any worker and
+     * that an idle worker steals from a busy one.
+     */
+    @Test
+    public void testAffinityAndStealing() {
+        BioteManager bioteManager = new BioteManager("ready-queue");
+        ReadyQueue queue = new ReadyQueue(2, SchedulerMode.POLLING,
+                new AtomicBoolean(true));
+
+        IdleBiote fresh = new IdleBiote(bioteManager);
+        IdleBiote homeOne = new IdleBiote(bioteManager);
+        IdleBiote homeOneToo = new IdleBiote(bioteManager);
+        homeOne.setWorkerAffinity(1);
+        homeOneToo.setWorkerAffinity(1);
+
+        queue.add(fresh);
+        queue.add(homeOne);
+        queue.add(homeOneToo);
+
+        // Worker one serves its own deque before the shared queue.
+        Assert.assertSame(homeOne, queue.take(1));
+        // Worker zero has no local work and takes from the shared queue.
+        Assert.assertSame(fresh, queue.take(0));
+        // Worker zero then steals from worker one.
+        Assert.assertSame(homeOneToo, queue.take(0));
+        Assert.assertNull(queue.take(0));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method checks that an urgent Biote is taken ahead of Biotes
+     * which were scheduled before it, even by another worker.
+     */
+    @Test
+    public void testUrgentFirst() {
+        BioteManager bioteManager = new BioteManager("urgent-queue");
+        ReadyQueue queue = new ReadyQueue(2, SchedulerMode.POLLING,
+                new AtomicBoolean(true));
+
+        IdleBiote bulk = new IdleBiote(bioteManager);
+        IdleBiote urgent = new IdleBiote(bioteManager);
+        bulk.setWorkerAffinity(0);
+        urgent.setWorkerAffinity(0);
+
+        queue.add(bulk);
+        queue.add(urgent, true);
+
+        Assert.assertSame(urgent, queue.take(1));
+        Assert.assertSame(bulk, queue.take(0));
+        Assert.assertNull(queue.take(0));
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package org.ensor.threads.biote;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestRouterBiote {
+
+    /**
+     * Records which replica handled each "work" event.  A replica may be
+     * held up until a gate is opened, and may take some time per event.
+     */
+    class WorkerBiote extends Biote {
+        private final Map<Long, AtomicInteger> mCounts;
+        private final Map<String, Long> mKeys;
+        private final CountDownLatch mGate;
+        private final long mSleepMillis;
+
+        public WorkerBiote(
+                BioteManager aBioteManager,
+                Map<Long, AtomicInteger> aCounts,
+                Map<String, Long> aKeys,
+                CountDownLatch aGate,
+                long aSleepMillis) {
+            super(aBioteManager, false);
+            mCounts = aCounts;
+            mKeys = aKeys;
+            mGate = aGate;
+            mSleepMillis = aSleepMillis;
+            this.subscribe("work", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mGate.await();
+                    if (mSleepMillis > 0) {
+                        Thread.sleep(mSleepMillis);
+                    }
+                    String key = msg.getData().getString("key");
+                    Long previous = mKeys.put(key, getBioteId());
+                    if (previous != null && previous != getBioteId()) {
+                        mKeys.put(key, -1L);
+                    }
+                    mCounts.get(getBioteId()).incrementAndGet();
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            mCounts.put(getBioteId(), new AtomicInteger(0));
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    /**
+     * Routes "work" events by the "key" in their data.
+     */
+    class KeyedRouterBiote extends RouterBiote {
+        public KeyedRouterBiote(
+                BioteManager aBioteManager,
+                RoutingStrategy aStrategy,
+                int aMinReplicas,
+                int aMaxReplicas,
+                IReplicaFactory aFactory) throws Exception {
+            super(aBioteManager, aStrategy, aMinReplicas, aMaxReplicas, aFactory);
+        }
+        @Override
+        protected Object getRoutingKey(Event msg) {
+            return msg.getData().getString("key");
+        }
+    };
+
+    private final Map<Long, AtomicInteger> mCounts = new ConcurrentHashMap<Long, AtomicInteger>();
+    private final Map<String, Long> mKeys = new ConcurrentHashMap<String, Long>();
+    private final List<Biote> mReplicas = new CopyOnWriteArrayList<Biote>();
+
+    private IReplicaFactory factory(final CountDownLatch aGate, final long aSleepMillis) {
+        return new IReplicaFactory() {
+            public Biote newReplica(BioteManager aBioteManager) throws Exception {
+                WorkerBiote replica = new WorkerBiote(aBioteManager, mCounts, mKeys, aGate, aSleepMillis);
+                mReplicas.add(replica);
+                return replica;
+            }
+        };
+    }
+
+    private void sendWork(BioteManager aBioteManager, long aRouterId, int aCount, int aKeys) {
+        for (int i = 0; i < aCount; i++) {
+            org.ensor.data.atom.DictionaryAtom dict = org.ensor.data.atom.DictionaryAtom.newAtom();
+            dict.setString("key", "key-" + (i % aKeys));
+            aBioteManager.sendStimulus(aRouterId, new Event("work", dict), 0);
+        }
+    }
+
+    private int handled() {
+        int total = 0;
+        for (AtomicInteger count : mCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    private void waitForHandled(int aCount) throws InterruptedException {
+        for (int i = 0; i < 500 && handled() < aCount; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(aCount, handled());
+    }
+
+    /**
+     * This method checks that round robin routing gives each replica the
+     * same share of the events, and that finalizing the router finalizes
+     * its replicas.
+     * @throws Exception
+     */
+    @Test
+    public void testRoundRobin() throws Exception {
+        BioteManager bioteManager = new BioteManager("router-rr");
+        RouterBiote router = new RouterBiote(bioteManager, RoutingStrategy.ROUND_ROBIN,
+                4, 4, factory(new CountDownLatch(0), 0));
+        int routerId = bioteManager.createBiote(router);
+        Assert.assertEquals(4, router.getReplicaCount());
+        Assert.assertEquals(5, bioteManager.getBioteCount());
+
+        sendWork(bioteManager, routerId, 400, 400);
+        waitForHandled(400);
+        Assert.assertEquals(4, mCounts.size());
+        for (AtomicInteger count : mCounts.values()) {
+            Assert.assertEquals(100, count.get());
+        }
+
+        bioteManager.sendStimulus(routerId, new Event("Event-Finalize"), 0);
+        for (int i = 0; i < 500 && bioteManager.getBioteCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, bioteManager.getBioteCount());
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method checks that the events of each key are all handled by
+     * the same replica.
+     * @throws Exception
+     */
+    @Test
+    public void testConsistentHash() throws Exception {
+        BioteManager bioteManager = new BioteManager("router-hash");
+        RouterBiote router = new KeyedRouterBiote(bioteManager, RoutingStrategy.CONSISTENT_HASH,
+                4, 4, factory(new CountDownLatch(0), 0));
+        int routerId = bioteManager.createBiote(router);
+
+        sendWork(bioteManager, routerId, 1000, 50);
+        waitForHandled(1000);
+        Assert.assertEquals(50, mKeys.size());
+        int used = 0;
+        for (AtomicInteger count : mCounts.values()) {
+            used += count.get() > 0 ? 1 : 0;
+        }
+        Assert.assertTrue(used > 1);
+        for (Long replica : mKeys.values()) {
+            Assert.assertTrue(replica > 0);
+        }
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method holds up every replica and checks that events sent with
+     * least queue depth routing are spread evenly over their mailboxes.
+     * @throws Exception
+     */
+    @Test
+    public void testLeastQueueDepth() throws Exception {
+        BioteManager bioteManager = new BioteManager("router-depth");
+        CountDownLatch gate = new CountDownLatch(1);
+        RouterBiote router = new RouterBiote(bioteManager, RoutingStrategy.LEAST_QUEUE_DEPTH,
+                3, 3, factory(gate, 0));
+        int routerId = bioteManager.createBiote(router);
+
+        sendWork(bioteManager, routerId, 300, 300);
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (Biote replica : mReplicas) {
+            int depth = replica.getMailboxDepth();
+            min = Math.min(min, depth);
+            max = Math.max(max, depth);
+        }
+        Assert.assertTrue(min + ":" + max, max - min <= 2);
+
+        gate.countDown();
+        waitForHandled(300);
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method sends more events than one replica can keep up with and
+     * checks that the router adds replicas, then removes them again once
+     * the events have been handled.
+     * @throws Exception
+     */
+    @Test
+    public void testScaling() throws Exception {
+        BioteManager bioteManager = new BioteManager("router-scale");
+        RouterBiote router = new RouterBiote(bioteManager, RoutingStrategy.LEAST_QUEUE_DEPTH,
+                1, 4, factory(new CountDownLatch(0), 2));
+        router.setScaling(4, 3);
+        int routerId = bioteManager.createBiote(router);
+        Assert.assertEquals(1, router.getReplicaCount());
+
+        sendWork(bioteManager, routerId, 1000, 1000);
+        int peak = 1;
+        for (int i = 0; i < 500 && handled() < 1000; i++) {
+            peak = Math.max(peak, router.getReplicaCount());
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1000, handled());
+        Assert.assertTrue("Peak of " + peak + " replicas", peak > 1);
+
+        for (int i = 0; i < 500 && router.getReplicaCount() > 1; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, router.getReplicaCount());
+        for (int i = 0; i < 500 && bioteManager.getBioteCount() > 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, bioteManager.getBioteCount());
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+}
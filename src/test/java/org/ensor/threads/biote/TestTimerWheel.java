@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestTimerWheel {
+
+    class Recorder implements TimerWheel.IExpirationHandler {
+        private final List<Integer> mExpired = new ArrayList<Integer>();
+        private long mMaxLateness = 0;
+
+        public synchronized void expire(List<TimerWheel.Timeout> aExpired) {
+            for (TimerWheel.Timeout t : aExpired) {
+                mExpired.add(t.getTimerId());
+                mMaxLateness = Math.max(mMaxLateness, t.getLateness());
+            }
+        }
+        public synchronized int count(int aTimerId) {
+            int n = 0;
+            for (Integer id : mExpired) {
+                if (id == aTimerId) {
+                    n++;
+                }
+            }
+            return n;
+        }
+        public synchronized long getMaxLateness() {
+            return mMaxLateness;
+        }
+    };
+
+    /**
+     * This method schedules a one shot timer, a repeating timer and a
+     * timer which is cancelled before it expires, and checks how often
+     * each of them fired.
+     * @throws Exception
+     */
+    @Test
+    public void testTimerWheel() throws Exception {
+        Recorder recorder = new Recorder();
+        // Use a small wheel so that the repeating timer wraps around it.
+        TimerWheel wheel = new TimerWheel("test-timer",
+                TimeUnit.MILLISECONDS.toNanos(1), 16, recorder, null);
+        Event tick = new Event("tick");
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+        TimerWheel.Timeout once = wheel.newTimeout(1, 1, tick, 30 * ms, 0);
+        TimerWheel.Timeout repeating = wheel.newTimeout(2, 1, tick, 20 * ms, 20 * ms);
+        TimerWheel.Timeout cancelled = wheel.newTimeout(3, 1, tick, 100 * ms, 0);
+        wheel.schedule(once);
+        wheel.schedule(repeating);
+        wheel.schedule(cancelled);
+        wheel.cancel(cancelled);
+
+        Thread.sleep(410);
+        wheel.cancel(repeating);
+        int fired = recorder.count(2);
+        Thread.sleep(100);
+        wheel.stop();
+
+        Assert.assertEquals(1, recorder.count(1));
+        Assert.assertEquals(0, recorder.count(3));
+        // Fixed rate: 20 expirations in 400ms regardless of lateness.
+        Assert.assertTrue("repeating timer fired " + fired, fired >= 19 && fired <= 21);
+        Assert.assertEquals(fired, recorder.count(2));
+        BioteManager.mLogger.info("Maximum timer lateness: " +
+                TimeUnit.NANOSECONDS.toMicros(recorder.getMaxLateness()) + " us");
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jon Arney, Ensor Robotics.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.ensor.threads.biote;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.ensor.data.atom.DictionaryAtom;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author jona
+ */
+public class TestVirtualTimeExecutor {
+
+    /**
+     * Ticks on a repeating timer and forwards each tick to its peers, which
+     * record every event they handle in a shared journal.
+     */
+    class TickBiote extends Biote {
+        private final List<String> mJournal;
+        private final long[] mPeers;
+        private int mTicks;
+        private long mLastTick;
+
+        public TickBiote(BioteManager aBioteManager, List<String> aJournal, long[] aPeers) {
+            super(aBioteManager, false);
+            mJournal = aJournal;
+            mPeers = aPeers;
+            this.subscribe("tick", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mTicks++;
+                    mLastTick = getBioteManager().currentTimeMillis();
+                    for (long peer : mPeers) {
+                        DictionaryAtom dict = DictionaryAtom.newAtom();
+                        dict.setInt("from", getBioteId());
+                        sendStimulus(peer, new Event("hello", dict));
+                    }
+                }
+            });
+            this.subscribe("hello", new IEventHandler() {
+                public void process(Event msg) throws Exception {
+                    mJournal.add(msg.getData().getInt("from") + ">" + getBioteId());
+                }
+            });
+        }
+        @Override
+        protected void onInit(final Event message) throws Exception {
+            startTimer(100, new Event("tick"), true);
+        }
+        @Override
+        protected void onFinalize(Event message) throws Exception {
+        }
+    };
+
+    private List<String> runScenario(long aSeed, long aMillis) throws Exception {
+        VirtualTimeExecutor executor = new VirtualTimeExecutor(aSeed);
+        BioteManager bioteManager = new BioteManager("virtual-" + aSeed, executor);
+        List<String> journal = new ArrayList<String>();
+        long[] peers = new long[] {
+            Constants.BIOTE_FIRST_GENERATED_ID + 1,
+            Constants.BIOTE_FIRST_GENERATED_ID + 2,
+            Constants.BIOTE_FIRST_GENERATED_ID + 3
+        };
+        for (int i = 0; i < peers.length; i++) {
+            bioteManager.createBiote(new TickBiote(bioteManager, journal, peers));
+        }
+        executor.runFor(aMillis);
+        Assert.assertEquals(aMillis, bioteManager.currentTimeMillis());
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+        return journal;
+    }
+
+    /**
+     * This method runs ten minutes of virtual time and checks that every
+     * timer fired on schedule.
+     * @throws Exception
+     */
+    @Test
+    public void testVirtualTime() throws Exception {
+        VirtualTimeExecutor executor = new VirtualTimeExecutor(1);
+        BioteManager bioteManager = new BioteManager("virtual", executor);
+        TickBiote biote = new TickBiote(bioteManager, new ArrayList<String>(), new long[0]);
+        bioteManager.createBiote(biote);
+
+        long start = System.currentTimeMillis();
+        executor.runFor(10 * 60 * 1000);
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(6000, biote.mTicks);
+        Assert.assertTrue("last tick at " + biote.mLastTick,
+                biote.mLastTick > 10 * 60 * 1000 - 100);
+        Assert.assertTrue("ten virtual minutes took " + elapsed + " ms", elapsed < 60 * 1000);
+
+        bioteManager.shutdown();
+        bioteManager.waitForShutdown();
+    }
+
+    /**
+     * This method runs the same scenario twice with the same seed and checks
+     * that the events were handled in the same order both times.
+     * @throws Exception
+     */
+    @Test
+    public void testDeterminism() throws Exception {
+        List<String> first = runScenario(42, 2000);
+        List<String> second = runScenario(42, 2000);
+        Assert.assertEquals(3 * 3 * 20, first.size());
+        Assert.assertEquals(first, second);
+    }
+}